@@ -0,0 +1,107 @@
+package com.wangli.mproxy.bean;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * HTTP报文头的字段，保持原来的顺序，字段名不区分大小写，同名字段可以有多个
+ */
+public class HttpHeaders {
+    private final ArrayList<String> mNames = new ArrayList<String>();
+    private final ArrayList<String> mValues = new ArrayList<String>();
+
+    public int size() {
+        return mNames.size();
+    }
+
+    public String getName(int index) {
+        return mNames.get(index);
+    }
+
+    public String getValue(int index) {
+        return mValues.get(index);
+    }
+
+    /**
+     * 添加字段，不影响已有的同名字段
+     */
+    public void add(String name, String value) {
+        mNames.add(name);
+        mValues.add(value);
+    }
+
+    /**
+     * 设置字段，已有的同名字段先去掉
+     */
+    public void set(String name, String value) {
+        remove(name);
+        add(name, value);
+    }
+
+    /**
+     * 去掉所有同名字段
+     */
+    public void remove(String name) {
+        for (int i = mNames.size() - 1; i >= 0; i--) {
+            if (mNames.get(i).equalsIgnoreCase(name)) {
+                mNames.remove(i);
+                mValues.remove(i);
+            }
+        }
+    }
+
+    /**
+     * 获取第一个同名字段的值
+     * @return 没有则返回null
+     */
+    public String get(String name) {
+        for (int i = 0; i < mNames.size(); i++) {
+            if (mNames.get(i).equalsIgnoreCase(name))
+                return mValues.get(i);
+        }
+        return null;
+    }
+
+    /**
+     * 获取所有同名字段的值
+     */
+    public List<String> getAll(String name) {
+        List<String> result = new ArrayList<String>(1);
+        for (int i = 0; i < mNames.size(); i++) {
+            if (mNames.get(i).equalsIgnoreCase(name))
+                result.add(mValues.get(i));
+        }
+        return result;
+    }
+
+    public boolean contains(String name) {
+        return get(name) != null;
+    }
+
+    public void clear() {
+        mNames.clear();
+        mValues.clear();
+    }
+
+    /**
+     * 按"名称: 值\r\n"写入buffer，不含结尾的空行
+     * @throws java.nio.BufferOverflowException buffer放不下
+     */
+    public void writeTo(ByteBuffer buffer) {
+        for (int i = 0; i < mNames.size(); i++) {
+            putAscii(buffer, mNames.get(i));
+            buffer.put((byte) ':').put((byte) ' ');
+            putAscii(buffer, mValues.get(i));
+            buffer.put((byte) '\r').put((byte) '\n');
+        }
+    }
+
+    /**
+     * 把字符串逐字符写入buffer，报文头按ISO-8859-1解析，原样写回
+     */
+    public static void putAscii(ByteBuffer buffer, String str) {
+        for (int i = 0; i < str.length(); i++)
+            buffer.put((byte) str.charAt(i));
+    }
+}
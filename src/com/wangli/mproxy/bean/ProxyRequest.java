@@ -1,8 +1,80 @@
 package com.wangli.mproxy.bean;
 
+import java.nio.ByteBuffer;
+
 public class ProxyRequest{
-    /**Http Request 报文*/
-    public String message;
-    /**Range的位置*/
+    /**方法，如GET*/
+    public String method;
+    /**请求的URI，如/a.mp4?id=1*/
+    public String target;
+    /**协议版本，如HTTP/1.1*/
+    public String version;
+    /**报文头的字段*/
+    public final HttpHeaders headers = new HttpHeaders();
+    /**Range的位置，后缀Range(bytes=-N)为-1*/
     public long rangePosition;
-}
\ No newline at end of file
+    /**Range的结束位置(含)，没有为-1*/
+    public long rangeEnd = -1;
+    /**后缀Range的长度，bytes=-500为500，不是后缀Range为-1*/
+    public long rangeSuffixLength = -1;
+    /**多段Range或不认识的单位，原样转发，不使用缓存*/
+    public boolean rangePassthrough;
+    /**MediaPlayer的请求是否带了Range，没带时本地生成的Response为200*/
+    public boolean rangeRequested;
+
+    /**
+     * 设置Range，同时修改报文头
+     * @param start 起始位置
+     * @param end 结束位置(含)，-1为到结尾
+     */
+    public void setRange(long start, long end) {
+        rangePosition = start;
+        rangeEnd = end;
+        rangeSuffixLength = -1;
+        rangePassthrough = false;
+        headers.set("Range", "bytes=" + start + "-" + (end == -1 ? "" : String.valueOf(end)));
+    }
+
+    /**
+     * 是否为单段的、起始位置已知的Range，只有这种Range可以使用缓存
+     */
+    public boolean hasSimpleRange() {
+        return !rangePassthrough && rangePosition >= 0;
+    }
+
+    /**
+     * Range在资源中的结束位置(不含)
+     * @param contentLength 资源的总长度，未知为-1
+     * @return 都未知时为Long.MAX_VALUE
+     */
+    public long getRangeLimit(long contentLength) {
+        long limit = rangeEnd != -1 ? rangeEnd + 1 : Long.MAX_VALUE;
+        if (contentLength > 0)
+            limit = Math.min(limit, contentLength);
+        return limit;
+    }
+
+    /**
+     * 把报文头写入buffer，含结尾的空行
+     * @throws java.nio.BufferOverflowException buffer放不下
+     */
+    public void writeTo(ByteBuffer buffer) {
+        HttpHeaders.putAscii(buffer, method);
+        buffer.put((byte) ' ');
+        HttpHeaders.putAscii(buffer, target);
+        buffer.put((byte) ' ');
+        HttpHeaders.putAscii(buffer, version);
+        buffer.put((byte) '\r').put((byte) '\n');
+        headers.writeTo(buffer);
+        buffer.put((byte) '\r').put((byte) '\n');
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        sb.append(method).append(' ').append(target).append(' ').append(version);
+        for (int i = 0; i < headers.size(); i++)
+            sb.append("\r\n").append(headers.getName(i)).append(": ").append(headers.getValue(i));
+        return sb.toString();
+    }
+}
@@ -1,9 +1,33 @@
-
 package com.wangli.mproxy.bean;
 
+import java.nio.ByteBuffer;
+
 public class ProxyResponse {
-    public byte[] header;//报文的消息头
     public byte[] body;//报文的消息体
-    public long currentPosition;
-    public long duration;
+    public String version;//协议版本，如HTTP/1.1
+    public int statusCode;//状态码
+    public String reason;//原因短语，如Partial Content
+    public final HttpHeaders headers = new HttpHeaders();//报文头的字段
+    public long currentPosition;//Content-Range的起始位置
+    public long totalLength = -1;//资源总长度，Content-Range中"/"之后的值，未知为-1
+    public long contentLength = -1;//Content-Length，没有为-1
+    public boolean chunked;//Transfer-Encoding: chunked
+    public boolean keepAlive;//服务器是否允许复用连接
+
+    /**
+     * 按当前的字段重新生成报文头写入buffer，含结尾的空行
+     * @throws java.nio.BufferOverflowException buffer放不下
+     */
+    public void writeTo(ByteBuffer buffer) {
+        HttpHeaders.putAscii(buffer, version);
+        buffer.put((byte) ' ');
+        HttpHeaders.putAscii(buffer, String.valueOf(statusCode));
+        if (reason != null) {
+            buffer.put((byte) ' ');
+            HttpHeaders.putAscii(buffer, reason);
+        }
+        buffer.put((byte) '\r').put((byte) '\n');
+        headers.writeTo(buffer);
+        buffer.put((byte) '\r').put((byte) '\n');
+    }
 }
@@ -0,0 +1,27 @@
+package com.wangli.mproxy.bean;
+
+import java.net.InetSocketAddress;
+
+/**
+ * 一个本地代理链接对应的远程目标，每个会话各自持有，互不影响
+ */
+public class ProxyTarget {
+    /**有效的媒体文件链接(重定向之后)*/
+    public String mediaUrl;
+    /** 远程服务器地址 */
+    public String remoteHost;
+    /** 链接带的端口 */
+    public int remotePort = -1;
+    /**服务器的Address*/
+    public InetSocketAddress serverAddress;
+    /**是否为https，到服务器的连接使用TLS，MediaPlayer仍用http连接代理*/
+    public boolean secure;
+    /**预加载缓存的名称，不缓存为null*/
+    public String cacheKey;
+    /**发给服务器的URI(路径加参数)，为null时使用MediaPlayer请求的URI*/
+    public String requestUri;
+    /**是否为m3u8播放列表，播放列表中的链接要改写*/
+    public boolean playlist;
+    /**HLS分段所属的媒体播放列表的链接，用来预加载之后的分段，不是分段为null*/
+    public String playlistUrl;
+}
@@ -0,0 +1,677 @@
+package com.wangli.mproxy.cache;
+
+import com.wangli.mproxy.utils.CommonUtil;
+import com.wangli.mproxy.utils.Config;
+import com.wangli.mproxy.utils.SizeClassPool;
+
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * 一个资源的缓存：数据按固定大小分段存放在各自的文件中，已有的字节区间记录在index文件里，
+ * 任意位置的数据都可以写入，任意位置开始的连续数据都可以读取。由CacheStore打开和释放。
+ * 写满的分段记下CRC32，每次打开后第一次读取时校验，不一致的分段当作没有缓存；
+ * 服务器的ETag或Last-Modified改变时丢弃全部数据
+ */
+public class CacheEntry {
+	private static final String TAG = "CacheEntry";
+	private static final String INDEX_FILE = "index";
+	private static final String SEGMENT_SUFFIX = ".seg";
+	/**版本2在总长度之后保存Content-Type、ETag、Last-Modified，版本3再加上核对时间和分段的校验值*/
+	private static final int INDEX_VERSION = 3;
+	/**新写入多少数据后保存一次index*/
+	private static final long INDEX_SAVE_INTERVAL = 1024 * 1024;
+	/**每个缓存最多同时打开的分段文件数*/
+	private static final int MAX_OPEN_SEGMENTS = 4;
+	/**计算校验值时读取分段用的缓冲区大小*/
+	private static final int CHECKSUM_BUFFER_SIZE = 64 * 1024;
+
+	private final String mKey;
+	private final File mDir;
+	private final int mSegmentSize;
+	/**已缓存的字节区间*/
+	private final RangeSet mRanges = new RangeSet();
+	/**资源的总长度，未知为-1*/
+	private long mContentLength = -1;
+	/**服务器返回的Content-Type、ETag、Last-Modified，本地生成Response时使用，没有为null*/
+	private String mContentType;
+	private String mETag;
+	private String mLastModified;
+	/**上次收到服务器Response(即和服务器核对)的时间*/
+	private long mValidatedTime = 0;
+	/**写满的分段的CRC32，分段序号 -> 校验值*/
+	private final HashMap<Integer, Long> mChecksums = new HashMap<Integer, Long>();
+	/**本次打开后已校验过的分段*/
+	private final HashSet<Integer> mVerified = new HashSet<Integer>();
+	/**数据被丢弃一次加1，之前的Response的数据不再写入*/
+	private int mGeneration = 0;
+	/**上次保存index之后新写入的字节数*/
+	private long mUnsavedBytes = 0;
+	/**index中除区间外的内容有改变，还没保存*/
+	private boolean mIndexDirty = false;
+	/**打开的分段文件，按访问顺序排列*/
+	private final LinkedHashMap<Integer, Segment> mOpenSegments = new LinkedHashMap<Integer, Segment>(8, 0.75f, true);
+	/**由CacheStore维护的引用计数*/
+	int mRefCount = 0;
+	/**缓存索引，只读取信息时为null*/
+	private final CacheIndex mIndex;
+
+	/**
+	 * 打开的分段文件，使用中的不会被关闭
+	 */
+	private static class Segment {
+		final RandomAccessFile file;
+		final FileChannel channel;
+		int users = 0;
+
+		Segment(File file) throws IOException {
+			this.file = new RandomAccessFile(file, "rw");
+			this.channel = this.file.getChannel();
+		}
+
+		void close() {
+			try {
+				file.close();
+			} catch (IOException e) {
+			}
+		}
+	}
+
+	CacheEntry(String key, File dir, int segmentSize, CacheIndex index) {
+		mKey = key;
+		mDir = dir;
+		mSegmentSize = segmentSize;
+		mIndex = index;
+		loadIndex();
+	}
+
+	public String getKey() {
+		return mKey;
+	}
+
+	File getDir() {
+		return mDir;
+	}
+
+	/**
+	 * 从position开始连续缓存的字节数
+	 */
+	public synchronized long getAvailableLength(long position) {
+		return mRanges.getContiguousLength(position);
+	}
+
+	/**
+	 * [start, end)中还没缓存的区间
+	 */
+	public synchronized List<long[]> getMissingRanges(long start, long end) {
+		return mRanges.getMissing(start, end);
+	}
+
+	/**
+	 * 已缓存的字节总数
+	 */
+	public synchronized long getCachedSize() {
+		return mRanges.getTotalLength();
+	}
+
+	/**
+	 * 资源总长度，未知时返回-1
+	 */
+	public synchronized long getContentLength() {
+		return mContentLength;
+	}
+
+	public synchronized void setContentLength(long contentLength) {
+		if (contentLength == mContentLength)
+			return;
+		mContentLength = contentLength;
+		saveIndex();
+	}
+
+	public synchronized String getContentType() {
+		return mContentType;
+	}
+
+	public synchronized String getETag() {
+		return mETag;
+	}
+
+	public synchronized String getLastModified() {
+		return mLastModified;
+	}
+
+	/**
+	 * 记录服务器Response中的元数据，参数为null的保留原来的值。
+	 * ETag(没有则Last-Modified)和已记录的不同时，资源已在服务器上改变，先丢弃已缓存的数据
+	 * @return 已缓存的数据是否仍然有效，被丢弃时返回false
+	 */
+	public synchronized boolean setMetadata(String contentType, String etag, String lastModified) {
+		boolean valid = !isModified(etag, lastModified);
+		if (!valid) {
+			if (Config.DEBUG)
+				Log.i(TAG, "modified on server:" + mKey + " " + mETag + "->" + etag);
+			discard();
+		}
+		mValidatedTime = System.currentTimeMillis();
+		mIndexDirty = true;
+		boolean changed = false;
+		if (contentType != null && !contentType.equals(mContentType)) {
+			mContentType = contentType;
+			changed = true;
+		}
+		if (etag != null && !etag.equals(mETag)) {
+			mETag = etag;
+			changed = true;
+		}
+		if (lastModified != null && !lastModified.equals(mLastModified)) {
+			mLastModified = lastModified;
+			changed = true;
+		}
+		if (changed)
+			saveIndex();
+		return valid;
+	}
+
+	/**
+	 * 丢弃所有数据，如服务器上的资源已改变但没有校验值时
+	 */
+	public synchronized void invalidate() {
+		discard();
+	}
+
+	/**
+	 * 服务器返回304，缓存仍然有效
+	 */
+	public synchronized void onValidated() {
+		mValidatedTime = System.currentTimeMillis();
+		mIndexDirty = true;
+	}
+
+	/**
+	 * 距上次和服务器核对不超过Config.CACHE_REVALIDATE_INTERVAL
+	 */
+	public synchronized boolean isFresh() {
+		long age = System.currentTimeMillis() - mValidatedTime;
+		return age >= 0 && age < Config.CACHE_REVALIDATE_INTERVAL;
+	}
+
+	/**
+	 * 数据被丢弃的次数，写入时带上，丢弃之前的Response的数据不再写入
+	 */
+	public synchronized int getGeneration() {
+		return mGeneration;
+	}
+
+	/**
+	 * 校验值只比较ETag，没有ETag时比较Last-Modified，都没有则无法判断
+	 */
+	private boolean isModified(String etag, String lastModified) {
+		if (etag != null && mETag != null)
+			return !stripWeak(etag).equals(stripWeak(mETag));
+		if (lastModified != null && mLastModified != null)
+			return !lastModified.equals(mLastModified);
+		return false;
+	}
+
+	private static String stripWeak(String etag) {
+		return etag.startsWith("W/") ? etag.substring(2) : etag;
+	}
+
+	/**
+	 * 丢弃所有数据和元数据，分段文件删除，正在使用的由最后一个使用者关闭
+	 */
+	private void discard() {
+		long size = mRanges.getTotalLength();
+		for (Segment segment : mOpenSegments.values()) {
+			if (segment.users == 0)
+				segment.close();
+		}
+		mOpenSegments.clear();
+		File[] files = mDir.listFiles();
+		if (files != null) {
+			for (File file : files) {
+				if (file.getName().endsWith(SEGMENT_SUFFIX))
+					file.delete();
+			}
+		}
+		mRanges.clear();
+		mChecksums.clear();
+		mVerified.clear();
+		mContentLength = -1;
+		mContentType = mETag = mLastModified = null;
+		mGeneration++;
+		mUnsavedBytes = 0;
+		saveIndex();
+		if (size > 0 && mIndex != null)
+			mIndex.onSizeChanged(mKey, -size);
+	}
+
+	/**
+	 * 校验[start, end)所在的分段
+	 * @return 校验后[start, end)是否仍全部缓存
+	 */
+	public boolean verify(long start, long end) throws IOException {
+		if (end <= start)
+			return true;
+		int last = (int) ((end - 1) / mSegmentSize);
+		for (int index = (int) (start / mSegmentSize); index <= last; index++) {
+			if (!verifySegment(index))
+				return false;
+		}
+		return isCached(start, end);
+	}
+	/**
+	 * [start, end)是否已全部缓存
+	 */
+	public synchronized boolean isCached(long start, long end) {
+		return mRanges.getContiguousLength(start) >= end - start;
+	}
+
+	/**
+	 * 把数据写到position的位置
+	 */
+	public void write(long position, byte[] data, int offset, int length) throws IOException {
+		write(position, ByteBuffer.wrap(data, offset, length));
+	}
+
+	/**
+	 * 把buffer中position到limit的数据写到文件的position位置，buffer的position会移到limit
+	 */
+	public void write(long position, ByteBuffer data) throws IOException {
+		write(position, data, getGeneration());
+	}
+
+	/**
+	 * 同write(long, ByteBuffer)，数据已被丢弃(generation不同)时不再写入
+	 * @param generation 收到Response时的getGeneration()
+	 */
+	public void write(long position, ByteBuffer data, int generation) throws IOException {
+		long start = position;
+		while (data.hasRemaining()) {
+			if (getGeneration() != generation) {
+				data.position(data.limit());
+				return;
+			}
+			int index = (int) (position / mSegmentSize);
+			int offsetInSegment = (int) (position % mSegmentSize);
+			int length = Math.min(data.remaining(), mSegmentSize - offsetInSegment);
+			int limit = data.limit();
+			data.limit(data.position() + length);
+			Segment segment = acquireSegment(index);
+			try {
+				while (data.hasRemaining())
+					offsetInSegment += segment.channel.write(data, offsetInSegment);
+			} finally {
+				data.limit(limit);
+				releaseSegment(index, segment);
+			}
+			position += length;
+		}
+		long added;
+		synchronized (this) {
+			if (mGeneration != generation)
+				return;
+			added = mRanges.add(start, position);
+			mUnsavedBytes += position - start;
+			if (mUnsavedBytes >= INDEX_SAVE_INTERVAL)
+				saveIndex();
+		}
+		if (added > 0 && mIndex != null)
+			mIndex.onSizeChanged(mKey, added);
+		if (added > 0)
+			updateChecksums((int) (start / mSegmentSize), (int) ((position - 1) / mSegmentSize), generation);
+	}
+
+	/**
+	 * 分段的数据长度，最后一段由总长度决定，总长度未知时按整段
+	 */
+	private long getSegmentLength(int index) {
+		long segmentStart = (long) index * mSegmentSize;
+		if (mContentLength > 0)
+			return Math.max(0, Math.min(mSegmentSize, mContentLength - segmentStart));
+		return mSegmentSize;
+	}
+
+	/**
+	 * 写满的分段计算校验值，读取文件在锁外进行
+	 */
+	private void updateChecksums(int first, int last, int generation) throws IOException {
+		for (int index = first; index <= last; index++) {
+			long length;
+			synchronized (this) {
+				if (mChecksums.containsKey(index))
+					continue;
+				length = getSegmentLength(index);
+				if (length <= 0 || !mRanges.contains((long) index * mSegmentSize, (long) index * mSegmentSize + length))
+					continue;
+			}
+			long checksum = computeChecksum(index, length);
+			synchronized (this) {
+				if (mGeneration != generation || length != getSegmentLength(index))
+					continue;
+				mChecksums.put(index, checksum);
+				mVerified.add(index);
+				mIndexDirty = true;
+			}
+		}
+	}
+
+	/**
+	 * 分段第一次读取时校验，不一致(如写了一半时断电)则去掉这一段的缓存
+	 * @return 分段是否可用
+	 */
+	private boolean verifySegment(int index) throws IOException {
+		Long expected;
+		long length;
+		int generation;
+		synchronized (this) {
+			if (mVerified.contains(index))
+				return true;
+			expected = mChecksums.get(index);
+			if (expected == null)// 没写满的分段没有校验值
+				return true;
+			length = getSegmentLength(index);
+			generation = mGeneration;
+		}
+		long checksum = computeChecksum(index, length);
+		long removed;
+		synchronized (this) {
+			if (mGeneration != generation)
+				return false;
+			if (checksum == expected.longValue()) {
+				mVerified.add(index);
+				return true;
+			}
+			Log.e(TAG, "checksum mismatch:" + mKey + " segment:" + index);
+			long segmentStart = (long) index * mSegmentSize;
+			removed = mRanges.remove(segmentStart, segmentStart + mSegmentSize);
+			mChecksums.remove(index);
+			saveIndex();
+		}
+		if (removed > 0 && mIndex != null)
+			mIndex.onSizeChanged(mKey, -removed);
+		return false;
+	}
+
+	private long computeChecksum(int index, long length) throws IOException {
+		CRC32 crc = new CRC32();
+		Segment segment = acquireSegment(index);
+		ByteBuffer buffer = SizeClassPool.HEAP.acquire(CHECKSUM_BUFFER_SIZE);
+		try {
+			long position = 0;
+			while (position < length) {
+				buffer.clear();
+				if (length - position < buffer.capacity())
+					buffer.limit((int) (length - position));
+				int n = segment.channel.read(buffer, position);
+				if (n <= 0)
+					return -1;// 文件比记录的短，一定不一致
+				crc.update(buffer.array(), 0, n);
+				position += n;
+			}
+			return crc.getValue();
+		} finally {
+			releaseSegment(index, segment);
+			SizeClassPool.HEAP.release(buffer);
+		}
+	}
+
+	/**
+	 * 缓存被命中，更新访问时间和命中次数
+	 */
+	public void onHit() {
+		if (mIndex != null)
+			mIndex.onAccess(mKey);
+	}
+
+	/**
+	 * 把position开始的连续缓存数据发送到target，最多count字节
+	 * @return 已发送的字节数
+	 */
+	public long transferTo(long position, long count, WritableByteChannel target) throws IOException {
+		count = Math.min(count, getAvailableLength(position));
+		long sent = 0;
+		while (sent < count) {
+			long current = position + sent;
+			int index = (int) (current / mSegmentSize);
+			long offsetInSegment = current % mSegmentSize;
+			long length = Math.min(count - sent, mSegmentSize - offsetInSegment);
+			if (!verifySegment(index))
+				return sent;
+			Segment segment = acquireSegment(index);
+			try {
+				long done = 0;
+				while (done < length) {
+					long n = segment.channel.transferTo(offsetInSegment + done, length - done, target);
+					if (n <= 0)
+						return sent + done;
+					done += n;
+				}
+			} finally {
+				releaseSegment(index, segment);
+			}
+			sent += length;
+		}
+		return sent;
+	}
+
+	/**
+	 * 把position开始的缓存数据读到buffer，返回读取的字节数，没有缓存返回-1
+	 */
+	public int read(long position, ByteBuffer buffer) throws IOException {
+		long available = getAvailableLength(position);
+		if (available <= 0)
+			return -1;
+		int index = (int) (position / mSegmentSize);
+		if (!verifySegment(index))
+			return -1;
+		long offsetInSegment = position % mSegmentSize;
+		int length = (int) Math.min(Math.min(available, buffer.remaining()), mSegmentSize - offsetInSegment);
+		int limit = buffer.limit();
+		buffer.limit(buffer.position() + length);
+		Segment segment = acquireSegment(index);
+		int read = 0;
+		try {
+			while (buffer.hasRemaining()) {
+				int n = segment.channel.read(buffer, offsetInSegment + read);
+				if (n <= 0)
+					break;
+				read += n;
+			}
+		} finally {
+			buffer.limit(limit);
+			releaseSegment(index, segment);
+		}
+		return read;
+	}
+
+	/**
+	 * 保存index
+	 */
+	public synchronized void flush() {
+		if (mUnsavedBytes > 0 || mIndexDirty)
+			saveIndex();
+	}
+
+	/**
+	 * 保存index并关闭所有分段文件，由CacheStore在没有引用时调用
+	 */
+	synchronized void close() {
+		flush();
+		mDir.setLastModified(System.currentTimeMillis());// 重启后作为最近访问时间
+		Iterator<Segment> it = mOpenSegments.values().iterator();
+		while (it.hasNext()) {
+			Segment segment = it.next();
+			if (segment.users == 0) {
+				segment.close();
+				it.remove();
+			}
+		}
+	}
+
+	/**
+	 * 删除所有数据，由CacheStore调用
+	 */
+	synchronized void delete() {
+		for (Segment segment : mOpenSegments.values())
+			segment.close();
+		mOpenSegments.clear();
+		mRanges.clear();
+		mChecksums.clear();
+		mVerified.clear();
+		mUnsavedBytes = 0;
+		mIndexDirty = false;
+		CommonUtil.deleteFile(mDir);
+	}
+
+	private synchronized Segment acquireSegment(int index) throws IOException {
+		Segment segment = mOpenSegments.get(index);
+		if (segment == null) {
+			if (!mDir.exists())
+				mDir.mkdirs();
+			segment = new Segment(new File(mDir, index + SEGMENT_SUFFIX));
+			mOpenSegments.put(index, segment);
+			trimOpenSegments();
+		}
+		segment.users++;
+		return segment;
+	}
+
+	private synchronized void releaseSegment(int index, Segment segment) {
+		segment.users--;
+		if (mOpenSegments.get(index) != segment && segment.users == 0)
+			segment.close();// 已经被挤出，最后一个使用者负责关闭
+		else
+			trimOpenSegments();
+	}
+
+	/**
+	 * 关闭最久未用且没在使用中的分段文件
+	 */
+	private void trimOpenSegments() {
+		if (mOpenSegments.size() <= MAX_OPEN_SEGMENTS)
+			return;
+		Iterator<Map.Entry<Integer, Segment>> it = mOpenSegments.entrySet().iterator();
+		while (mOpenSegments.size() > MAX_OPEN_SEGMENTS && it.hasNext()) {
+			Segment segment = it.next().getValue();
+			if (segment.users == 0) {
+				segment.close();
+				it.remove();
+			}
+		}
+	}
+
+	private void loadIndex() {
+		File file = new File(mDir, INDEX_FILE);
+		if (!file.exists())
+			return;
+		DataInputStream in = null;
+		try {
+			in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+			int version = in.readInt();
+			if (version < 1 || version > INDEX_VERSION || in.readInt() != mSegmentSize)
+				throw new IOException("index version mismatch");
+			mContentLength = in.readLong();
+			if (version >= 2) {// 版本1没有元数据
+				mContentType = readString(in);
+				mETag = readString(in);
+				mLastModified = readString(in);
+			}
+			if (version >= 3)
+				mValidatedTime = in.readLong();
+			mRanges.read(in);
+			if (version >= 3) {
+				int count = in.readInt();
+				for (int i = 0; i < count; i++) {
+					int index = in.readInt();
+					mChecksums.put(index, in.readLong());
+				}
+			}
+		} catch (IOException e) {// index损坏，当作没有缓存
+			Log.e(TAG, "bad index:" + file + " " + e.toString());
+			mRanges.clear();
+			mContentLength = -1;
+			mContentType = mETag = mLastModified = null;
+			mChecksums.clear();
+		} finally {
+			if (in != null) {
+				try {
+					in.close();
+				} catch (IOException e) {
+				}
+			}
+		}
+	}
+
+	/**
+	 * 先写临时文件再改名，避免index写了一半
+	 */
+	private void saveIndex() {
+		if (!mDir.exists() && !mDir.mkdirs())
+			return;
+		File tmp = new File(mDir, INDEX_FILE + ".tmp");
+		DataOutputStream out = null;
+		try {
+			out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+			out.writeInt(INDEX_VERSION);
+			out.writeInt(mSegmentSize);
+			out.writeLong(mContentLength);
+			writeString(out, mContentType);
+			writeString(out, mETag);
+			writeString(out, mLastModified);
+			out.writeLong(mValidatedTime);
+			mRanges.write(out);
+			out.writeInt(mChecksums.size());
+			for (Map.Entry<Integer, Long> checksum : mChecksums.entrySet()) {
+				out.writeInt(checksum.getKey());
+				out.writeLong(checksum.getValue());
+			}
+			out.close();
+			out = null;
+			if (tmp.renameTo(new File(mDir, INDEX_FILE))) {
+				mUnsavedBytes = 0;
+				mIndexDirty = false;
+			}
+		} catch (IOException e) {
+			Log.e(TAG, "save index:" + e.toString());
+		} finally {
+			if (out != null) {
+				try {
+					out.close();
+				} catch (IOException e) {
+				}
+			}
+		}
+	}
+
+	/**
+	 * null保存为空字符串
+	 */
+	private static void writeString(DataOutputStream out, String value) throws IOException {
+		out.writeUTF(value == null ? "" : value);
+	}
+
+	private static String readString(DataInputStream in) throws IOException {
+		String value = in.readUTF();
+		return value.length() == 0 ? null : value;
+	}
+}
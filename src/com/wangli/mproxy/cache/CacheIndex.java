@@ -0,0 +1,229 @@
+package com.wangli.mproxy.cache;
+
+import com.wangli.mproxy.utils.Config;
+
+import android.util.Log;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * 内存中的缓存索引，启动时扫描一次缓存目录，之后随读写更新。
+ * 超过总字节数或数量上限时，在唯一的后台线程中按淘汰策略删除没在使用中的缓存
+ */
+public class CacheIndex {
+	private static final String TAG = "CacheIndex";
+
+	private final CacheStore mStore;
+	private final Map<String, CacheInfo> mInfos = new HashMap<String, CacheInfo>();
+	private long mTotalSize = 0;
+	/**淘汰的缓存数*/
+	private long mEvictionCount = 0;
+	private volatile long mMaxBytes;
+	private volatile int mMaxCount;
+	private volatile EvictionPolicy mPolicy = EvictionPolicy.LRU;
+	private final ExecutorService mExecutor;
+	/**已安排了淘汰任务，避免重复安排*/
+	private final AtomicBoolean mTrimScheduled = new AtomicBoolean(false);
+
+	/**
+	 * @param store 缓存
+	 * @param maxBytes 缓存总字节数上限
+	 * @param maxCount 缓存数量上限
+	 */
+	CacheIndex(CacheStore store, long maxBytes, int maxCount) {
+		mStore = store;
+		mMaxBytes = maxBytes;
+		mMaxCount = maxCount;
+		mExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "CacheEvictor");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		mExecutor.execute(new Runnable() {
+			public void run() {
+				load();
+				trim();
+			}
+		});
+	}
+
+	public void setLimits(long maxBytes, int maxCount) {
+		mMaxBytes = maxBytes;
+		mMaxCount = maxCount;
+		scheduleTrim();
+	}
+
+	public void setPolicy(EvictionPolicy policy) {
+		mPolicy = policy;
+	}
+
+	public synchronized long getTotalSize() {
+		return mTotalSize;
+	}
+
+	public synchronized int getCount() {
+		return mInfos.size();
+	}
+
+	/**
+	 * 启动以来淘汰的缓存数
+	 */
+	public synchronized long getEvictionCount() {
+		return mEvictionCount;
+	}
+
+	/**
+	 * 缓存被命中
+	 */
+	synchronized void onAccess(String key) {
+		CacheInfo info = getOrCreate(key);
+		info.hitCount++;
+		info.lastAccessTime = System.currentTimeMillis();
+	}
+
+	/**
+	 * 缓存的字节数变化
+	 */
+	void onSizeChanged(String key, long delta) {
+		boolean over;
+		synchronized (this) {
+			CacheInfo info = getOrCreate(key);
+			info.size += delta;
+			info.lastAccessTime = System.currentTimeMillis();
+			mTotalSize += delta;
+			over = isOverLimit();
+		}
+		if (over)
+			scheduleTrim();
+	}
+
+	/**
+	 * 缓存不再使用，之前因为使用中而跳过的可以淘汰了
+	 */
+	void onReleased() {
+		boolean over;
+		synchronized (this) {
+			over = isOverLimit();
+		}
+		if (over)
+			scheduleTrim();
+	}
+
+	synchronized void onRemoved(String key) {
+		CacheInfo info = mInfos.remove(key);
+		if (info != null)
+			mTotalSize -= info.size;
+	}
+
+	private CacheInfo getOrCreate(String key) {
+		CacheInfo info = mInfos.get(key);
+		if (info == null) {
+			info = new CacheInfo(key);
+			mInfos.put(key, info);
+		}
+		return info;
+	}
+
+	private boolean isOverLimit() {
+		return mTotalSize > mMaxBytes || mInfos.size() > mMaxCount;
+	}
+
+	private void scheduleTrim() {
+		if (mTrimScheduled.compareAndSet(false, true)) {
+			try {
+				mExecutor.execute(new Runnable() {
+					public void run() {
+						mTrimScheduled.set(false);
+						trim();
+					}
+				});
+			} catch (RejectedExecutionException e) {// 已close
+				mTrimScheduled.set(false);
+			}
+		}
+	}
+
+	/**
+	 * 已安排的淘汰完成后结束淘汰线程，之后不再自动淘汰
+	 */
+	void close() {
+		mExecutor.shutdown();
+	}
+
+	/**
+	 * 扫描缓存目录，旧版本留下的单个文件直接删除
+	 */
+	private void load() {
+		File[] files = mStore.getDir().listFiles();
+		if (files == null)
+			return;
+		for (int i = 0; i < files.length; i++) {
+			File file = files[i];
+			if (!file.isDirectory()) {
+				file.delete();
+				continue;
+			}
+			String key = file.getName();
+			long size = new CacheEntry(key, file, mStore.getSegmentSize(), null).getCachedSize();
+			synchronized (this) {
+				if (mInfos.containsKey(key))// 启动后已经访问过
+					continue;
+				CacheInfo info = new CacheInfo(key);
+				info.size = size;
+				info.lastAccessTime = file.lastModified();
+				mInfos.put(key, info);
+				mTotalSize += size;
+			}
+		}
+		if (Config.DEBUG)
+			Log.i(TAG, "loaded:" + getCount() + " size:" + getTotalSize());
+	}
+
+	/**
+	 * 按淘汰策略删除缓存直到不超过上限，使用中的缓存跳过
+	 */
+	private void trim() {
+		List<CacheInfo> candidates;
+		synchronized (this) {
+			if (!isOverLimit())
+				return;
+			// 复制一份再排序，排序过程中信息可能被修改
+			candidates = new ArrayList<CacheInfo>(mInfos.size());
+			for (CacheInfo info : mInfos.values()) {
+				CacheInfo copy = new CacheInfo(info.key);
+				copy.size = info.size;
+				copy.lastAccessTime = info.lastAccessTime;
+				copy.hitCount = info.hitCount;
+				candidates.add(copy);
+			}
+		}
+		Collections.sort(candidates, mPolicy);
+		for (int i = 0; i < candidates.size(); i++) {
+			synchronized (this) {
+				if (!isOverLimit())
+					return;
+			}
+			String key = candidates.get(i).key;
+			if (mStore.delete(key)) {
+				onRemoved(key);
+				synchronized (this) {
+					mEvictionCount++;
+				}
+				if (Config.DEBUG)
+					Log.i(TAG, "evict:" + key);
+			}
+		}
+	}
+}
@@ -0,0 +1,19 @@
+package com.wangli.mproxy.cache;
+
+/**
+ * 缓存索引中一个资源的信息，供淘汰策略使用
+ */
+public class CacheInfo {
+	/**缓存名称*/
+	public final String key;
+	/**已缓存的字节数*/
+	public long size;
+	/**最近一次访问的时间*/
+	public long lastAccessTime;
+	/**命中次数*/
+	public int hitCount;
+
+	public CacheInfo(String key) {
+		this.key = key;
+	}
+}
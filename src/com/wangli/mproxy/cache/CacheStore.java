@@ -0,0 +1,200 @@
+package com.wangli.mproxy.cache;
+
+import com.wangli.mproxy.utils.CommonUtil;
+import com.wangli.mproxy.utils.Config;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * 缓存目录，每个资源一个子目录。同一个资源在多个会话和下载之间共用一个CacheEntry，
+ * 超过上限时由CacheIndex淘汰没在使用中的缓存
+ */
+public class CacheStore {
+	private final File mDir;
+	private final int mSegmentSize;
+	/**已打开的缓存*/
+	private final Map<String, CacheEntry> mOpenEntries = new HashMap<String, CacheEntry>();
+	private final CacheIndex mIndex;
+	/**生成缓存名称时忽略的查询参数*/
+	private static volatile Set<String> sIgnoredParams = toSet(Config.CACHE_IGNORED_QUERY_PARAMS);
+
+	/**
+	 * @param dirPath 缓存目录
+	 * @param maxBytes 缓存总字节数上限
+	 * @param maxCount 缓存数量上限
+	 */
+	public CacheStore(String dirPath, long maxBytes, int maxCount) {
+		this(dirPath, Config.CACHE_SEGMENT_SIZE, maxBytes, maxCount);
+	}
+
+	public CacheStore(String dirPath, int segmentSize, long maxBytes, int maxCount) {
+		mDir = new File(dirPath);
+		mSegmentSize = segmentSize;
+		mIndex = new CacheIndex(this, maxBytes, maxCount);
+	}
+
+	/**
+	 * url对应的缓存名称：规范化后的url的MD5，长度固定，不会因为去掉特殊字符而重名
+	 */
+	public static String getCacheKey(String url) {
+		return CommonUtil.getMD5(normalizeUrl(url));
+	}
+
+	/**
+	 * 设置生成缓存名称时忽略的查询参数(不区分大小写)，如CDN链接中会过期的签名，
+	 * 签名不同的同一资源共用缓存。对所有CacheStore生效，之前生成的缓存名称不变
+	 */
+	public static void setIgnoredQueryParams(String[] names) {
+		sIgnoredParams = toSet(names == null ? new String[0] : names);
+	}
+
+	/**
+	 * 去掉#之后的部分和忽略的查询参数，协议和主机名转为小写
+	 */
+	static String normalizeUrl(String url) {
+		int hash = url.indexOf('#');
+		if (hash != -1)
+			url = url.substring(0, hash);
+		int hostEnd = url.indexOf("://");
+		if (hostEnd != -1) {
+			hostEnd = url.indexOf('/', hostEnd + 3);
+			if (hostEnd == -1)
+				hostEnd = url.length();
+			url = url.substring(0, hostEnd).toLowerCase(Locale.US) + url.substring(hostEnd);
+		}
+		Set<String> ignored = sIgnoredParams;
+		int query = url.indexOf('?');
+		if (query == -1 || ignored.isEmpty())
+			return url;
+		StringBuilder sb = new StringBuilder(url.length());
+		sb.append(url, 0, query);
+		char separator = '?';
+		for (String param : url.substring(query + 1).split("&")) {
+			if (param.length() == 0)
+				continue;
+			int equals = param.indexOf('=');
+			String name = equals == -1 ? param : param.substring(0, equals);
+			if (ignored.contains(name.toLowerCase(Locale.US)))
+				continue;
+			sb.append(separator).append(param);
+			separator = '&';
+		}
+		return sb.toString();
+	}
+
+	private static Set<String> toSet(String[] names) {
+		Set<String> set = new HashSet<String>();
+		for (String name : names)
+			set.add(name.toLowerCase(Locale.US));
+		return set;
+	}
+
+	public File getDir() {
+		return mDir;
+	}
+
+	int getSegmentSize() {
+		return mSegmentSize;
+	}
+
+	public CacheIndex getIndex() {
+		return mIndex;
+	}
+
+	/**
+	 * 结束后台的淘汰线程，已打开的缓存仍可使用和release
+	 */
+	public void close() {
+		mIndex.close();
+	}
+
+	/**
+	 * 打开缓存，用完必须调用release
+	 * @param key 缓存的名称，需要是有效的文件名
+	 */
+	public synchronized CacheEntry open(String key) {
+		CacheEntry entry = mOpenEntries.get(key);
+		if (entry == null) {
+			entry = new CacheEntry(key, new File(mDir, key), mSegmentSize, mIndex);
+			mOpenEntries.put(key, entry);
+		}
+		entry.mRefCount++;
+		return entry;
+	}
+
+	/**
+	 * 释放缓存，没有引用时保存index并关闭文件
+	 */
+	public synchronized void release(CacheEntry entry) {
+		if (entry == null)
+			return;
+		if (--entry.mRefCount > 0)
+			return;
+		mOpenEntries.remove(entry.getKey());
+		entry.close();
+		if (entry.getCachedSize() == 0) {// 清除空的缓存
+			entry.delete();
+			mIndex.onRemoved(entry.getKey());
+		}
+		mIndex.onReleased();
+	}
+
+	/**
+	 * 不打开缓存，获取从position开始连续缓存的字节数
+	 */
+	public long getAvailableLength(String key, long position) {
+		CacheEntry entry = open(key);
+		try {
+			return entry.getAvailableLength(position);
+		} finally {
+			release(entry);
+		}
+	}
+
+	/**
+	 * 不打开缓存，获取资源总长度，未知时返回-1
+	 */
+	public long getContentLength(String key) {
+		CacheEntry entry = open(key);
+		try {
+			return entry.getContentLength();
+		} finally {
+			release(entry);
+		}
+	}
+
+	/**
+	 * 不打开缓存，获取缓存是否最近和服务器核对过
+	 */
+	public boolean isFresh(String key) {
+		CacheEntry entry = open(key);
+		try {
+			return entry.isFresh();
+		} finally {
+			release(entry);
+		}
+	}
+
+	/**
+	 * 缓存是否正在被使用
+	 */
+	public synchronized boolean isOpen(String key) {
+		return mOpenEntries.containsKey(key);
+	}
+
+	/**
+	 * 删除没在使用中的缓存
+	 * @return 正在使用中则返回false
+	 */
+	public synchronized boolean delete(String key) {
+		if (mOpenEntries.containsKey(key))
+			return false;
+		CommonUtil.deleteFile(new File(mDir, key));
+		return true;
+	}
+}
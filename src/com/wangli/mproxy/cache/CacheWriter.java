@@ -0,0 +1,150 @@
+package com.wangli.mproxy.cache;
+
+import com.wangli.mproxy.utils.BufferPool;
+import com.wangli.mproxy.utils.CommonUtil;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 在后台线程把中转的数据写入缓存。待写的数据有上限，超过上限的数据直接丢弃(缓存中留下空缺，以后再补)，
+ * 磁盘再慢也不会阻塞MediaPlayer的连接。写入循环占用调用者提供的线程池中的一个线程，close后结束
+ */
+public class CacheWriter {
+	private static final String TAG = "CacheWriter";
+	private static final int CHUNK_SIZE = 64 * 1024;
+
+	/**
+	 * 一次写入，buffer为null时表示释放entry，entry也为null时表示结束写入循环
+	 */
+	private static class Task {
+		final CacheEntry entry;
+		final long position;
+		final ByteBuffer buffer;
+		final int generation;
+
+		Task(CacheEntry entry, long position, ByteBuffer buffer, int generation) {
+			this.entry = entry;
+			this.position = position;
+			this.buffer = buffer;
+			this.generation = generation;
+		}
+	}
+
+	private final CacheStore mStore;
+	private final int mMaxPendingChunks;
+	private final BufferPool mBufferPool;
+	private final LinkedBlockingQueue<Task> mQueue = new LinkedBlockingQueue<Task>();
+	/**队列中待写的缓冲区数量*/
+	private final AtomicInteger mPendingChunks = new AtomicInteger();
+	/**写入循环结束时计数到0*/
+	private final CountDownLatch mFinished = new CountDownLatch(1);
+	private volatile boolean mClosed = false;
+
+	/**
+	 * @param store 缓存
+	 * @param maxPendingBytes 最多等待写入的数据量
+	 * @param executor 运行写入循环
+	 */
+	public CacheWriter(CacheStore store, int maxPendingBytes, Executor executor) {
+		mStore = store;
+		mMaxPendingChunks = Math.max(1, maxPendingBytes / CHUNK_SIZE);
+		mBufferPool = new BufferPool(CHUNK_SIZE, mMaxPendingChunks, false);
+		executor.execute(new Runnable() {
+			public void run() {
+				writeLoop();
+			}
+		});
+	}
+
+	/**
+	 * 复制data中的数据，排队写到entry的position位置，不会阻塞
+	 * @param generation 收到Response时entry的getGeneration()，写入前数据已被丢弃则不再写入
+	 * @return 待写的数据已满或已close而丢弃时返回false
+	 */
+	public boolean write(CacheEntry entry, long position, ByteBuffer data, int generation) {
+		if (mClosed)
+			return false;
+		ByteBuffer source = data.duplicate();
+		while (source.hasRemaining()) {
+			if (mPendingChunks.incrementAndGet() > mMaxPendingChunks) {
+				mPendingChunks.decrementAndGet();
+				return false;
+			}
+			ByteBuffer buffer = mBufferPool.acquire();
+			int length = Math.min(buffer.remaining(), source.remaining());
+			int limit = source.limit();
+			source.limit(source.position() + length);
+			buffer.put(source);
+			source.limit(limit);
+			buffer.flip();
+			mQueue.offer(new Task(entry, position, buffer, generation));
+			position += length;
+		}
+		return true;
+	}
+
+	/**
+	 * 之前排队的数据都写完后，释放entry。close之后等写入循环结束，在调用的线程中释放
+	 */
+	public void release(CacheEntry entry) {
+		synchronized (this) {
+			if (!mClosed) {
+				mQueue.offer(new Task(entry, 0, null, 0));
+				return;
+			}
+		}
+		try {
+			mFinished.await();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		mStore.release(entry);
+	}
+
+	/**
+	 * 之前排队的数据都写完、entry都释放后结束写入循环，之后写入的数据丢弃
+	 */
+	public synchronized void close() {
+		if (mClosed)
+			return;
+		mClosed = true;
+		mQueue.offer(new Task(null, 0, null, 0));
+	}
+
+	private void writeLoop() {
+		try {
+			while (true) {
+				Task task;
+				try {
+					task = mQueue.take();
+				} catch (InterruptedException e) {
+					return;
+				}
+				if (task.entry == null)
+					return;
+				if (task.buffer == null) {
+					mStore.release(task.entry);
+					continue;
+				}
+				try {
+					task.entry.write(task.position, task.buffer, task.generation);
+				} catch (IOException e) {
+					Log.e(TAG, e.toString());
+					Log.e(TAG, CommonUtil.getExceptionMessage(e));
+				} finally {
+					mBufferPool.release(task.buffer);
+					mPendingChunks.decrementAndGet();
+				}
+			}
+		} finally {
+			mFinished.countDown();// close之后的release在等待
+		}
+	}
+}
@@ -0,0 +1,39 @@
+package com.wangli.mproxy.cache;
+
+import java.util.Comparator;
+
+/**
+ * 缓存淘汰策略，按淘汰的先后排序，先淘汰的排在前面
+ */
+public interface EvictionPolicy extends Comparator<CacheInfo> {
+
+	/**最久未访问的先淘汰*/
+	EvictionPolicy LRU = new EvictionPolicy() {
+		public int compare(CacheInfo a, CacheInfo b) {
+			return Long.valueOf(a.lastAccessTime).compareTo(b.lastAccessTime);
+		}
+	};
+
+	/**命中次数少的先淘汰，次数相同则最久未访问的先淘汰*/
+	EvictionPolicy LFU = new EvictionPolicy() {
+		public int compare(CacheInfo a, CacheInfo b) {
+			if (a.hitCount != b.hitCount)
+				return a.hitCount < b.hitCount ? -1 : 1;
+			return Long.valueOf(a.lastAccessTime).compareTo(b.lastAccessTime);
+		}
+	};
+
+	/**
+	 * 按每字节的命中数淘汰，占空间大而命中少的先淘汰，命中数相同则最久未访问的先淘汰
+	 */
+	EvictionPolicy SIZE = new EvictionPolicy() {
+		public int compare(CacheInfo a, CacheInfo b) {
+			// (a.hitCount + 1) / a.size 与 (b.hitCount + 1) / b.size 比较
+			double left = (a.hitCount + 1) * (double) Math.max(1, b.size);
+			double right = (b.hitCount + 1) * (double) Math.max(1, a.size);
+			if (left != right)
+				return left < right ? -1 : 1;
+			return Long.valueOf(a.lastAccessTime).compareTo(b.lastAccessTime);
+		}
+	};
+}
@@ -0,0 +1,183 @@
+package com.wangli.mproxy.cache;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 有序、互不重叠的字节区间集合，区间为[start, end)。非线程安全，由调用者加锁
+ */
+public class RangeSet {
+	/**每个区间两个值：start, end*/
+	private long[] mRanges = new long[16];
+	/**区间数量*/
+	private int mCount = 0;
+
+	/**
+	 * 加入区间[start, end)，与已有区间重叠或相邻的会合并
+	 * @return 新增的字节数，不含原来已有的部分
+	 */
+	public long add(long start, long end) {
+		if (end <= start)
+			return 0;
+		// 找到第一个end >= start的区间，即可能与新区间合并的第一个
+		int first = 0;
+		while (first < mCount && mRanges[first * 2 + 1] < start)
+			first++;
+		int last = first;
+		long existing = 0;
+		while (last < mCount && mRanges[last * 2] <= end) {
+			existing += mRanges[last * 2 + 1] - mRanges[last * 2];
+			start = Math.min(start, mRanges[last * 2]);
+			end = Math.max(end, mRanges[last * 2 + 1]);
+			last++;
+		}
+		int merged = last - first;
+		if (merged == 0) {// 插入新区间
+			ensureCapacity(mCount + 1);
+			System.arraycopy(mRanges, first * 2, mRanges, first * 2 + 2, (mCount - first) * 2);
+			mCount++;
+		} else if (merged > 1) {// 多个区间合并成一个
+			System.arraycopy(mRanges, last * 2, mRanges, first * 2 + 2, (mCount - last) * 2);
+			mCount -= merged - 1;
+		}
+		mRanges[first * 2] = start;
+		mRanges[first * 2 + 1] = end;
+		return end - start - existing;
+	}
+
+	/**
+	 * 去掉区间[start, end)，部分重叠的区间被截短或拆成两个
+	 * @return 去掉的字节数
+	 */
+	public long remove(long start, long end) {
+		if (end <= start)
+			return 0;
+		long removed = 0;
+		long[] ranges = new long[Math.max(16, (mCount + 1) * 2)];
+		int count = 0;
+		for (int i = 0; i < mCount; i++) {
+			long rangeStart = mRanges[i * 2];
+			long rangeEnd = mRanges[i * 2 + 1];
+			if (rangeEnd <= start || rangeStart >= end) {// 不重叠
+				ranges[count * 2] = rangeStart;
+				ranges[count * 2 + 1] = rangeEnd;
+				count++;
+				continue;
+			}
+			removed += Math.min(rangeEnd, end) - Math.max(rangeStart, start);
+			if (rangeStart < start) {
+				ranges[count * 2] = rangeStart;
+				ranges[count * 2 + 1] = start;
+				count++;
+			}
+			if (rangeEnd > end) {
+				ranges[count * 2] = end;
+				ranges[count * 2 + 1] = rangeEnd;
+				count++;
+			}
+		}
+		mRanges = ranges;
+		mCount = count;
+		return removed;
+	}
+
+	/**
+	 * 从position开始连续可用的字节数，position不在任何区间内则为0
+	 */
+	public long getContiguousLength(long position) {
+		for (int i = 0; i < mCount; i++) {
+			long start = mRanges[i * 2];
+			if (start > position)
+				break;
+			long end = mRanges[i * 2 + 1];
+			if (end > position)
+				return end - position;
+		}
+		return 0;
+	}
+
+	/**
+	 * [start, end)是否全部可用
+	 */
+	public boolean contains(long start, long end) {
+		return getContiguousLength(start) >= end - start;
+	}
+
+	/**
+	 * [start, end)中缺少的区间
+	 */
+	public List<long[]> getMissing(long start, long end) {
+		List<long[]> result = new ArrayList<long[]>();
+		long position = start;
+		for (int i = 0; i < mCount && position < end; i++) {
+			long rangeStart = mRanges[i * 2];
+			long rangeEnd = mRanges[i * 2 + 1];
+			if (rangeEnd <= position)
+				continue;
+			if (rangeStart > position)
+				result.add(new long[] { position, Math.min(rangeStart, end) });
+			position = Math.max(position, rangeEnd);
+		}
+		if (position < end)
+			result.add(new long[] { position, end });
+		return result;
+	}
+
+	/**
+	 * 所有区间的字节总数
+	 */
+	public long getTotalLength() {
+		long total = 0;
+		for (int i = 0; i < mCount; i++)
+			total += mRanges[i * 2 + 1] - mRanges[i * 2];
+		return total;
+	}
+
+	public int size() {
+		return mCount;
+	}
+
+	public void clear() {
+		mCount = 0;
+	}
+
+	public void write(DataOutput out) throws IOException {
+		out.writeInt(mCount);
+		for (int i = 0; i < mCount * 2; i++)
+			out.writeLong(mRanges[i]);
+	}
+
+	public void read(DataInput in) throws IOException {
+		clear();
+		int count = in.readInt();
+		if (count < 0)
+			throw new IOException("bad range count:" + count);
+		for (int i = 0; i < count; i++) {
+			long start = in.readLong();
+			long end = in.readLong();
+			add(start, end);
+		}
+	}
+
+	private void ensureCapacity(int count) {
+		if (count * 2 <= mRanges.length)
+			return;
+		long[] ranges = new long[Math.max(count * 2, mRanges.length * 2)];
+		System.arraycopy(mRanges, 0, ranges, 0, mCount * 2);
+		mRanges = ranges;
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder("[");
+		for (int i = 0; i < mCount; i++) {
+			if (i > 0)
+				sb.append(',');
+			sb.append(mRanges[i * 2]).append('-').append(mRanges[i * 2 + 1]);
+		}
+		return sb.append(']').toString();
+	}
+}
@@ -0,0 +1,46 @@
+package com.wangli.mproxy.httpget;
+
+/**
+ * 下载带宽的估计：中转和预加载每次阻塞读取的字节数和耗时累计成样本，
+ * 每个样本的速度按指数加权移动平均(EWMA)合并，近期的样本权重大
+ */
+public class BandwidthMeter {
+	/**每个样本至少包含的字节数，太小的读取耗时不准*/
+	private static final long SAMPLE_BYTES = 128 * 1024;
+	/**新样本的权重*/
+	private static final double WEIGHT = 0.3;
+
+	private long mSampleBytes = 0;
+	private long mSampleNanos = 0;
+	/**估计的带宽，字节/秒，还没有样本为-1*/
+	private long mEstimate = -1;
+
+	/**
+	 * 记录一次读取
+	 * @param bytes 读到的字节数
+	 * @param nanos 读取的耗时，纳秒
+	 */
+	public synchronized void onTransfer(long bytes, long nanos) {
+		if (bytes <= 0)
+			return;
+		mSampleBytes += bytes;
+		mSampleNanos += nanos;
+		if (mSampleBytes < SAMPLE_BYTES)
+			return;
+		long rate = mSampleBytes * 1000000000L / Math.max(1, mSampleNanos);
+		if (mEstimate == -1)
+			mEstimate = rate;
+		else
+			mEstimate = (long) (WEIGHT * rate + (1 - WEIGHT) * mEstimate);
+		mSampleBytes = 0;
+		mSampleNanos = 0;
+	}
+
+	/**
+	 * 估计的带宽，字节/秒
+	 * @return 还没有样本时返回-1
+	 */
+	public synchronized long getEstimate() {
+		return mEstimate;
+	}
+}
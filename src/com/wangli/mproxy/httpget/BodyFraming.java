@@ -0,0 +1,220 @@
+package com.wangli.mproxy.httpget;
+
+import com.wangli.mproxy.bean.ProxyResponse;
+
+import java.io.IOException;
+
+/**
+ * Response消息体的分帧：按Content-Length计数，或逐字节扫描chunked编码，
+ * 用来判断消息体在哪里结束，以及连接能否复用
+ */
+public class BodyFraming {
+	/**没有消息体，如204、304*/
+	private static final int TYPE_NONE = 0;
+	/**Content-Length*/
+	private static final int TYPE_LENGTH = 1;
+	/**Transfer-Encoding: chunked*/
+	private static final int TYPE_CHUNKED = 2;
+	/**读到连接关闭为止*/
+	private static final int TYPE_UNTIL_CLOSE = 3;
+
+	// chunked的扫描状态
+	private static final int STATE_SIZE = 0;
+	private static final int STATE_SIZE_EXT = 1;
+	private static final int STATE_SIZE_LF = 2;
+	private static final int STATE_DATA = 3;
+	private static final int STATE_DATA_CR = 4;
+	private static final int STATE_DATA_LF = 5;
+	private static final int STATE_TRAILER = 6;
+	private static final int STATE_TRAILER_LINE = 7;
+	private static final int STATE_FINAL_LF = 8;
+	private static final int STATE_DONE = 9;
+
+	private final int mType;
+	private final boolean mKeepAlive;
+	/**Content-Length剩余的字节数，或当前chunk剩余的字节数*/
+	private long mRemaining;
+	private int mState = STATE_SIZE;
+	/**读到了连接关闭*/
+	private boolean mEof;
+	/**消息体之后还有多余的数据，连接不能复用*/
+	private boolean mOverrun;
+
+	/**
+	 * @param response Response的头
+	 * @param head 是否HEAD请求的Response
+	 */
+	public BodyFraming(ProxyResponse response, boolean head) {
+		mKeepAlive = response.keepAlive;
+		int code = response.statusCode;
+		if (head || (code >= 100 && code < 200) || code == 204 || code == 304) {
+			mType = TYPE_NONE;
+		} else if (response.chunked) {
+			mType = TYPE_CHUNKED;
+		} else if (response.contentLength >= 0) {
+			mType = TYPE_LENGTH;
+			mRemaining = response.contentLength;
+		} else {
+			mType = TYPE_UNTIL_CLOSE;
+		}
+	}
+
+	/**
+	 * 消息体是否已全部收到
+	 */
+	public boolean isComplete() {
+		switch (mType) {
+		case TYPE_NONE:
+			return true;
+		case TYPE_LENGTH:
+			return mRemaining == 0;
+		case TYPE_CHUNKED:
+			return mState == STATE_DONE;
+		default:
+			return mEof;
+		}
+	}
+
+	/**
+	 * 消息体已完整收到，没有多余的数据，服务器也允许keep-alive，连接可以归还连接池
+	 */
+	public boolean isReusable() {
+		return mKeepAlive && !mOverrun && mType != TYPE_UNTIL_CLOSE && isComplete();
+	}
+
+	public boolean isChunked() {
+		return mType == TYPE_CHUNKED;
+	}
+
+	/**
+	 * 按Content-Length分帧时剩余的字节数，其它情况为-1
+	 */
+	public long getRemainingLength() {
+		return mType == TYPE_LENGTH ? mRemaining : -1;
+	}
+
+	/**
+	 * 连接已关闭
+	 */
+	public void onEof() {
+		mEof = true;
+	}
+
+	/**
+	 * 收到原样转发的数据
+	 * @return 属于本消息的字节数(含chunked的分帧)，之后的数据应丢弃
+	 */
+	public int consume(byte[] buffer, int offset, int length) throws IOException {
+		return process(buffer, offset, length, false);
+	}
+
+	/**
+	 * 收到要解码的数据，chunked的分帧去掉，数据在buffer中原地前移
+	 * @return offset开始的有效数据的字节数
+	 */
+	public int decode(byte[] buffer, int offset, int length) throws IOException {
+		return process(buffer, offset, length, true);
+	}
+
+	private int process(byte[] buffer, int offset, int length, boolean decode) throws IOException {
+		switch (mType) {
+		case TYPE_NONE:
+			if (length > 0)
+				mOverrun = true;
+			return 0;
+		case TYPE_LENGTH:
+			int count = (int) Math.min(length, mRemaining);
+			mRemaining -= count;
+			if (count < length)
+				mOverrun = true;
+			return count;
+		case TYPE_UNTIL_CLOSE:
+			return length;
+		}
+
+		int end = offset + length;
+		int in = offset;
+		int out = offset;
+		while (in < end && mState != STATE_DONE) {
+			if (mState == STATE_DATA) {
+				int count = (int) Math.min(end - in, mRemaining);
+				if (decode && out != in)
+					System.arraycopy(buffer, in, buffer, out, count);
+				in += count;
+				out += count;
+				mRemaining -= count;
+				if (mRemaining == 0)
+					mState = STATE_DATA_CR;
+				continue;
+			}
+			byte b = buffer[in++];
+			switch (mState) {
+			case STATE_SIZE:
+				int digit = Character.digit(b, 16);
+				if (digit != -1) {
+					if (mRemaining > (Long.MAX_VALUE >> 4))
+						throw new IOException("chunk size too large");
+					mRemaining = mRemaining * 16 + digit;
+				} else if (b == ';' || b == ' ' || b == '\t') {
+					mState = STATE_SIZE_EXT;
+				} else if (b == '\r') {
+					mState = STATE_SIZE_LF;
+				} else if (b == '\n') {
+					endChunkSize();
+				} else {
+					throw new IOException("bad chunk size");
+				}
+				break;
+			case STATE_SIZE_EXT:
+				if (b == '\n')
+					endChunkSize();
+				break;
+			case STATE_SIZE_LF:
+				if (b != '\n')
+					throw new IOException("bad chunk size line");
+				endChunkSize();
+				break;
+			case STATE_DATA_CR:
+				if (b == '\r')
+					mState = STATE_DATA_LF;
+				else if (b == '\n')
+					mState = STATE_SIZE;
+				else
+					throw new IOException("bad chunk end");
+				break;
+			case STATE_DATA_LF:
+				if (b != '\n')
+					throw new IOException("bad chunk end");
+				mState = STATE_SIZE;
+				break;
+			case STATE_TRAILER:// 行首
+				if (b == '\r')
+					mState = STATE_FINAL_LF;
+				else if (b == '\n')
+					mState = STATE_DONE;
+				else
+					mState = STATE_TRAILER_LINE;
+				break;
+			case STATE_TRAILER_LINE:
+				if (b == '\n')
+					mState = STATE_TRAILER;
+				break;
+			case STATE_FINAL_LF:
+				if (b != '\n')
+					throw new IOException("bad chunked trailer");
+				mState = STATE_DONE;
+				break;
+			}
+		}
+		if (in < end)
+			mOverrun = true;
+		return decode ? out - offset : in - offset;
+	}
+
+	/**
+	 * chunk的长度行结束，长度为0的是最后一个chunk，之后是trailer
+	 */
+	private void endChunkSize() {
+		mState = mRemaining == 0 ? STATE_TRAILER : STATE_DATA;
+	}
+}
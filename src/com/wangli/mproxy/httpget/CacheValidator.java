@@ -0,0 +1,64 @@
+package com.wangli.mproxy.httpget;
+
+import com.wangli.mproxy.bean.HttpHeaders;
+import com.wangli.mproxy.bean.ProxyResponse;
+import com.wangli.mproxy.cache.CacheEntry;
+import com.wangli.mproxy.utils.Config;
+
+import android.util.Log;
+
+import java.io.IOException;
+
+/**
+ * 用缓存记录的ETag/Last-Modified向服务器发条件请求，确认缓存是否仍然有效。
+ * 只请求第一个字节，资源改变时服务器返回新的校验值，已缓存的数据被丢弃
+ */
+class CacheValidator {
+	private static final String TAG = "CacheValidator";
+
+	private CacheValidator() {
+	}
+
+	/**
+	 * @param url 资源的链接，跟随重定向
+	 * @return 缓存是否仍然有效
+	 * @throws IOException 连不上服务器或返回错误，无法确认
+	 */
+	static boolean revalidate(UpstreamClient client, String url, CacheEntry entry) throws IOException {
+		HttpHeaders headers = new HttpHeaders();
+		String etag = entry.getETag();
+		String lastModified = entry.getLastModified();
+		if (etag != null)
+			headers.add("If-None-Match", etag);
+		if (lastModified != null)
+			headers.add("If-Modified-Since", lastModified);
+		UpstreamClient.Exchange exchange = client.get(url, "bytes=0-0", headers);
+		try {
+			ProxyResponse response = exchange.getResponse();
+			if (response.statusCode == 304) {
+				entry.onValidated();
+				return true;
+			}
+			long totalLength;
+			if (response.statusCode == 206)
+				totalLength = response.totalLength;
+			else if (response.statusCode == 200)
+				totalLength = response.contentLength;
+			else
+				throw new IOException("revalidate response code:" + response.statusCode);
+			long contentLength = entry.getContentLength();
+			boolean resized = totalLength > 0 && contentLength > 0 && totalLength != contentLength;
+			if (resized)// 没有校验值时只能比较长度
+				entry.invalidate();
+			boolean valid = entry.setMetadata(exchange.getHeader("Content-Type"), exchange.getHeader("ETag"),
+					exchange.getHeader("Last-Modified")) && !resized;
+			if (totalLength > 0)
+				entry.setContentLength(totalLength);
+			if (Config.DEBUG)
+				Log.i(TAG, "revalidate " + entry.getKey() + " code:" + response.statusCode + " valid:" + valid);
+			return valid;
+		} finally {
+			exchange.close();
+		}
+	}
+}
@@ -0,0 +1,392 @@
+package com.wangli.mproxy.httpget;
+
+import com.wangli.mproxy.utils.Config;
+import com.wangli.mproxy.utils.Metrics;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.security.GeneralSecurityException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.Map;
+
+import javax.net.ssl.HostnameVerifier;
+import javax.net.ssl.HttpsURLConnection;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLPeerUnverifiedException;
+import javax.net.ssl.SSLSessionContext;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+
+/**
+ * 到服务器的keep-alive连接池，按"主机:端口"分组，https的单独分组。每组的连接数(使用中的加空闲的)有上限，
+ * 达到上限时等待别的连接归还；空闲超过keepAliveTime的连接关闭。
+ * https连接在普通Socket上握手，TLS会话有缓存，新连接可以恢复会话而不必完整握手
+ */
+public class ConnectionPool {
+	/**检查空闲的TLS连接时读取的超时，毫秒*/
+	private static final int TLS_PROBE_TIMEOUT = 1;
+
+	/**
+	 * 池中的一个连接，用完后必须recycle或close
+	 */
+	public static class Connection {
+		final String route;
+		final Socket socket;
+		/**是否为TLS连接，TLS连接没有Channel，不能交给NIO中转*/
+		final boolean secure;
+		/**从空闲连接中取出的，可能已被服务器关闭*/
+		boolean reused;
+		/**已归还或关闭，避免重复计数*/
+		boolean released;
+		long idleSince;
+
+		Connection(String route, Socket socket, boolean secure) {
+			this.route = route;
+			this.socket = socket;
+			this.secure = secure;
+		}
+
+		public Socket getSocket() {
+			return socket;
+		}
+
+		public boolean isReused() {
+			return reused;
+		}
+
+		public boolean isSecure() {
+			return secure;
+		}
+	}
+
+	private final int mMaxPerRoute;
+	private final long mKeepAliveTime;
+	private final long mWaitTimeout;
+	private final DnsCache mDnsCache;
+	/**记录新建连接的耗时和复用次数*/
+	private final Metrics mMetrics;
+	/**空闲的连接，每组中最后归还的在末尾*/
+	private final Map<String, LinkedList<Connection>> mIdle = new HashMap<String, LinkedList<Connection>>();
+	/**每组的连接数，包括使用中和空闲的*/
+	private final Map<String, Integer> mCounts = new HashMap<String, Integer>();
+	/**检查空闲连接用的缓冲区*/
+	private final ByteBuffer mProbe = ByteBuffer.allocate(1);
+	/**建立TLS连接，第一次使用时创建，其中的会话缓存让重复连接同一服务器时恢复会话*/
+	private SSLSocketFactory mSslFactory;
+	private HostnameVerifier mHostnameVerifier;
+
+	/**
+	 * @param maxPerRoute 每组的最大连接数
+	 * @param keepAliveTime 空闲连接保留的时间，毫秒
+	 * @param waitTimeout 达到上限时等待的最长时间，毫秒
+	 * @param dnsCache 新建连接时解析域名
+	 * @param metrics 统计
+	 */
+	public ConnectionPool(int maxPerRoute, long keepAliveTime, long waitTimeout, DnsCache dnsCache,
+			Metrics metrics) {
+		mMaxPerRoute = maxPerRoute;
+		mKeepAliveTime = keepAliveTime;
+		mWaitTimeout = waitTimeout;
+		mDnsCache = dnsCache;
+		mMetrics = metrics;
+	}
+
+	/**
+	 * 取一个到address的连接，优先复用空闲的
+	 * @param address 可以是未解析的地址，新建连接时经过DnsCache解析
+	 */
+	public Connection get(InetSocketAddress address) throws IOException {
+		return get(address, false);
+	}
+
+	/**
+	 * 取一个到address的连接，优先复用空闲的
+	 * @param address 可以是未解析的地址，新建连接时经过DnsCache解析
+	 * @param secure 是否为https，新建连接时完成TLS握手并校验证书和主机名
+	 */
+	public Connection get(InetSocketAddress address, boolean secure) throws IOException {
+		String route = (secure ? "https://" : "") + address.getHostName() + ":" + address.getPort();
+		synchronized (this) {
+			long deadline = System.currentTimeMillis() + mWaitTimeout;
+			while (true) {
+				long now = System.currentTimeMillis();
+				evictExpired(now);
+				Connection connection = pollIdle(route);
+				if (connection != null) {
+					connection.reused = true;
+					connection.released = false;
+					mMetrics.upstreamReuses.incrementAndGet();
+					return connection;
+				}
+				int count = getCount(route);
+				if (count < mMaxPerRoute) {
+					mCounts.put(route, count + 1);
+					break;
+				}
+				if (now >= deadline)
+					throw new IOException("connection pool timeout:" + route);
+				try {
+					wait(deadline - now);
+				} catch (InterruptedException e) {
+					throw new InterruptedIOException(route);
+				}
+			}
+		}
+		// 在锁外建立连接
+		Socket socket = null;
+		long start = System.currentTimeMillis();
+		try {
+			if (secure) {
+				socket = new Socket();
+				connect(socket, address);
+				socket = startTls(socket, address);
+				socket.setSoTimeout(Config.UPSTREAM_READ_TIMEOUT);
+			} else {
+				socket = SocketChannel.open().socket();// 由Channel创建，可以交给NIO中转
+				connect(socket, address);
+			}
+			mMetrics.upstreamConnects.incrementAndGet();
+			mMetrics.upstreamConnectTime.record(System.currentTimeMillis() - start);
+			return new Connection(route, socket, secure);
+		} catch (IOException e) {
+			closeSocket(socket);
+			mDnsCache.invalidate(address.getHostName());// 可能是解析结果已失效
+			synchronized (this) {
+				decrement(route);
+			}
+			throw e;
+		}
+	}
+
+	/**
+	 * 连接和读取都有超时，服务器没有响应时不会一直阻塞。交给NIO中转后不再阻塞读取，超时不起作用
+	 */
+	private void connect(Socket socket, InetSocketAddress address) throws IOException {
+		socket.setSoTimeout(Config.UPSTREAM_READ_TIMEOUT);
+		socket.connect(mDnsCache.resolve(address), Config.UPSTREAM_CONNECT_TIMEOUT);
+	}
+
+	/**
+	 * 设置建立TLS连接用的SocketFactory和主机名校验，如需要信任自定义的证书时使用，
+	 * 为null则使用系统默认的
+	 */
+	public synchronized void setSslSocketFactory(SSLSocketFactory factory, HostnameVerifier verifier) {
+		mSslFactory = factory;
+		mHostnameVerifier = verifier;
+	}
+
+	/**
+	 * 在已连接的Socket上完成TLS握手。以主机名和端口创建，同一服务器的会话可以恢复
+	 */
+	private SSLSocket startTls(Socket socket, InetSocketAddress address) throws IOException {
+		SSLSocketFactory factory;
+		HostnameVerifier verifier;
+		synchronized (this) {
+			if (mSslFactory == null)
+				mSslFactory = createSslFactory();
+			if (mHostnameVerifier == null)
+				mHostnameVerifier = HttpsURLConnection.getDefaultHostnameVerifier();
+			factory = mSslFactory;
+			verifier = mHostnameVerifier;
+		}
+		String host = address.getHostName();
+		SSLSocket ssl = (SSLSocket) factory.createSocket(socket, host, address.getPort(), true);
+		try {
+			ssl.startHandshake();
+			if (!verifier.verify(host, ssl.getSession()))
+				throw new SSLPeerUnverifiedException("hostname not verified:" + host);
+			return ssl;
+		} catch (IOException e) {
+			closeSocket(ssl);
+			throw e;
+		}
+	}
+
+	/**
+	 * 系统默认信任的证书，会话缓存的大小和有效期由Config设置
+	 */
+	private static SSLSocketFactory createSslFactory() throws IOException {
+		try {
+			SSLContext context = SSLContext.getInstance("TLS");
+			context.init(null, null, null);
+			SSLSessionContext sessions = context.getClientSessionContext();
+			if (sessions != null) {
+				sessions.setSessionCacheSize(Config.TLS_SESSION_CACHE_SIZE);
+				sessions.setSessionTimeout(Config.TLS_SESSION_TIMEOUT);
+			}
+			return context.getSocketFactory();
+		} catch (GeneralSecurityException e) {
+			throw new IOException("TLS unavailable:" + e.toString());
+		}
+	}
+
+	/**
+	 * 归还连接，Response已完整读完并且服务器允许keep-alive时才能归还
+	 */
+	public synchronized void recycle(Connection connection) {
+		if (connection.released)
+			return;
+		connection.released = true;
+		if (connection.socket.isClosed()) {
+			decrement(connection.route);
+			return;
+		}
+		connection.idleSince = System.currentTimeMillis();
+		LinkedList<Connection> idle = mIdle.get(connection.route);
+		if (idle == null) {
+			idle = new LinkedList<Connection>();
+			mIdle.put(connection.route, idle);
+		}
+		idle.addLast(connection);
+		notifyAll();
+	}
+
+	/**
+	 * 关闭连接，不再复用
+	 */
+	public void close(Connection connection) {
+		closeSocket(connection.socket);
+		synchronized (this) {
+			if (connection.released)
+				return;
+			connection.released = true;
+			decrement(connection.route);
+		}
+	}
+
+	/**
+	 * 关闭所有空闲的连接
+	 */
+	public synchronized void evictAll() {
+		evictExpired(Long.MAX_VALUE);
+	}
+
+	/**
+	 * 空闲的连接数
+	 */
+	public synchronized int getIdleCount() {
+		int count = 0;
+		for (LinkedList<Connection> idle : mIdle.values())
+			count += idle.size();
+		return count;
+	}
+
+	/**
+	 * 所有连接数，包括使用中和空闲的
+	 */
+	public synchronized int getConnectionCount() {
+		int count = 0;
+		for (Integer value : mCounts.values())
+			count += value;
+		return count;
+	}
+
+	private int getCount(String route) {
+		Integer count = mCounts.get(route);
+		return count == null ? 0 : count;
+	}
+
+	private void decrement(String route) {
+		int count = getCount(route) - 1;
+		if (count <= 0)
+			mCounts.remove(route);
+		else
+			mCounts.put(route, count);
+		notifyAll();
+	}
+
+	/**
+	 * 取最后归还的空闲连接，已失效的直接关闭
+	 */
+	private Connection pollIdle(String route) {
+		LinkedList<Connection> idle = mIdle.get(route);
+		while (idle != null && !idle.isEmpty()) {
+			Connection connection = idle.removeLast();
+			if (idle.isEmpty())
+				mIdle.remove(route);
+			if (isAlive(connection))
+				return connection;
+			closeSocket(connection.socket);
+			decrement(route);
+		}
+		return null;
+	}
+
+	/**
+	 * 关闭空闲超时的连接
+	 */
+	private void evictExpired(long now) {
+		Iterator<LinkedList<Connection>> it = mIdle.values().iterator();
+		while (it.hasNext()) {
+			LinkedList<Connection> idle = it.next();
+			while (!idle.isEmpty() && (now == Long.MAX_VALUE
+					|| now - idle.getFirst().idleSince >= mKeepAliveTime)) {
+				Connection connection = idle.removeFirst();
+				closeSocket(connection.socket);
+				decrement(connection.route);
+			}
+			if (idle.isEmpty())
+				it.remove();
+		}
+	}
+
+	/**
+	 * 空闲的连接是否还能用，服务器已关闭或发来了多余的数据都不能再用
+	 */
+	private boolean isAlive(Connection connection) {
+		Socket socket = connection.socket;
+		if (socket.isClosed() || socket.isInputShutdown() || socket.isOutputShutdown())
+			return false;
+		SocketChannel channel = socket.getChannel();
+		if (channel == null)
+			return isTlsAlive(socket);
+		try {
+			channel.configureBlocking(false);
+			try {
+				mProbe.clear();
+				return channel.read(mProbe) == 0;
+			} finally {
+				channel.configureBlocking(true);
+			}
+		} catch (IOException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * TLS连接不能绕过TLS读底层数据，用很短的超时读一次：超时说明连接正常，
+	 * 读到close_notify或关闭(-1)、读到多余的数据都不能再用
+	 */
+	private static boolean isTlsAlive(Socket socket) {
+		try {
+			int timeout = socket.getSoTimeout();
+			socket.setSoTimeout(TLS_PROBE_TIMEOUT);
+			try {
+				socket.getInputStream().read();
+				return false;
+			} catch (SocketTimeoutException e) {
+				return true;
+			} finally {
+				socket.setSoTimeout(timeout);
+			}
+		} catch (IOException e) {
+			return false;
+		}
+	}
+
+	private static void closeSocket(Socket socket) {
+		if (socket == null)
+			return;
+		try {
+			socket.close();
+		} catch (IOException e) {
+		}
+	}
+}
@@ -0,0 +1,224 @@
+package com.wangli.mproxy.httpget;
+
+import com.wangli.mproxy.bean.ProxyRequest;
+import com.wangli.mproxy.bean.ProxyResponse;
+import com.wangli.mproxy.httpget.ConnectionPool.Connection;
+import com.wangli.mproxy.utils.CommonUtil;
+import com.wangli.mproxy.utils.HttpGetProxyUtils;
+import com.wangli.mproxy.utils.SizeClassPool;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 缓存之后的数据的请求：在发送预加载之前就发出，后台线程接收Response，消息体放在有上限的队列中，
+ * 队列满了就不再读取，由TCP的流量控制让服务器等待。预加载发送完后由会话接管连接，
+ * 先发送队列中的数据再继续读取，缓存和网络的交界处不再需要等待建立连接和首字节。
+ * 队列中的数据直接读到SizeClassPool的缓冲区，由会话发送后releaseBuffered归还
+ */
+class ContinuationFetch implements Runnable {
+	private static final String TAG = HttpGetProxy.TAG;
+	private static final int READ_SIZE = 16 * 1024;
+
+	private final HttpGetProxyUtils mUtils;
+	private final ProxyRequest mRequest;
+	private final ConnectionPool mPool;
+	private final BandwidthMeter mMeter;
+	/**队列中最多保存的字节数*/
+	private final int mMaxBuffered;
+
+	/**以下由this保护*/
+	private final List<ByteBuffer> mBuffered = new ArrayList<ByteBuffer>();
+	private int mBufferedSize = 0;
+	private Connection mServer;
+	private ProxyResponse mResponse;
+	private BodyFraming mFraming;
+	/**会话要接管连接，后台线程停止读取*/
+	private boolean mStopped = false;
+	private boolean mCancelled = false;
+	/**后台线程已结束*/
+	private boolean mDone = false;
+	private boolean mFailed = false;
+
+	/**
+	 * @param request 已改为后续Range的Request，后台线程发送后不再使用
+	 */
+	ContinuationFetch(HttpGetProxyUtils utils, ProxyRequest request, ConnectionPool pool,
+			BandwidthMeter meter, int maxBuffered) {
+		mUtils = utils;
+		mRequest = request;
+		mPool = pool;
+		mMeter = meter;
+		mMaxBuffered = maxBuffered;
+	}
+
+	public void run() {
+		HttpGetParser parser = new HttpGetParser();
+		ByteBuffer buffer = null;
+		try {
+			Connection server = mUtils.sentToServer(mRequest);
+			synchronized (this) {
+				if (mCancelled) {
+					mPool.close(server);
+					return;
+				}
+				mServer = server;
+			}
+			ProxyResponse response = mUtils.removeResponseHeader(server.getSocket(), parser);
+			if (response == null)
+				throw new IOException("no response header");
+			BodyFraming framing = new BodyFraming(response, false);
+			synchronized (this) {
+				mResponse = response;
+				mFraming = framing;
+			}
+			if (response.body != null) {
+				int length = framing.consume(response.body, 0, response.body.length);
+				if (length > 0) {
+					buffer = SizeClassPool.HEAP.acquire(length);
+					buffer.put(response.body, 0, length);
+					buffer.flip();
+					offer(buffer);
+					buffer = null;
+				}
+			}
+			InputStream in = server.getSocket().getInputStream();
+			while (!framing.isComplete() && waitForSpace()) {
+				if (buffer == null)
+					buffer = SizeClassPool.HEAP.acquire(READ_SIZE);
+				long start = System.nanoTime();
+				int length = in.read(buffer.array(), 0, buffer.capacity());
+				mMeter.onTransfer(length, System.nanoTime() - start);
+				if (length == -1) {
+					framing.onEof();
+					break;
+				}
+				length = framing.consume(buffer.array(), 0, length);
+				if (length > 0) {// 直接放入队列，下次读取换一个缓冲区
+					buffer.limit(length);
+					offer(buffer);
+					buffer = null;
+				}
+			}
+		} catch (IOException e) {
+			synchronized (this) {
+				mFailed = true;
+			}
+			if (!isCancelled()) {
+				Log.e(TAG, e.toString());
+				Log.e(TAG, CommonUtil.getExceptionMessage(e));
+			}
+		} finally {
+			SizeClassPool.HEAP.release(buffer);
+			parser.release();
+			synchronized (this) {
+				mDone = true;
+				notifyAll();
+			}
+		}
+	}
+
+	private synchronized void offer(ByteBuffer data) {
+		if (mCancelled) {// 已放弃，会话不会再取走
+			SizeClassPool.HEAP.release(data);
+			return;
+		}
+		mBuffered.add(data);
+		mBufferedSize += data.remaining();
+	}
+
+	/**
+	 * 等待队列有空间
+	 * @return 是否继续读取
+	 */
+	private synchronized boolean waitForSpace() {
+		while (!mStopped && mBufferedSize >= mMaxBuffered) {
+			try {
+				wait();
+			} catch (InterruptedException e) {
+				return false;
+			}
+		}
+		return !mStopped;
+	}
+
+	private synchronized boolean isCancelled() {
+		return mCancelled;
+	}
+
+	/**
+	 * 停止后台读取，等后台线程结束后由会话接管连接
+	 * @return Response是否已收到，失败时连接已关闭
+	 */
+	synchronized boolean takeOver() {
+		mStopped = true;
+		notifyAll();
+		while (!mDone) {
+			try {
+				wait();
+			} catch (InterruptedException e) {
+				cancel();
+				return false;
+			}
+		}
+		if (mFailed || mResponse == null) {
+			cancel();
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * 放弃后续请求，关闭连接。关闭Socket会让阻塞中的读取立刻返回
+	 */
+	synchronized void cancel() {
+		mStopped = true;
+		mCancelled = true;
+		notifyAll();
+		if (mServer != null) {
+			mPool.close(mServer);
+			mServer = null;
+		}
+		releaseBuffered();
+	}
+
+	/**
+	 * 接管的连接，由会话归还或关闭
+	 */
+	synchronized Connection getServer() {
+		return mServer;
+	}
+
+	synchronized ProxyResponse getResponse() {
+		return mResponse;
+	}
+
+	/**
+	 * 已读取部分的分帧，会话继续读取时接着使用
+	 */
+	synchronized BodyFraming getFraming() {
+		return mFraming;
+	}
+
+	/**
+	 * 队列中的消息体数据，按收到的顺序，position到limit为数据
+	 */
+	synchronized List<ByteBuffer> getBuffered() {
+		return mBuffered;
+	}
+
+	/**
+	 * 归还队列中的缓冲区，会话发送完队列中的数据后调用
+	 */
+	synchronized void releaseBuffered() {
+		for (ByteBuffer data : mBuffered)
+			SizeClassPool.HEAP.release(data);
+		mBuffered.clear();
+		mBufferedSize = 0;
+	}
+}
@@ -0,0 +1,79 @@
+package com.wangli.mproxy.httpget;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * 域名解析结果的缓存，有效期内同一个域名不再重复解析。连接失败时由调用者清除
+ */
+public class DnsCache {
+
+	private static class Record {
+		final InetAddress address;
+		final long expires;
+
+		Record(InetAddress address, long expires) {
+			this.address = address;
+			this.expires = expires;
+		}
+	}
+
+	private final long mTtl;
+	private final Map<String, Record> mEntries;
+
+	/**
+	 * @param ttl 解析结果的有效期，毫秒
+	 * @param maxSize 最多缓存的域名数，超过时去掉最久没用的
+	 */
+	public DnsCache(long ttl, final int maxSize) {
+		mTtl = ttl;
+		mEntries = new LinkedHashMap<String, Record>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, Record> eldest) {
+				return size() > maxSize;
+			}
+		};
+	}
+
+	/**
+	 * 解析域名，有效期内直接返回缓存的结果
+	 */
+	public InetAddress lookup(String host) throws UnknownHostException {
+		long now = System.currentTimeMillis();
+		synchronized (this) {
+			Record entry = mEntries.get(host);
+			if (entry != null && entry.expires > now)
+				return entry.address;
+		}
+		InetAddress address = InetAddress.getByName(host);// 在锁外解析
+		synchronized (this) {
+			mEntries.put(host, new Record(address, now + mTtl));
+		}
+		return address;
+	}
+
+	/**
+	 * 把未解析的地址转换为已解析的地址
+	 */
+	public InetSocketAddress resolve(InetSocketAddress address) throws UnknownHostException {
+		if (!address.isUnresolved())
+			return address;
+		return new InetSocketAddress(lookup(address.getHostName()), address.getPort());
+	}
+
+	/**
+	 * 清除域名的解析结果，下次重新解析
+	 */
+	public synchronized void invalidate(String host) {
+		mEntries.remove(host);
+	}
+
+	public synchronized void clear() {
+		mEntries.clear();
+	}
+}
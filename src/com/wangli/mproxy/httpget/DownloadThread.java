@@ -1,54 +1,84 @@
 
 package com.wangli.mproxy.httpget;
 
+import com.wangli.mproxy.cache.CacheEntry;
+import com.wangli.mproxy.cache.CacheStore;
 import com.wangli.mproxy.utils.CommonUtil;
+import com.wangli.mproxy.utils.Config;
+import com.wangli.mproxy.utils.Metrics;
+import com.wangli.mproxy.utils.SizeClassPool;
 
 import android.util.Log;
 
-import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
 import java.net.HttpURLConnection;
-import java.net.URL;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
 
 /**
- * 下载模块，支持断点下载
+ * 下载模块，支持断点下载。预加载的区间拆成多段，用多个连接同时按Range下载，
+ * 各段写到缓存中各自的位置，已下载的部分记录在缓存的区间索引中，中断后每段各自续传。
+ * 本身是Runnable，各段都在调用者提供的线程池中运行，不单独创建线程
  */
-public class DownloadThread extends Thread {
+public class DownloadThread implements Runnable {
     static private final String TAG = "DownloadThread";
+    /**预加载的大小为整个资源*/
+    public static final long SIZE_WHOLE = -1;
+    /**每段下载失败后的重试次数*/
+    private static final int RETRY_COUNT = 2;
+    /**每次从服务器读取的大小*/
+    private static final int READ_BUFFER_SIZE = 16 * 1024;
     private String mUrl;
-    private long mDownloadSize;
-    private String filePath;
-    private String cacheDir;
-    private int mBufferSize;//要下载的文件大小
-    private int maxCacheFileNumber;
-    private boolean mStop;
-    private boolean mDownloading;
+    private UpstreamClient mClient;
+    private UrlResolver mResolver;
+    /**决定预加载的大小，同时记录下载的带宽*/
+    private PrebufferPolicy mPolicy;
+    /**统计下载的字节数*/
+    private Metrics mMetrics;
+    /**运行startThread和除第一段外的各段*/
+    private ExecutorService mExecutor;
+    /**重定向后的url，每次下载开始时获取*/
+    private String mResolvedUrl;
+    private volatile long mDownloadSize;
+    private CacheStore mCacheStore;
+    private String mCacheKey;
+    private long mBufferSize;//预加载大小的上限
+    private volatile boolean mStop;
+    private volatile boolean mDownloading;
     private boolean mStarted;
-    private boolean mError;
+    private volatile boolean mError;
+    /**服务器不支持Range*/
+    private volatile boolean mRangeUnsupported;
+    /**已下载到目标大小或资源的末尾*/
+    private volatile boolean mComplete;
 
     /**
+     * @param client   经过连接池发送请求
+     * @param resolver   获取重定向后的url，结果有缓存，之后的播放不再探测
+     * @param policy   按码率和带宽决定预加载的大小
+     * @param metrics   统计
+     * @param executor   运行下载的线程池
      * @param url   下载的url
-     * @param dir   缓存目录
-     * @param fileName  缓存文件名称
-     * @param maxCacheFileNumber    最大的缓存文件数量
-     * @param targetSize    预加载的数据大小
+     * @param store   缓存目录
+     * @param key  缓存名称
+     * @param mBufferSize    预加载大小的上限
      */
-    public DownloadThread(String url, String cacheDir, String fileName,int maxCacheFileNumber, int mBufferSize) {
+    public DownloadThread(UpstreamClient client, UrlResolver resolver, PrebufferPolicy policy, Metrics metrics,
+            ExecutorService executor, String url, CacheStore store, String key, long mBufferSize) {
+        mClient = client;
+        mResolver = resolver;
+        mPolicy = policy;
+        mMetrics = metrics;
+        mExecutor = executor;
         mUrl = url;
 
-        this.cacheDir = cacheDir;
-        filePath = cacheDir + File.separator + fileName;
-        
-        this.maxCacheFileNumber = maxCacheFileNumber;
-        // 如果文件存在，则继续
-        File file = new File(filePath);
-        if (file.exists()) {
-            mDownloadSize = file.length();
-        } else {
-            mDownloadSize = 0;
-        }
+        mCacheStore = store;
+        mCacheKey = key;
 
         this.mBufferSize = mBufferSize;
         mStop = false;
@@ -57,16 +87,15 @@ public class DownloadThread extends Thread {
         mError = false;
     }
 
-    @Override
     public void run() {
         mDownloading = true;
         download();
     }
 
-    /** 启动下载线程 */
-    public void startThread() {
+    /** 在线程池中开始下载 */
+    public synchronized void startThread() {
         if (!mStarted) {
-            this.start();
+            mExecutor.execute(this);
 
             // 只能启动一次
             mStarted = true;
@@ -98,74 +127,254 @@ public class DownloadThread extends Thread {
 
     /** 是否下载成功 */
     public boolean isDownloadSuccessed() {
-        return (mDownloadSize != 0 && mDownloadSize >= mBufferSize);
+        return mComplete || (mBufferSize > 0 && mDownloadSize != 0 && mDownloadSize >= mBufferSize);
     }
 
     private void download() {
-        // 下载成功则关闭
-        if (isDownloadSuccessed()) {
-            Log.i(TAG, "...DownloadSuccessed...");
-            return;
-        }
-        InputStream is = null;
-        FileOutputStream os = null;
         if (mStop) {
             return;
         }
+        CacheEntry entry = mCacheStore.open(mCacheKey);
         try {
-            URL url = new URL(mUrl);
-            HttpURLConnection urlConnection = (HttpURLConnection) url.openConnection();
-            urlConnection.setRequestMethod("GET");
-            urlConnection.setInstanceFollowRedirects(true);// 允许重定向
-            is = urlConnection.getInputStream();
-            if (mDownloadSize == 0) {// 全新文件
-
-              //清除多余的缓存文件，因为下面要开始写一个文件，所以现在要多删一个文件，这样才能保证写了新文件之后，目录中的数量保证是不超过最大数量。
-              CommonUtil.deleteExcessFiles(cacheDir,maxCacheFileNumber-1);
-                
-                os = new FileOutputStream(filePath);
-                Log.i(TAG, "download file:" + filePath);
-            }
-            else {// 追加数据
-                os = new FileOutputStream(filePath, true);
-                Log.i(TAG, "append exists file:" + filePath);
-            }
-            int len = 0;
-            byte[] bs = new byte[1024];
-            if (mStop) {
+            // 如果已有缓存，则继续。在下载线程中读取，创建时不读磁盘
+            mDownloadSize = entry.getAvailableLength(0);
+            boolean fresh = entry.isFresh();
+            // 下载成功则关闭
+            if (isDownloadSuccessed() && fresh) {
+                if (Config.DEBUG)
+                    Log.i(TAG, "...DownloadSuccessed...");
                 return;
             }
-            while (!mStop // 未强制停止
-                    && mDownloadSize < mBufferSize // 未下载足够
-                    && ((len = is.read(bs)) != -1)) {// 未全部读取
-                os.write(bs, 0, len);
-                mDownloadSize += len;
-            }
-        } catch (Exception e) {
-            mError = true;
-            Log.i(TAG, "download error:" + e.toString() + "");
-            Log.i(TAG, CommonUtil.getExceptionMessage(e));
-        } finally {
-            if (os != null) {
+            mResolvedUrl = mResolver.resolve(mUrl);// 每段都用重定向后的url，不再逐段重定向
+            if (!fresh && entry.getCachedSize() > 0) {// 已有的缓存太久没核对，先确认服务器上的资源没有改变
                 try {
-                    os.close();
+                    CacheValidator.revalidate(mClient, mResolvedUrl, entry);
                 } catch (IOException e) {
+                    if (Config.DEBUG)
+                        Log.i(TAG, "revalidate error:" + e.toString());
                 }
             }
+            long target = getTargetSize(entry);
+            downloadMissing(entry, target);
+            // 开始时不知道总长度，码率按默认值估计，知道总长度后补足
+            long newTarget = getTargetSize(entry);
+            if (!mStop && !mRangeUnsupported && newTarget > target)
+                downloadMissing(entry, newTarget);
 
-            if (is != null) {
-                try {
-                    is.close();
-                } catch (IOException e) {
-                }
+            // 服务器不支持Range，只能从头顺序下载
+            if (mRangeUnsupported && !mStop) {
+                target = getTargetSize(entry);
+                if (entry.getAvailableLength(0) < target)
+                    downloadSequential(entry, target);
             }
+        } finally {
+            mDownloadSize = entry.getAvailableLength(0);
+            mComplete = mDownloadSize >= getTargetSize(entry);
+            mCacheStore.release(entry);
             mDownloading = false;
-            // 清除空文件
-            File nullFile = new File(filePath);
-            if (nullFile.exists() && nullFile.length() == 0)
-                nullFile.delete();
 
-            Log.i(TAG, "mDownloadSize:" + mDownloadSize + ",mBufferSize:" + mBufferSize);
+            if (Config.DEBUG)
+                Log.i(TAG, "mDownloadSize:" + mDownloadSize + ",mBufferSize:" + mBufferSize);
+        }
+    }
+
+    /**
+     * 下载[0, target)中缺少的部分，第一段在当前线程下载，其余的各交给线程池
+     */
+    private void downloadMissing(CacheEntry entry, long target) {
+        List<long[]> ranges = splitRanges(entry.getMissingRanges(0, target));
+        if (Config.DEBUG)
+            Log.i(TAG, "download " + mCacheKey + " ranges:" + ranges.size());
+
+        List<Future<?>> workers = new ArrayList<Future<?>>();
+        for (int i = 1; i < ranges.size(); i++) {
+            final CacheEntry e = entry;
+            final long[] range = ranges.get(i);
+            try {
+                workers.add(mExecutor.submit(new Runnable() {
+                    public void run() {
+                        downloadRange(e, range[0], range[1]);
+                    }
+                }));
+            } catch (RejectedExecutionException ex) {// 线程池已关闭
+                mStop = true;
+                break;
+            }
+        }
+        if (ranges.size() > 0)
+            downloadRange(entry, ranges.get(0)[0], ranges.get(0)[1]);
+        for (int i = 0; i < workers.size(); i++) {
+            try {
+                workers.get(i).get();
+            } catch (InterruptedException e) {
+                mStop = true;
+            } catch (ExecutionException e) {
+                Log.e(TAG, e.toString());
+                Log.e(TAG, CommonUtil.getExceptionMessage(e));
+            }
+        }
+    }
+
+    /**
+     * 要预加载的大小，由码率和带宽决定，不超过上限和资源的总长度
+     */
+    private long getTargetSize(CacheEntry entry) {
+        if (mBufferSize == SIZE_WHOLE) {// 不知道总长度时先下载一段，知道后再补足
+            long contentLength = entry.getContentLength();
+            return contentLength > 0 ? contentLength : Config.DOWNLOAD_MIN_RANGE_SIZE;
+        }
+        return Math.min(mBufferSize, mPolicy.getTargetSize(mCacheKey, entry.getContentLength()));
+    }
+
+    /**
+     * 把缺少的区间拆成最多Config.DOWNLOAD_CONNECTIONS段，每次把最大的一段对半拆开
+     */
+    private List<long[]> splitRanges(List<long[]> missing) {
+        List<long[]> result = new ArrayList<long[]>(missing);
+        while (result.size() < Config.DOWNLOAD_CONNECTIONS) {
+            int largest = -1;
+            for (int i = 0; i < result.size(); i++) {
+                long[] range = result.get(i);
+                if (range[1] - range[0] >= Config.DOWNLOAD_MIN_RANGE_SIZE * 2
+                        && (largest == -1 || range[1] - range[0] > result.get(largest)[1] - result.get(largest)[0]))
+                    largest = i;
+            }
+            if (largest == -1)
+                break;
+            long[] range = result.get(largest);
+            long middle = range[0] + (range[1] - range[0]) / 2;
+            result.set(largest, new long[] { range[0], middle });
+            result.add(largest + 1, new long[] { middle, range[1] });
+        }
+        return result;
+    }
+
+    /**
+     * 下载[start, end)，失败后从已下载的位置重试。服务器不支持Range时只有从0开始的一段继续重试
+     */
+    private void downloadRange(CacheEntry entry, long start, long end) {
+        for (int i = 0; i <= RETRY_COUNT && !mStop && (start == 0 || !mRangeUnsupported); i++) {
+            long position = start + entry.getAvailableLength(start);
+            if (position >= end)
+                return;
+            try {
+                if (downloadRange(entry, position, end, start == 0))
+                    return;
+            } catch (Exception e) {
+                mError = true;
+                if (Config.DEBUG) {
+                    Log.i(TAG, "download error:" + e.toString() + "");
+                    Log.i(TAG, CommonUtil.getExceptionMessage(e));
+                }
+            }
+        }
+    }
+
+    /**
+     * 服务器不支持Range时从头顺序下载到end，每次重试都从0开始，已缓存的部分重新写入
+     */
+    private void downloadSequential(CacheEntry entry, long end) {
+        for (int i = 0; i <= RETRY_COUNT && !mStop; i++) {
+            if (entry.getAvailableLength(0) >= end)
+                return;
+            try {
+                if (downloadRange(entry, 0, end, true))
+                    return;
+            } catch (Exception e) {
+                mError = true;
+                if (Config.DEBUG) {
+                    Log.i(TAG, "download error:" + e.toString() + "");
+                    Log.i(TAG, CommonUtil.getExceptionMessage(e));
+                }
+            }
+        }
+    }
+
+    /**
+     * 按Range下载[start, end)，写到缓存的相应位置
+     * @param acceptFullResponse 服务器不支持Range而返回整个资源时，是否从头接收
+     * @return 是否完成
+     */
+    private boolean downloadRange(CacheEntry entry, long start, long end, boolean acceptFullResponse)
+            throws IOException {
+        // 经过连接池发送，读完的连接留给下一段或下一次预加载复用
+        UpstreamClient.Exchange exchange = mClient.get(mResolvedUrl, "bytes=" + start + "-" + (end - 1));
+        try {
+            int code = exchange.getResponse().statusCode;
+            if (code == HttpURLConnection.HTTP_PARTIAL || code == HttpURLConnection.HTTP_OK) {
+                // 先核对校验值，资源已改变时丢弃之前的缓存，这次的数据按新的资源写入
+                if (!entry.setMetadata(exchange.getHeader("Content-Type"), exchange.getHeader("ETag"),
+                        exchange.getHeader("Last-Modified")))
+                    if (Config.DEBUG)
+                        Log.i(TAG, "modified on server, cache discarded:" + mCacheKey);
+            }
+            int generation = entry.getGeneration();
+            long position;
+            if (code == HttpURLConnection.HTTP_PARTIAL) {
+                position = parseContentRange(exchange.getHeader("Content-Range"), entry);
+                if (position != start)
+                    throw new IOException("unexpected Content-Range:" + exchange.getHeader("Content-Range"));
+            } else if (code == HttpURLConnection.HTTP_OK) {
+                if (exchange.getResponse().contentLength > 0)
+                    entry.setContentLength(exchange.getResponse().contentLength);
+                if (!acceptFullResponse || start != 0) {// 不支持Range，交给从头开始的那一段
+                    mRangeUnsupported = true;
+                    return true;
+                }
+                position = 0;
+                if (end < mBufferSize || mBufferSize == SIZE_WHOLE)
+                    end = getTargetSize(entry);// 顺序下载时一直下载到目标大小
+            } else if (code == 416) {// 超出资源的长度
+                return true;
+            } else {
+                throw new IOException("response code:" + code);
+            }
+            int len = 0;
+            ByteBuffer buffer = SizeClassPool.HEAP.acquire(READ_BUFFER_SIZE);
+            try {
+                byte[] bs = buffer.array();
+                BandwidthMeter meter = mPolicy.getBandwidthMeter();
+                long readStart = System.nanoTime();
+                while (!mStop // 未强制停止
+                        && position < end // 未下载足够
+                        && ((len = exchange.read(bs, 0, bs.length)) != -1)) {// 未全部读取
+                    meter.onTransfer(len, System.nanoTime() - readStart);// 只计读取的耗时
+                    int length = (int) Math.min(len, end - position);
+                    buffer.clear();
+                    buffer.limit(length);
+                    entry.write(position, buffer, generation);
+                    mMetrics.downloadBytes.addAndGet(length);
+                    if (entry.getGeneration() != generation)// 其他连接发现资源已改变，从已下载的位置重新请求
+                        throw new IOException("cache discarded:" + mCacheKey);
+                    position += length;
+                    mDownloadSize = entry.getAvailableLength(0);
+                    readStart = System.nanoTime();
+                }
+            } finally {
+                SizeClassPool.HEAP.release(buffer);
+            }
+            // 不支持Range时读完就是全部数据
+            return position >= end || (len == -1 && code == HttpURLConnection.HTTP_OK);
+        } finally {
+            exchange.close();
+        }
+    }
+
+    /**
+     * 解析Content-Range，记录资源总长度
+     * @return 起始位置
+     */
+    private long parseContentRange(String contentRange, CacheEntry entry) throws IOException {
+        //样例：bytes 2267097-257405191/257405192
+        try {
+            String value = contentRange.substring(contentRange.indexOf(' ') + 1);
+            long start = Long.parseLong(value.substring(0, value.indexOf('-')));
+            String total = value.substring(value.indexOf('/') + 1).trim();
+            if (!total.equals("*"))
+                entry.setContentLength(Long.parseLong(total));
+            return start;
+        } catch (RuntimeException e) {
+            throw new IOException("bad Content-Range:" + contentRange);
         }
     }
 }
@@ -0,0 +1,160 @@
+package com.wangli.mproxy.httpget;
+
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * HLS的m3u8播放列表：其中的链接(含其他服务器的)改为经过代理的本地链接，
+ * 媒体播放列表的分段按顺序记下，用来预加载播放位置之后的分段
+ */
+public class HlsPlaylist {
+	/**
+	 * 把远程链接换成本地链接
+	 */
+	public interface UriMapper {
+		/**
+		 * @param url 绝对链接
+		 * @param playlist 是否为播放列表
+		 * @return 本地链接，不能代理时返回null
+		 */
+		String map(String url, boolean playlist);
+	}
+
+	private final String mUrl;
+	/**媒体播放列表中分段的绝对链接*/
+	private final List<String> mSegments = new ArrayList<String>();
+	/**是否为主播放列表(列出各码率的播放列表)*/
+	private boolean mMaster = false;
+	/**有#EXT-X-ENDLIST，不是直播*/
+	private boolean mEnded = false;
+
+	/**
+	 * @param url 播放列表的链接(重定向之后)，相对链接以此为基准
+	 */
+	public HlsPlaylist(String url) {
+		mUrl = url;
+	}
+
+	/**
+	 * 链接或Content-Type是否为m3u8播放列表
+	 */
+	public static boolean isPlaylist(String path, String contentType) {
+		if (contentType != null) {
+			String type = contentType.toLowerCase();
+			if (type.contains("mpegurl"))// application/vnd.apple.mpegurl、audio/x-mpegurl
+				return true;
+		}
+		if (path == null)
+			return false;
+		int query = path.indexOf('?');
+		if (query != -1)
+			path = path.substring(0, query);
+		path = path.toLowerCase();
+		return path.endsWith(".m3u8") || path.endsWith(".m3u");
+	}
+
+	/**
+	 * 改写播放列表中的链接，同时记下分段
+	 * @param text 播放列表的内容
+	 * @return 改写后的内容
+	 */
+	public String rewrite(String text, UriMapper mapper) {
+		mSegments.clear();
+		StringBuilder sb = new StringBuilder(text.length() + 256);
+		boolean nextIsPlaylist = false;
+		int start = 0;
+		while (start < text.length()) {
+			int end = text.indexOf('\n', start);
+			if (end == -1)
+				end = text.length();
+			String line = text.substring(start, end);
+			if (line.endsWith("\r"))
+				line = line.substring(0, line.length() - 1);
+			start = end + 1;
+
+			String trimmed = line.trim();
+			if (trimmed.length() == 0) {
+				sb.append(line);
+			} else if (trimmed.charAt(0) == '#') {
+				if (trimmed.startsWith("#EXT-X-STREAM-INF")) {
+					mMaster = true;
+					nextIsPlaylist = true;
+					sb.append(line);
+				} else if (trimmed.startsWith("#EXT-X-ENDLIST")) {
+					mEnded = true;
+					sb.append(line);
+				} else if (trimmed.startsWith("#EXT-X-MEDIA") || trimmed.startsWith("#EXT-X-I-FRAME-STREAM-INF")) {
+					mMaster = true;
+					sb.append(rewriteAttribute(line, mapper, true));
+				} else if (trimmed.startsWith("#EXT-X-KEY") || trimmed.startsWith("#EXT-X-SESSION-KEY")
+						|| trimmed.startsWith("#EXT-X-MAP")) {
+					sb.append(rewriteAttribute(line, mapper, false));
+				} else {
+					sb.append(line);
+				}
+			} else {// 链接
+				String url = resolve(trimmed);
+				boolean playlist = nextIsPlaylist || isPlaylist(trimmed, null);
+				nextIsPlaylist = false;
+				if (url != null && !playlist)
+					mSegments.add(url);
+				String local = url == null ? null : mapper.map(url, playlist);
+				sb.append(local == null ? line : local);
+			}
+			if (end < text.length())
+				sb.append('\n');
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * 改写标签中的URI="..."属性
+	 */
+	private String rewriteAttribute(String line, UriMapper mapper, boolean playlist) {
+		int index = line.indexOf("URI=\"");
+		if (index == -1)
+			return line;
+		int valueStart = index + 5;
+		int valueEnd = line.indexOf('"', valueStart);
+		if (valueEnd == -1)
+			return line;
+		String url = resolve(line.substring(valueStart, valueEnd));
+		String local = url == null ? null : mapper.map(url, playlist);
+		if (local == null)
+			return line;
+		return line.substring(0, valueStart) + local + line.substring(valueEnd);
+	}
+
+	/**
+	 * 相对链接按播放列表的链接补全
+	 * @return 无效的链接返回null
+	 */
+	private String resolve(String uri) {
+		try {
+			return URI.create(mUrl).resolve(uri).toString();
+		} catch (IllegalArgumentException e) {
+			return null;
+		}
+	}
+
+	public String getUrl() {
+		return mUrl;
+	}
+
+	public boolean isMaster() {
+		return mMaster;
+	}
+
+	public boolean isEnded() {
+		return mEnded;
+	}
+
+	/**
+	 * 分段的绝对链接，按播放顺序
+	 */
+	public List<String> getSegments() {
+		return Collections.unmodifiableList(mSegments);
+	}
+}
@@ -7,183 +7,183 @@ import com.wangli.mproxy.utils.Config;
 
 import android.util.Log;
 
-import java.util.ArrayList;
-import java.util.List;
+import java.io.IOException;
+import java.net.URI;
 
 /**
- * Http报文处理类
+ * Http报文处理类，报文解析为ProxyRequest/ProxyResponse，修改字段后重新生成报文
  *
  */
 public class HttpGetParser {
     final static public String TAG = "HttpParser";
-    final static private String RANGE_PARAMS="Range: bytes=";
-    final static private String RANGE_PARAMS_0="Range: bytes=0-";
-    final static private String CONTENT_RANGE_PARAMS="Content-Range: bytes ";
+    final static private String RANGE_UNIT = "bytes=";
     
-    private static final  int HEADER_BUFFER_LENGTH_MAX = 1024 * 10;
-    private byte[] headerBuffer = new byte[HEADER_BUFFER_LENGTH_MAX];
-    private int headerBufferLength=0;
+    /** 增量解析报文头，Request和Response依次复用 */
+    private final HttpHeaderParser mHeaderParser = new HttpHeaderParser(
+            Config.HTTP_HEADER_MAX_SIZE, Config.HTTP_HEADER_MAX_LINES);
     
     /** 链接带的端口 */
     private int remotePort=-1;
     /** 远程服务器地址 */
     private String remoteHost;
-    /** 代理服务器使用的端口 */
-    private int localPort;
-    /** 本地服务器地址 */
-    private String localHost;
     
-    public HttpGetParser(String rHost,int rPort,String lHost,int lPort){
+    /**
+     * 设置本次会话的远程服务器，在getProxyRequest之前调用
+     * @param rHost
+     * @param rPort
+     */
+    public void setRemoteServer(String rHost,int rPort){
         remoteHost=rHost;
         remotePort =rPort;
-        localHost=lHost;
-        localPort=lPort;
     }
     
     public void clearHttpHeader(){
-        headerBuffer = new byte[HEADER_BUFFER_LENGTH_MAX];
-        headerBufferLength=0;
+        mHeaderParser.reset();
     }
-    
+
     /**
-     * 获取Request报文
-     * @param source
-     * @param length
-     * @return
+     * 归还解析用的缓冲区，会话或读取Response结束时调用
      */
-    public byte[] getRequestMessage(byte[] source,int length){
-        List<byte[]> httpRequest=getHttpMessage(Config.HTTP_REQUEST_BEGIN, 
-                Config.HTTP_BODY_END, 
-                source,
-                length);
-        if(httpRequest.size()>0){
-            return httpRequest.get(0);
-        }
-        return null;
+    public void release(){
+        mHeaderParser.release();
     }
-    
+
     /**
-     * Request报文解析转换ProxyRequest
-     * @param bodyBytes
+     * 获取Request，收到的数据逐段输入，报文头完整之前返回null
+     * @param source
+     * @param length
      * @return
+     * @throws IOException 报文头超过上限，或不是GET请求
      */
-    public ProxyRequest getProxyRequest(byte[] bodyBytes){
-        ProxyRequest result=new ProxyRequest();
-        //获取Body
-        result.message=new String(bodyBytes);
-        
-        // 把request中的本地ip改为远程ip
-        result.message = result.message.replace(localHost, remoteHost);
-        // 把代理服务器端口改为原URL端口
-        if (remotePort ==-1)
-            result.message = result.message.replace(":" + localPort, "");
-        else
-            result.message = result.message.replace(":" + localPort, ":"+ remotePort);
-        //不带Range则添加补上，方便后面处理
-        if(result.message.contains(RANGE_PARAMS)==false)
-            result.message = result.message.replace(Config.HTTP_BODY_END,
-                    "\r\n"+RANGE_PARAMS_0+Config.HTTP_BODY_END);
-        Log.i(TAG, result.message);
-
-        //获取Range的位置
-        String rangePosition=CommonUtil.getSubString(result.message,RANGE_PARAMS,"-");
-        Log.i(TAG,"------->rangePosition:"+rangePosition);
-        result.rangePosition = Integer.valueOf(rangePosition);
-        
+    public ProxyRequest getRequest(byte[] source,int length) throws IOException{
+        mHeaderParser.feed(source, 0, length);
+        if (!mHeaderParser.isComplete())
+            return null;
+        ProxyRequest result = new ProxyRequest();
+        result.method = mHeaderParser.getMethod();
+        result.target = mHeaderParser.getUri();
+        result.version = mHeaderParser.getStartLineToken(2);
+        if (!"GET".equals(result.method) || result.target == null || result.version == null)
+            throw new IOException("unsupported request:" + mHeaderParser.getStartLine());
+        mHeaderParser.getHeaders(result.headers);
         return result;
     }
     
     /**
-     * 获取ProxyResponse
-     * @param source
-     * @param length
+     * 把MediaPlayer的Request改为发给服务器的Request：Host改为远程服务器，
+     * 连接放回连接池复用，不带Range则补上"bytes=0-"
+     * @param request
+     * @throws IOException Range无法解析
      */
-    public ProxyResponse getProxyResponse(byte[] source,int length){
-        List<byte[]> httpResponse=getHttpMessage(Config.HTTP_RESPONSE_BEGIN, 
-                Config.HTTP_BODY_END, 
-                source,
-                length);
-        
-        if (httpResponse.size() == 0)
-            return null;
-        
-        ProxyResponse result=new ProxyResponse();
-        
-        //获取Response正文
-        result.header=httpResponse.get(0);
-        String text = new String(result.header);
+    public void getProxyRequest(ProxyRequest request) throws IOException{
+        // 绝对URI只保留路径和参数
+        if (request.target.regionMatches(true, 0, "http://", 0, 7))
+            request.target = CommonUtil.getRequestUri(URI.create(request.target));
+        // 把代理服务器的地址改为原URL的地址
+        request.headers.set("Host", remotePort == -1 ? remoteHost : remoteHost + ":" + remotePort);
+        //与服务器的连接放回连接池复用
+        request.headers.set("Connection", "keep-alive");
         
-        Log.i(TAG + "<---", text);
-        //获取二进制数据
-        if(httpResponse.size()==2)
-            result.body = httpResponse.get(1);
-        
-        //样例：Content-Range: bytes 2267097-257405191/257405192
-        try {
-            // 获取起始位置
-            String currentPosition = CommonUtil.getSubString(text,CONTENT_RANGE_PARAMS, "-");
-            result.currentPosition = Integer.valueOf(currentPosition);
-
-            // 获取最终位置
-            String startStr = CONTENT_RANGE_PARAMS + currentPosition + "-";
-            String duration = CommonUtil.getSubString(text, startStr, "/");
-            result.duration = Integer.valueOf(duration);
-        } catch (Exception ex) {
-            Log.e(TAG, CommonUtil.getExceptionMessage(ex));
+        //获取Range的位置，不带Range则添加补上，方便后面处理
+        String range = request.headers.get("Range");
+        request.rangeRequested = range != null;
+        if (range == null) {
+            request.setRange(0, -1);
+        } else {
+            parseRange(request, range);
+        }
+        if (Config.DEBUG) {
+            Log.i(TAG, request.toString());
+            Log.i(TAG,"------->rangePosition:"+request.rangePosition);
         }
-        return result;
     }
     
     /**
-     * 替换Request报文中的Range位置,"Range: bytes=0-" -> "Range: bytes=xxx-"
-     * @param requestStr
-     * @param position
-     * @return
+     * 解析Range，如"bytes=100-"、"bytes=100-199"、"bytes=-500"，位置都是64位的。
+     * 多段Range和不认识的单位原样转发
      */
-    public String modifyRequestRange(String requestStr,int position){
-        String str=CommonUtil.getSubString(requestStr, RANGE_PARAMS, "-");
-        str=str+"-";
-        String result = requestStr.replaceAll(str, position+"-");
-        return result;
+    private void parseRange(ProxyRequest request, String range) throws IOException{
+        request.rangePosition = -1;
+        request.rangeEnd = -1;
+        request.rangeSuffixLength = -1;
+        if (!range.regionMatches(true, 0, RANGE_UNIT, 0, RANGE_UNIT.length())
+                || range.indexOf(',') != -1) {
+            request.rangePassthrough = true;
+            return;
+        }
+        try {
+            String spec = range.substring(RANGE_UNIT.length()).trim();
+            int dash = spec.indexOf('-');
+            String start = spec.substring(0, dash).trim();
+            String end = spec.substring(dash + 1).trim();
+            if (start.length() == 0) {// 后缀Range，最后N个字节
+                request.rangeSuffixLength = Long.parseLong(end);
+            } else {
+                request.rangePosition = Long.parseLong(start);
+                request.rangeEnd = end.length() == 0 ? -1 : Long.parseLong(end);
+                if (request.rangeEnd != -1 && request.rangeEnd < request.rangePosition)
+                    throw new NumberFormatException();
+            }
+        } catch (RuntimeException e) {
+            throw new IOException("bad Range:" + range);
+        }
     }
     
     /**
-     * 获取HTTP报文
-     * @param beginStr  开始的字符串
-     * @param endStr    结束的字符串
-     * @param source    数据源
-     * @param length    长度
-     * @return
+     * 获取ProxyResponse，收到的数据逐段输入，报文头完整之前返回null
+     * @param source
+     * @param length
+     * @throws IOException 报文头超过上限，或不是Response
      */
-    private List<byte[]> getHttpMessage(String beginStr,String endStr,byte[] source,int length){
-        if((headerBufferLength+length)>=headerBuffer.length){//如果缓存超过了headerbuffer的长度，就清空。
-            clearHttpHeader();
+    public ProxyResponse getProxyResponse(byte[] source,int length) throws IOException{
+        int headerBytes = mHeaderParser.feed(source, 0, length);
+        if (!mHeaderParser.isComplete())
+            return null;
+        if (!mHeaderParser.isResponse())
+            throw new IOException("bad status line:" + mHeaderParser.getStartLine());
+        
+        ProxyResponse result=new ProxyResponse();
+        
+        if (Config.DEBUG)
+            Log.i(TAG + "<---", mHeaderParser.getStartLine());
+        //获取二进制数据
+        if (headerBytes < length) {
+            result.body = new byte[length - headerBytes];
+            System.arraycopy(source, headerBytes, result.body, 0, result.body.length);
         }
         
-        System.arraycopy(source, 0, headerBuffer, headerBufferLength, length);
-        headerBufferLength+=length;
+        //样例：HTTP/1.1 206 Partial Content
+        result.version = mHeaderParser.getStartLineToken(0);
+        result.statusCode = mHeaderParser.getStatusCode();
+        result.reason = mHeaderParser.getStartLineToken(2);
+        mHeaderParser.getHeaders(result.headers);
         
-        List<byte[]> result = new ArrayList<byte[]>();
-        String headerStr = new String(headerBuffer);
-        if (headerStr.contains(beginStr)
-                && headerStr.contains(endStr)) {//
-            
-            int startIndex=headerStr.indexOf(beginStr, 0);
-            int endIndex = headerStr.indexOf(endStr, startIndex);
-            endIndex+=endStr.length();
-            
-            byte[] header=new byte[endIndex-startIndex];
-            System.arraycopy(headerBuffer, startIndex, header, 0, header.length);
-            result.add(header);
-            
-            if (headerBufferLength > header.length) {//还有数据
-                byte[] body = new byte[headerBufferLength - header.length];
-                System.arraycopy(headerBuffer, header.length, body, 0,body.length);
-                result.add(body);
+        //样例：Content-Range: bytes 2267097-257405191/257405192
+        String contentRange = mHeaderParser.getHeader("Content-Range");
+        if (contentRange != null) {
+            try {
+                int start = contentRange.indexOf(' ') + 1;
+                int dash = contentRange.indexOf('-', start);
+                int slash = contentRange.indexOf('/', dash);
+                result.currentPosition = Long.parseLong(contentRange.substring(start, dash).trim());
+                String totalLength = contentRange.substring(slash + 1).trim();
+                if (!totalLength.equals("*"))
+                    result.totalLength = Long.parseLong(totalLength);
+            } catch (RuntimeException ex) {
+                Log.e(TAG, "bad Content-Range:" + contentRange);
             }
-            clearHttpHeader();
         }
         
+        //消息体的分帧和连接能否复用
+        result.contentLength = mHeaderParser.getLongHeader("Content-Length", -1);
+        String transferEncoding = mHeaderParser.getHeader("Transfer-Encoding");
+        result.chunked = transferEncoding != null
+                && transferEncoding.toLowerCase().contains("chunked");
+        String connection = mHeaderParser.getHeader("Connection");
+        if (connection != null)
+            result.keepAlive = !connection.toLowerCase().contains("close");
+        else//HTTP/1.1默认keep-alive
+            result.keepAlive = "HTTP/1.1".equals(mHeaderParser.getStartLineToken(0));
         return result;
     }
     
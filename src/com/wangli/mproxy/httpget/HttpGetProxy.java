@@ -1,9 +1,14 @@
 package com.wangli.mproxy.httpget;
 import com.wangli.mproxy.bean.ProxyRequest;
-import com.wangli.mproxy.bean.ProxyResponse;
+import com.wangli.mproxy.bean.ProxyTarget;
+import com.wangli.mproxy.cache.CacheStore;
+import com.wangli.mproxy.cache.CacheWriter;
+import com.wangli.mproxy.cache.EvictionPolicy;
 import com.wangli.mproxy.utils.CommonUtil;
 import com.wangli.mproxy.utils.Config;
 import com.wangli.mproxy.utils.HttpGetProxyUtils;
+import com.wangli.mproxy.utils.Metrics;
+import com.wangli.mproxy.utils.SizeClassPool;
 
 import android.text.TextUtils;
 import android.util.Log;
@@ -14,71 +19,161 @@ import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
-import java.net.SocketAddress;
 import java.net.URI;
+import java.nio.channels.ServerSocketChannel;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.net.ssl.HostnameVerifier;
+import javax.net.ssl.SSLSocketFactory;
 
 /**
- * 代理服务器类
+ * 代理服务器类。构造时即启动，stop停止接受连接后可以再start，close释放所有线程和连接。
+ * 接受连接、会话、后续请求、预加载、NIO中转和缓存写入都在同一个线程池中运行，
+ * 线程池不限制线程数，并发数由各自的上限控制，空闲的线程超时后结束
  */
 public class HttpGetProxy{
 
-	/**避免某些Mediaplayer不播放尾部就结束*/
-	private static final int SIZE = 1024*1024;
+	/**默认的连接等待队列长度*/
+	public static final int DEFAULT_BACKLOG = 8;
+	/**默认的最大同时会话数*/
+	public static final int DEFAULT_MAX_SESSIONS = 8;
 	
 	final static public String TAG = "HttpGetProxy";
-	/**预加载所需的大小*/
-	private int mBufferSize;
-	/**预加载缓存文件的最大数量*/
-	private int mBufferFileMaximum;
-	/** 链接带的端口 */
-	private int remotePort=-1;
-	/** 远程服务器地址 */
-	private String remoteHost;
-	/** 代理服务器使用的端口 */
-	private int localPort;
+	/**预加载大小的上限，实际大小由mPrebufferPolicy按码率和带宽决定*/
+	private long mBufferSize;
+	/**中转和预加载测得的带宽*/
+	private BandwidthMeter mBandwidthMeter;
+	private PrebufferPolicy mPrebufferPolicy;
+	/** 代理服务器使用的端口，重新start时尽量沿用 */
+	private int localPort = 0;
 	/** 本地服务器地址 */
 	private String localHost;
-	/**TCP Server，接收Media Player连接*/
+	/**TCP Server，接收Media Player连接，stop后为null*/
 	private ServerSocket localServer = null;
-	/**服务器的Address*/
-	private SocketAddress serverAddress;
-	/**下载线程*/
-	private DownloadThread downloadThread = null;
-	/**Response对象*/
-	private ProxyResponse proxyResponse=null;
+	/**连接等待队列长度*/
+	private int mBacklog;
+	/**已close，不能再start*/
+	private boolean mClosed = false;
+	/**预加载调度*/
+	private PrefetchScheduler mPrefetchScheduler;
 	/**缓存文件夹*/
 	private String mBufferDirPath=null;
 	/**视频id，预加载文件以url命名*/
 	private String mUrl;
-	/**有效的媒体文件链接(重定向之后)*/
-	private String mMediaUrl;
-	/**预加载文件路径*/
-	private String mMediaFilePath;
+	/**预加载缓存的名称*/
+	private String mCacheKey;
+	/**缓存*/
+	private CacheStore mCacheStore;
+	/**中转数据写入缓存*/
+	private CacheWriter mCacheWriter;
+	/**到服务器的keep-alive连接池，中转和预加载共用*/
+	private ConnectionPool mConnectionPool;
+	private UpstreamClient mUpstreamClient;
+	/**重定向结果的缓存，重复播放时不再探测*/
+	private UrlResolver mUrlResolver;
 	/**预加载是否可用*/
 	private boolean mEnable = false;
-	
-	private Proxy proxy=null;
+	/**本代理的所有后台任务共用的线程池，线程都是daemon*/
+	private ThreadPoolExecutor mExecutor;
+	/**空闲的会话线程数，没有空闲线程时不再accept，新连接在backlog中等待*/
+	private Semaphore mWorkerPermits;
+	/**同时接收后续请求的数量，每个会话最多一个，不够时会话按顺序请求*/
+	private Semaphore mContinuationPermits;
+	/**NIO中转引擎，开启后才创建*/
+	private NioRelay mNioRelay;
+	/**是否使用NIO中转*/
+	private volatile boolean mNioRelayEnabled = false;
+	/**播放列表中改写的链接*/
+	private final RouteTable mRoutes = new RouteTable(Config.HLS_MAX_ROUTES);
+	/**最近改写的媒体播放列表，链接 -> 播放列表，用来找出之后的分段*/
+	private final LinkedHashMap<String, HlsPlaylist> mPlaylists = new LinkedHashMap<String, HlsPlaylist>(8, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, HlsPlaylist> eldest) {
+			return size() > Config.HLS_MAX_PLAYLISTS;
+		}
+	};
+	/**代理和缓存的统计*/
+	private final Metrics mMetrics = new Metrics();
+	/**是否在本地端口提供/stats*/
+	private volatile boolean mStatsEnabled = false;
+	/**活动中的会话*/
+	private final Set<ProxySession> mSessions = Collections.synchronizedSet(new HashSet<ProxySession>());
+	/**正在中转播放数据的会话，不为空时暂停预加载，由mSessions同步*/
+	private final Set<ProxySession> mRelayingSessions = new HashSet<ProxySession>();
+
 	/**
 	 * 初始化代理服务器，并启动代理服务器
 	 * @param dir 缓存文件夹的路径
-	 * @param size 所需预加载的大小
+	 * @param size 预加载大小的上限，实际大小按码率和带宽决定
 	 * @param maximum 预加载文件最大数
 	 */
 	public HttpGetProxy(String dirPath,int size,int maximum) {
+		this(dirPath, (long) size, maximum);
+	}
+
+	/**
+	 * 初始化代理服务器，并启动代理服务器
+	 * @param dir 缓存文件夹的路径
+	 * @param size 预加载大小的上限，实际大小按码率和带宽决定
+	 * @param maximum 预加载文件最大数
+	 */
+	public HttpGetProxy(String dirPath,long size,int maximum) {
+		this(dirPath, size, maximum, DEFAULT_BACKLOG, DEFAULT_MAX_SESSIONS);
+	}
+
+	/**
+	 * 初始化代理服务器，并启动代理服务器
+	 * @param dir 缓存文件夹的路径
+	 * @param size 预加载大小的上限，实际大小按码率和带宽决定
+	 * @param maximum 预加载文件最大数
+	 * @param backlog 连接等待队列长度
+	 * @param maxSessions 最大会话线程数，线程都在忙时新连接在backlog中等待
+	 */
+	public HttpGetProxy(String dirPath,long size,int maximum,int backlog,int maxSessions) {
 		try {
 			//初始化代理服务器
 			mBufferDirPath = dirPath; 
+			final AtomicInteger threadCount = new AtomicInteger();
+			mExecutor = new ThreadPoolExecutor(0, Integer.MAX_VALUE, 60, TimeUnit.SECONDS,
+					new SynchronousQueue<Runnable>(), new ThreadFactory() {
+						public Thread newThread(Runnable r) {
+							Thread thread = new Thread(r, "MProxy-" + threadCount.incrementAndGet());
+							thread.setDaemon(true);
+							return thread;
+						}
+					});
+			mCacheStore = new CacheStore(dirPath, Config.CACHE_MAX_BYTES_DEFAULT, maximum);
+			mCacheWriter = new CacheWriter(mCacheStore, Config.CACHE_WRITE_QUEUE_SIZE, mExecutor);
+			mConnectionPool = new ConnectionPool(Config.POOL_MAX_PER_ROUTE,
+					Config.POOL_KEEP_ALIVE_TIME, Config.POOL_WAIT_TIMEOUT,
+					new DnsCache(Config.DNS_CACHE_TTL, Config.DNS_CACHE_SIZE), mMetrics);
+			mUpstreamClient = new UpstreamClient(mConnectionPool);
+			mUrlResolver = new UrlResolver(mUpstreamClient, Config.URL_RESOLVE_CACHE_SIZE);
 			mBufferSize=size;
-			mBufferFileMaximum = maximum;
+			mBandwidthMeter = new BandwidthMeter();
+			mPrebufferPolicy = new PrebufferPolicy(mBandwidthMeter, mBufferSize);
+			mPrefetchScheduler = new PrefetchScheduler(mCacheStore, mUpstreamClient, mUrlResolver,
+					mPrebufferPolicy, mMetrics, mExecutor, Config.PREFETCH_CONCURRENCY);
 			localHost = Config.LOCAL_IP_ADDRESS;
-			localServer = new ServerSocket(0, 1,InetAddress.getByName(localHost));
-			localPort =localServer.getLocalPort();//有ServerSocket自动分配端口
+			mBacklog = backlog;
+			mWorkerPermits = new Semaphore(maxSessions);
+			mContinuationPermits = new Semaphore(maxSessions);
 			//启动代理服务器
-			new Thread() {
-				public void run() {
-					startProxy();
-				}
-			}.start();
+			start();
 			
 			mEnable = true;
 		} catch (Exception e) {
@@ -86,11 +181,149 @@ public class HttpGetProxy{
 		}
 	}
 	
+	/**
+	 * 开始接受MediaPlayer的连接，构造时已调用。stop之后可以再调用，尽量沿用原来的端口，
+	 * 之前的本地链接仍然有效
+	 * @throws IOException 端口绑定失败
+	 * @throws IllegalStateException 已close
+	 */
+	public synchronized void start() throws IOException {
+		if (mClosed)
+			throw new IllegalStateException("proxy closed");
+		if (localServer != null)
+			return;
+		ServerSocket server;
+		try {
+			server = openServer(localPort);
+		} catch (IOException e) {
+			if (localPort == 0)
+				throw e;
+			Log.e(TAG, "port " + localPort + " unavailable:" + e.toString());
+			server = openServer(0);
+		}
+		final ServerSocket acceptServer = server;
+		try {
+			mExecutor.execute(new Runnable() {
+				public void run() {
+					startProxy(acceptServer);
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			server.close();
+			throw new IOException("executor shut down");
+		}
+		localServer = server;
+		localPort = server.getLocalPort();//有ServerSocket自动分配端口
+	}
+
+	/**
+	 * @param port 0为自动分配
+	 */
+	private ServerSocket openServer(int port) throws IOException {
+		//由Channel创建，accept得到的Socket可以交给NIO中转
+		ServerSocket server = ServerSocketChannel.open().socket();
+		try {
+			server.setReuseAddress(true);
+			server.bind(new InetSocketAddress(InetAddress.getByName(localHost), port), mBacklog);
+			return server;
+		} catch (IOException e) {
+			server.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * 停止代理，进行中的会话最多等待Config.SHUTDOWN_DRAIN_TIMEOUT，见stop(long)
+	 */
+	public void stop() {
+		stop(Config.SHUTDOWN_DRAIN_TIMEOUT);
+	}
+
+	/**
+	 * 停止接受新连接并停止预加载，等待进行中的会话结束，超时后直接断开。
+	 * 会阻塞调用的线程，之后可以再start，缓存、连接池和线程池都保留
+	 * @param timeout 等待会话结束的最长时间，毫秒
+	 */
+	public void stop(long timeout) {
+		NioRelay nioRelay;
+		synchronized (this) {
+			if (localServer == null)
+				return;
+			try {
+				localServer.close();// 阻塞中的accept立刻返回，接受连接的循环结束
+			} catch (IOException e) {
+			}
+			localServer = null;
+			nioRelay = mNioRelay;
+		}
+		mPrefetchScheduler.cancelAll();
+		long deadline = System.currentTimeMillis() + timeout;
+		ProxySession[] sessions;
+		synchronized (mSessions) {
+			long now;
+			while (!mSessions.isEmpty() && (now = System.currentTimeMillis()) < deadline) {
+				try {
+					mSessions.wait(deadline - now);
+				} catch (InterruptedException e) {
+					break;
+				}
+			}
+			sessions = mSessions.toArray(new ProxySession[mSessions.size()]);
+		}
+		if (sessions.length == 0)
+			return;
+		if (Config.DEBUG)
+			Log.i(TAG, "close " + sessions.length + " sessions");
+		if (nioRelay != null)
+			nioRelay.closeAll();
+		for (int i = 0; i < sessions.length; i++)
+			sessions[i].closeSockets();
+	}
+
+	/**
+	 * 停止代理并释放所有资源：线程池、NIO中转、缓存写入、淘汰线程和空闲连接，之后不能再使用。
+	 * 排队中的缓存写入仍会完成，线程池中的任务最多再等待Config.SHUTDOWN_DRAIN_TIMEOUT后关闭缓存
+	 */
+	public void close() {
+		stop();
+		synchronized (this) {
+			if (mClosed)
+				return;
+			mClosed = true;
+			mNioRelayEnabled = false;
+			if (mNioRelay != null) {
+				mNioRelay.close();
+				mNioRelay = null;
+			}
+		}
+		mPrefetchScheduler.cancelAll();
+		mExecutor.shutdown();// 不再接受任务，空闲线程立刻结束
+		// 写入循环也在线程池中，先让它写完排队的数据后结束，之后的release在调用的线程中执行
+		mCacheWriter.close();
+		try {
+			if (!mExecutor.awaitTermination(Config.SHUTDOWN_DRAIN_TIMEOUT, TimeUnit.MILLISECONDS))
+				Log.e(TAG, "close: tasks still running");
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		mConnectionPool.evictAll();
+		mCacheStore.close();
+	}
+
+	/**
+	 * 是否正在接受连接
+	 */
+	public synchronized boolean isRunning() {
+		return localServer != null;
+	}
+
 	/**
 	 * 代理服务器是否可用
 	 * @return
 	 */
 	public boolean getEnable(){
+		if (!isRunning())
+			return false;
 		//判断外部缓存是否可用
 		File dir = new File(mBufferDirPath);
 		mEnable=dir.exists();
@@ -105,16 +338,110 @@ public class HttpGetProxy{
 	}
 
 	/**
-	 * 停止下载
+	 * 设置缓存的上限，超出后在后台按淘汰策略删除没在使用中的缓存
+	 * @param maxBytes 缓存总字节数上限
+	 * @param maximum 缓存数量上限
+	 */
+	public void setCacheLimits(long maxBytes, int maximum) {
+		mCacheStore.getIndex().setLimits(maxBytes, maximum);
+	}
+
+	/**
+	 * 设置生成缓存名称时忽略的查询参数，如CDN链接中会过期的签名参数，
+	 * 签名不同的同一资源共用缓存，默认为Config.CACHE_IGNORED_QUERY_PARAMS
+	 * @param names 参数名，不区分大小写
+	 */
+	public void setIgnoredQueryParams(String... names) {
+		CacheStore.setIgnoredQueryParams(names);
+	}
+
+	/**
+	 * 设置缓存淘汰策略，默认为EvictionPolicy.LRU
+	 * @param policy
+	 */
+	public void setEvictionPolicy(EvictionPolicy policy) {
+		mCacheStore.getIndex().setPolicy(policy);
+	}
+
+	/**
+	 * 开启或关闭NIO中转模式。开启后，每个会话发送完Response头和预加载之后，
+	 * 剩余的数据交给少量固定的I/O线程中转，会话线程立即释放
+	 * @param enabled
+	 */
+	public synchronized void setNioRelayEnabled(boolean enabled) {
+		if (mClosed)
+			return;
+		if (enabled && mNioRelay == null) {
+			try {
+				mNioRelay = new NioRelay(Config.NIO_RELAY_THREADS, mExecutor);
+			} catch (IOException e) {
+				Log.e(TAG, CommonUtil.getExceptionMessage(e));
+				return;
+			}
+		}
+		mNioRelayEnabled = enabled;
+	}
+
+	/**
+	 * 在后台发出缓存之后的数据的请求
+	 * @return 没有空闲线程时返回null
+	 */
+	ContinuationFetch startContinuation(HttpGetProxyUtils utils, ProxyRequest request) {
+		if (!mContinuationPermits.tryAcquire())
+			return null;
+		final ContinuationFetch fetch = new ContinuationFetch(utils, request, mConnectionPool,
+				mBandwidthMeter, Config.CONTINUATION_BUFFER_SIZE);
+		try {
+			mExecutor.execute(new Runnable() {
+				public void run() {
+					try {
+						fetch.run();
+					} finally {
+						mContinuationPermits.release();
+					}
+				}
+			});
+			return fetch;
+		} catch (RejectedExecutionException e) {
+			mContinuationPermits.release();
+			return null;
+		}
+	}
+
+	/**
+	 * 未开启NIO中转时返回null
+	 */
+	NioRelay getNioRelay() {
+		return mNioRelayEnabled ? mNioRelay : null;
+	}
+
+	/**
+	 * 停止所有预加载，包括排队中的
 	 */
 	public void stopDownload(){
-		if (downloadThread != null && downloadThread.isDownloading())
-			downloadThread.stopThread();
+		mPrefetchScheduler.cancelAll();
 	}
 	
 	/**
-	 * 开始预加载,一个时间只能预加载url
-	 * @param id media唯一id，长时间有效，可以使用System.currentTimeMillis()
+	 * 预加载调度，可以提前预加载多个url
+	 */
+	public PrefetchScheduler getPrefetchScheduler() {
+		return mPrefetchScheduler;
+	}
+
+	/**
+	 * 把url加入预加载队列，预加载的大小按码率和带宽决定，不超过构造时的size
+	 * @param url media链接
+	 * @param priority 优先级，数值大的先下载
+	 */
+	public void prefetch(String url, int priority) {
+		if(!getEnable())
+			return;
+		mPrefetchScheduler.enqueue(url, priority, mBufferSize);
+	}
+
+	/**
+	 * 开始预加载，设为即将播放的url，并以最高优先级加入预加载队列
 	 * @param url media链接
 	 * @param isDownload 是否下载
 	 * @throws Exception
@@ -124,238 +451,340 @@ public class HttpGetProxy{
 		if(!getEnable())
 			return;
 		mUrl=url;
-		String fileName = CommonUtil.getValidFileName(mUrl);
-		mMediaFilePath = mBufferDirPath + "/" + fileName;
+		mCacheKey = CacheStore.getCacheKey(mUrl);
+		if (HlsPlaylist.isPlaylist(URI.create(mUrl).getPath(), null)) {
+			if (Config.DEBUG)
+				Log.i(TAG, "----playlist:" + mUrl);
+			return;// 播放列表不预加载，改写播放列表时预加载分段
+		}
 
-		//判断文件是否存在，忽略已经缓冲过的文件
-		File tmpFile = new File(mMediaFilePath);
-		if(tmpFile.exists() && tmpFile.length()>=mBufferSize){
-			Log.i(TAG, "----exists:" + mMediaFilePath+" size:"+tmpFile.length());
+		//判断缓存是否存在，忽略已经缓冲过的文件
+		long cachedSize = mCacheStore.getAvailableLength(mCacheKey, 0);
+		long targetSize = mPrebufferPolicy.getTargetSize(mCacheKey, mCacheStore.getContentLength(mCacheKey));
+		if(cachedSize>=targetSize && mCacheStore.isFresh(mCacheKey)){// 过期的缓存在后台向服务器核对
+			if (Config.DEBUG)
+				Log.i(TAG, "----exists:" + mCacheKey+" size:"+cachedSize);
 			return;
 		}
-		stopDownload();
 		if (isDownload) {
-			downloadThread = new DownloadThread(mUrl, mBufferDirPath, fileName, mBufferFileMaximum, mBufferSize);
-			downloadThread.startThread();
-			Log.i(TAG, "----startDownload:" + mMediaFilePath);
+			mPrefetchScheduler.enqueue(mUrl, PrefetchScheduler.PRIORITY_HIGH, mBufferSize);
+			if (Config.DEBUG)
+				Log.i(TAG, "----startDownload:" + mCacheKey);
 		}
 	}
 	
 	/**
-	 * 获取播放链接。此方法有网络请求，调用者需在异步中进行处理。
+	 * 获取播放链接。本地链接中的编号对应远程目标，可以同时代理多个服务器的多个链接。
+	 * 重定向结果没有缓存时有网络请求，调用者需在异步中进行处理。
 	 * 
 	 * @param url 网络URL
+	 * @return 不能代理时返回原url
 	 */
 	public String getLocalURL(String url) {
-		if(TextUtils.isEmpty(mUrl)		//没预加载过 
-				|| mUrl.equals(url)==false)//与预加载的url不符合
-			return "";
-		
 		//代理服务器不可用
-		if(!getEnable())
-			return mUrl;
+		if(!getEnable() || TextUtils.isEmpty(url))
+			return url;
 		
-		//Log.e("Http mUrl",mUrl);
 		//排除HTTP特殊,如重定向
-		mMediaUrl = CommonUtil.getRedirectUrl(mUrl);
-		//Log.e("Http mMediaUrl",mMediaUrl);
-		// ----获取对应本地代理服务器的链接----//
-		String localUrl="";
-		URI originalURI = URI.create(mMediaUrl);
-		remoteHost = originalURI.getHost();
-		if (originalURI.getPort() != -1) {// URL带Port
-			serverAddress = new InetSocketAddress(remoteHost, originalURI.getPort());// 使用默认端口
-			remotePort = originalURI.getPort();// 保存端口，中转时替换
-			localUrl = mMediaUrl.replace(remoteHost + ":" + originalURI.getPort(), localHost + ":" + localPort);
-		} else {// URL不带Port
-			serverAddress = new InetSocketAddress(remoteHost, Config.HTTP_PORT_DEFAULT);// 使用80端口
-			remotePort = -1;
-			localUrl = mMediaUrl.replace(remoteHost, localHost + ":" + localPort);
+		ProxyTarget target = createTarget(mUrlResolver.resolve(url));
+		if (target == null)
+			return url;
+		target.playlist = HlsPlaylist.isPlaylist(URI.create(target.mediaUrl).getPath(), null);
+		if (!target.playlist)// 播放列表会变化，不缓存
+			target.cacheKey = CacheStore.getCacheKey(url);
+		//登记本地链接，会话按请求的路径找回各自的目标
+		return registerRoute(target);
+	}
+
+	/**
+	 * 登记远程目标
+	 * @return 本地链接
+	 */
+	private String registerRoute(ProxyTarget target) {
+		return "http://" + localHost + ":" + localPort + mRoutes.register(target);
+	}
+
+	/**
+	 * 按链接生成远程目标，服务器地址由连接池解析
+	 * @return 不是http或https链接时返回null
+	 */
+	private ProxyTarget createTarget(String url) {
+		URI uri;
+		try {
+			uri = URI.create(url);
+		} catch (IllegalArgumentException e) {
+			return null;
+		}
+		boolean secure = "https".equalsIgnoreCase(uri.getScheme());
+		if ((!secure && !"http".equalsIgnoreCase(uri.getScheme())) || uri.getHost() == null)
+			return null;
+		ProxyTarget target = new ProxyTarget();
+		target.secure = secure;
+		target.mediaUrl = url;
+		target.requestUri = CommonUtil.getRequestUri(uri);
+		target.remoteHost = uri.getHost();
+		if (uri.getPort() != -1) {// URL带Port
+			target.serverAddress = InetSocketAddress.createUnresolved(target.remoteHost, uri.getPort());
+			target.remotePort = uri.getPort();// 保存端口，中转时替换
+		} else {// URL不带Port，使用80或443端口
+			target.serverAddress = InetSocketAddress.createUnresolved(target.remoteHost,
+					secure ? Config.HTTPS_PORT_DEFAULT : Config.HTTP_PORT_DEFAULT);
+			target.remotePort = -1;
+		}
+		return target;
+	}
+
+	/**
+	 * 把播放列表中的链接登记为本地链接，分段各自缓存
+	 * @param url 绝对链接
+	 * @param playlist 是否为播放列表
+	 * @param playlistUrl 所在的播放列表的链接
+	 * @return 本地链接，不能代理的链接返回null
+	 */
+	String mapPlaylistUri(String url, boolean playlist, String playlistUrl) {
+		ProxyTarget target = createTarget(url);
+		if (target == null)
+			return null;
+		target.playlist = playlist;
+		if (!playlist) {
+			target.cacheKey = CacheStore.getCacheKey(url);
+			target.playlistUrl = playlistUrl;
+		}
+		return registerRoute(target);
+	}
+
+	/**
+	 * 把服务器重定向到的链接登记为本地链接，仍使用原来的缓存，播放器跟随重定向时继续经过代理
+	 * @param target 收到重定向的远程目标
+	 * @param location 重定向的绝对链接
+	 * @return 本地链接，不能代理的链接返回null
+	 */
+	String mapRedirect(ProxyTarget target, String location) {
+		ProxyTarget redirect = createTarget(location);
+		if (redirect == null)
+			return null;
+		redirect.cacheKey = target.cacheKey;
+		redirect.playlist = target.playlist;
+		redirect.playlistUrl = target.playlistUrl;
+		return registerRoute(redirect);
+	}
+
+	/**
+	 * 播放列表改写完成。点播的媒体播放列表先预加载开头的分段，直播的等播放位置确定后再预加载
+	 */
+	void onPlaylistRewritten(HlsPlaylist playlist) {
+		if (playlist.isMaster())
+			return;
+		synchronized (mPlaylists) {
+			mPlaylists.put(playlist.getUrl(), playlist);
+		}
+		if (playlist.isEnded())
+			prefetchSegments(playlist, 0);
+	}
+
+	/**
+	 * MediaPlayer请求了一个分段，预加载之后的分段
+	 */
+	void onSegmentRequested(ProxyTarget target) {
+		HlsPlaylist playlist;
+		synchronized (mPlaylists) {
+			playlist = mPlaylists.get(target.playlistUrl);
 		}
+		if (playlist == null)
+			return;
+		int index = playlist.getSegments().indexOf(target.mediaUrl);
+		if (index != -1)
+			prefetchSegments(playlist, index + 1);
+	}
 
-		return localUrl;
+	/**
+	 * 从第from个分段开始预加载Config.HLS_PREFETCH_SEGMENTS个，近的优先，播放中也不暂停
+	 */
+	private void prefetchSegments(HlsPlaylist playlist, int from) {
+		if (!getEnable())
+			return;
+		List<String> segments = playlist.getSegments();
+		int end = Math.min(segments.size(), from + Config.HLS_PREFETCH_SEGMENTS);
+		for (int i = from; i < end; i++) {
+			String url = segments.get(i);
+			if (mapPlaylistUri(url, false, playlist.getUrl()) == null)
+				continue;// 不能代理的分段，播放器直接连接服务器
+			mPrefetchScheduler.enqueue(url, PrefetchScheduler.PRIORITY_PLAYBACK + end - i,
+					DownloadThread.SIZE_WHOLE);
+		}
 	}
 
 	/**
-	 * 有些支持m3u8格式Mediaplayer发出新的Request请求之前不会中断旧的Request请求,这里加入多线程监听Request请求。
+	 * 有些支持m3u8格式Mediaplayer发出新的Request请求之前不会中断旧的Request请求，
+	 * 同一时间也可能有多个播放器在播放，所以每个连接都是一个独立的会话，交给线程池处理，互不关闭。
+	 * server被stop关闭后结束
 	 */
-	private void startProxy() {
-		while (true) {
+	private void startProxy(ServerSocket server) {
+		while (!server.isClosed()) {
 			// --------------------------------------
 			// 监听MediaPlayer的请求，MediaPlayer->代理服务器
 			// --------------------------------------
-			Log.i(TAG, "......ready to start...........1");
+			mWorkerPermits.acquireUninterruptibly();
+			Socket s;
 			try {
-				Socket s = localServer.accept();
-				if(proxy!=null){
-					proxy.closeSockets();
-				}
-				Log.i(TAG, "......started...........1");
-				proxy = new Proxy(s);
-				
-				new Thread(){
-					public void run(){
-						Log.i(TAG, "......ready to start...........2");
-						try {
-							Socket s = localServer.accept();
-							proxy.closeSockets();
-							Log.i(TAG, "......started...........2");
-							proxy = new Proxy(s);
-							proxy.run();
-						} catch (IOException e) {
-							Log.e(TAG, e.toString());
-							Log.e(TAG, CommonUtil.getExceptionMessage(e));
-						}
-						
-					}
-				}.start();
-				
-				proxy.run();
+				s = server.accept();
 			} catch (IOException e) {
+				mWorkerPermits.release();
+				if (server.isClosed())
+					break;
 				Log.e(TAG, e.toString());
 				Log.e(TAG, CommonUtil.getExceptionMessage(e));
+				continue;
+			}
+			ProxySession session = new ProxySession(this, s);
+			try {
+				mExecutor.execute(session);
+			} catch (RejectedExecutionException e) {
+				mWorkerPermits.release();
+				Log.e(TAG, "reject:" + s);
+				session.closeSockets();
 			}
 		}
 	}
-	
-	private class Proxy{
-		/** 收发Media Player请求的Socket */
-		private Socket sckPlayer = null;
-		/** 收发Media Server请求的Socket */
-		private Socket sckServer = null;
-		
-		public Proxy(Socket sckPlayer){
-			this.sckPlayer=sckPlayer;
+
+	/**
+	 * 根据MediaPlayer请求的路径找到对应的远程目标
+	 * @param requestUri Request报文中的URI
+	 * @return 没有登记过的路径返回null
+	 */
+	ProxyTarget findTarget(String requestUri) {
+		if (requestUri != null && requestUri.regionMatches(true, 0, "http://", 0, 7)) {// 绝对URI
+			try {
+				requestUri = CommonUtil.getRequestUri(URI.create(requestUri));
+			} catch (IllegalArgumentException e) {
+				return null;
+			}
 		}
-		
-		public void run() {
-			HttpGetParser httpParser = null;
-			HttpGetProxyUtils utils = null;
-			int bytes_read;
+		return mRoutes.find(requestUri);
+	}
 
-			byte[] local_request = new byte[1024];
-			byte[] remote_reply = new byte[1024 * 50];
+	void onSessionStart(ProxySession session) {
+		mSessions.add(session);
+	}
 
-			boolean sentResponseHeader = false;
+	/**
+	 * 会话找到了要中转的目标。有会话在播放时暂停预加载，不和播放争抢带宽，
+	 * /stats和无效的请求不会走到这里
+	 */
+	void onRelayStart(ProxySession session) {
+		synchronized (mSessions) {
+			mRelayingSessions.add(session);
+			mPrefetchScheduler.setPaused(true);
+		}
+	}
 
-			try {
-				Log.i(TAG, "<----------------------------------->");
-				stopDownload();
-
-				httpParser = new HttpGetParser(remoteHost, remotePort, localHost,
-						localPort);
-
-				ProxyRequest request = null;
-				while ((bytes_read = sckPlayer.getInputStream().read(
-						local_request)) != -1) {
-					byte[] buffer = httpParser.getRequestMessage(local_request,
-							bytes_read);
-					if (buffer != null) {
-						request = httpParser.getProxyRequest(buffer);
-						break;
-					}
-				}
+	void onSessionEnd(ProxySession session) {
+		synchronized (mSessions) {
+			mSessions.remove(session);
+			if (mRelayingSessions.remove(session) && mRelayingSessions.isEmpty())
+				mPrefetchScheduler.setPaused(false);
+			mSessions.notifyAll();// stop在等待会话结束
+		}
+	}
 
-				utils = new HttpGetProxyUtils(sckPlayer, serverAddress);
-				boolean isExists = new File(mMediaFilePath).exists();
-				if (request != null) {// MediaPlayer的request有效
-					sckServer = utils.sentToServer(request.message);// 发送MediaPlayer的request
-				} else {// MediaPlayer的request无效
-					closeSockets();
-					return;
-				}
-				// ------------------------------------------------------
-				// 把网络服务器的反馈发到MediaPlayer，网络服务器->代理服务器->MediaPlayer
-				// ------------------------------------------------------
-				while (sckServer != null
-						&& ((bytes_read = sckServer.getInputStream().read(
-								remote_reply)) != -1)) {
-					if (sentResponseHeader) {
-						try {// 拖动进度条时，容易在此异常，断开重连
-							utils.sendToMP(remote_reply, bytes_read);
-						} catch (Exception e) {
-							Log.e(TAG, e.toString());
-							Log.e(TAG, CommonUtil.getExceptionMessage(e));
-							break;// 发送异常直接退出while
-						}
+	/**
+	 * 会话线程返回线程池(会话结束或已交给NIO中转)
+	 */
+	void onWorkerDone() {
+		mWorkerPermits.release();
+	}
 
-						if (proxyResponse == null)
-							continue;// 没Response Header则退出本次循环
+	/**
+	 * 设置https连接服务器用的SocketFactory和主机名校验，服务器使用自签名证书或需要固定证书时使用，
+	 * 为null则使用系统默认的
+	 */
+	public void setSslSocketFactory(SSLSocketFactory factory, HostnameVerifier verifier) {
+		mConnectionPool.setSslSocketFactory(factory, verifier);
+	}
 
-						// 已完成读取
-						if (proxyResponse.currentPosition > proxyResponse.duration - SIZE) {
-							Log.i(TAG, "....ready....over....");
-							proxyResponse.currentPosition = -1;
-						} else if (proxyResponse.currentPosition != -1) {// 没完成读取
-							proxyResponse.currentPosition += bytes_read;
-						}
+	/**
+	 * 累计的统计，可以直接读取各项计数器和直方图
+	 */
+	public Metrics getMetrics() {
+		return mMetrics;
+	}
 
-						continue;// 退出本次while
-					}
-					proxyResponse = httpParser.getProxyResponse(remote_reply,
-							bytes_read);
-					if (proxyResponse == null)
-						continue;// 没Response Header则退出本次循环
-
-					sentResponseHeader = true;
-					// send http header to mediaplayer
-					utils.sendToMP(proxyResponse.header);
-
-					if (isExists) {// 需要发送预加载到MediaPlayer
-						isExists = false;
-						int sentBufferSize = 0;
-						sentBufferSize = utils.sendPrebufferToMP(
-								mMediaFilePath, request.rangePosition);
-						if (sentBufferSize > 0) {// 成功发送预加载，重新发送请求到服务器
-							// 修改Range后的Request发送给服务器
-							int newRange = (int) (sentBufferSize + request.rangePosition);
-							String newRequestStr = httpParser
-									.modifyRequestRange(request.message, newRange);
-							Log.i(TAG, newRequestStr);
-							try {
-								if (sckServer != null)
-									sckServer.close();
-							} catch (IOException ex) {
-							}
-							sckServer = utils.sentToServer(newRequestStr);
-							// 把服务器的Response的Header去掉
-							proxyResponse = utils.removeResponseHeader(
-									sckServer, httpParser);
-							continue;
-						}
-					}
+	/**
+	 * 所有统计的当前值，包括活动会话数、预加载进度、缓存大小和淘汰数等即时值
+	 */
+	public Map<String, Long> getStats() {
+		Map<String, Long> stats = mMetrics.snapshot();
+		stats.put("sessions.active", (long) getSessionCount());
+		stats.put("download.running", (long) mPrefetchScheduler.getRunningCount());
+		stats.put("download.pending", (long) mPrefetchScheduler.getPendingCount());
+		stats.put("bandwidth.bps", mBandwidthMeter.getEstimate());
+		stats.put("cache.bytes", mCacheStore.getIndex().getTotalSize());
+		stats.put("cache.count", (long) mCacheStore.getIndex().getCount());
+		stats.put("cache.evictions", mCacheStore.getIndex().getEvictionCount());
+		stats.put("buffers.outstanding", (long) (SizeClassPool.HEAP.getOutstandingCount()
+				+ SizeClassPool.DIRECT.getOutstandingCount()));
+		return stats;
+	}
 
-					// 如果没有预加载数据，或者预加载数据为空，则发送剩余数据
-					if (proxyResponse.body != null) {
-						utils.sendToMP(proxyResponse.body);
-					}
-				}
+	/**
+	 * 开启后，本地端口的/stats返回getStats()的JSON，默认关闭
+	 */
+	public void setStatsEnabled(boolean enabled) {
+		mStatsEnabled = enabled;
+	}
 
-				// 关闭 2个SOCKET
-				closeSockets();
-			} catch (Exception e) {
-				Log.e(TAG, e.toString());
-				Log.e(TAG, CommonUtil.getExceptionMessage(e));
-			}
-		}
-		
-		/**
-         * 关闭现有的链接
-         */
-        public void closeSockets(){
-            try {// 开始新的request之前关闭过去的Socket
-                if (sckPlayer != null){
-                    sckPlayer.close();
-                    sckPlayer=null;
-                }
-                
-                if (sckServer != null){
-                    sckServer.close();
-                    sckServer=null;
-                }
-            } catch (IOException e1) {}
-        }
-        
-	}
-
-}
\ No newline at end of file
+	boolean isStatsEnabled() {
+		return mStatsEnabled;
+	}
+
+	/**
+	 * 当前活动的会话数
+	 */
+	public int getSessionCount() {
+		return mSessions.size();
+	}
+
+	CacheStore getCacheStore() {
+		return mCacheStore;
+	}
+
+	CacheWriter getCacheWriter() {
+		return mCacheWriter;
+	}
+
+	ConnectionPool getConnectionPool() {
+		return mConnectionPool;
+	}
+
+	UpstreamClient getUpstreamClient() {
+		return mUpstreamClient;
+	}
+
+	/**
+	 * 重定向结果的缓存，链接已失效时可以调用invalidate
+	 */
+	public UrlResolver getUrlResolver() {
+		return mUrlResolver;
+	}
+
+	/**
+	 * 设置媒体时长，和资源总长度一起算出码率，决定预加载的大小。
+	 * 可以在MediaPlayer准备好后用getDuration()的值设置，之后的预加载使用
+	 * @param url 网络URL
+	 * @param durationMs 时长，毫秒
+	 */
+	public void setMediaDuration(String url, long durationMs) {
+		mPrebufferPolicy.setDuration(CacheStore.getCacheKey(url), durationMs);
+	}
+
+	/**
+	 * 中转和预加载测得的带宽
+	 */
+	public BandwidthMeter getBandwidthMeter() {
+		return mBandwidthMeter;
+	}
+
+	PrebufferPolicy getPrebufferPolicy() {
+		return mPrebufferPolicy;
+	}
+}
@@ -0,0 +1,337 @@
+package com.wangli.mproxy.httpget;
+
+import com.wangli.mproxy.bean.HttpHeaders;
+import com.wangli.mproxy.utils.SizeClassPool;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * 增量的HTTP报文头解析器：逐字节找行尾，每个字节只看一次，遇到空行即报文头结束。
+ * 解析结果(起始行和各字段在缓冲区中的位置)保存在本对象中，reset后可以重复使用，
+ * 缓冲区从SizeClassPool取出，只在报文头超过当前容量时换成大一级的，超过上限直接抛出异常，
+ * 不再使用时release归还
+ */
+public class HttpHeaderParser {
+	private static final int INITIAL_SIZE = 2 * 1024;
+	private static final int INITIAL_LINES = 32;
+
+	private final int mMaxSize;
+	private final int mMaxLines;
+	/**从池中取出的缓冲区，第一次输入时才取出*/
+	private ByteBuffer mPooled;
+	private byte[] mBuffer;
+	/**每行两个值：行首、行尾(不含CRLF)，第0行是起始行*/
+	private int[] mLines;
+	private int mLineCount;
+	private int mLength;
+	private int mLineStart;
+	private boolean mComplete;
+
+	/**
+	 * @param maxSize 报文头的最大字节数
+	 * @param maxLines 报文头的最大行数，含起始行
+	 */
+	public HttpHeaderParser(int maxSize, int maxLines) {
+		mMaxSize = maxSize;
+		mMaxLines = maxLines;
+		mLines = new int[Math.min(INITIAL_LINES, maxLines) * 2];
+	}
+
+	/**
+	 * 清空，开始解析下一个报文
+	 */
+	public void reset() {
+		mLength = 0;
+		mLineStart = 0;
+		mLineCount = 0;
+		mComplete = false;
+	}
+
+	/**
+	 * 清空并归还缓冲区，之后还可以继续输入，会重新取出缓冲区
+	 */
+	public void release() {
+		reset();
+		SizeClassPool.HEAP.release(mPooled);
+		mPooled = null;
+		mBuffer = null;
+	}
+
+	/**
+	 * 输入收到的数据，上一个报文头已完整时先reset
+	 * @return 属于报文头的字节数，报文头完整时之后的数据属于消息体
+	 * @throws IOException 超过大小或行数上限
+	 */
+	public int feed(byte[] source, int offset, int length) throws IOException {
+		if (mComplete)
+			reset();
+		if (mBuffer == null)
+			setBuffer(SizeClassPool.HEAP.acquire(Math.min(INITIAL_SIZE, mMaxSize)));
+		for (int i = 0; i < length; i++) {
+			byte b = source[offset + i];
+			if (mLength == mBuffer.length || mLength == mMaxSize)// 池中的缓冲区可能比上限大
+				grow();
+			mBuffer[mLength++] = b;
+			if (b != '\n')
+				continue;
+			int lineEnd = mLength - 1;
+			if (lineEnd > mLineStart && mBuffer[lineEnd - 1] == '\r')
+				lineEnd--;
+			if (lineEnd == mLineStart) {// 空行
+				if (mLineCount == 0) {// 起始行之前的空行忽略
+					mLength = 0;
+					mLineStart = 0;
+					continue;
+				}
+				mComplete = true;
+				return i + 1;
+			}
+			if (mLineCount * 2 == mLines.length) {
+				if (mLineCount >= mMaxLines)
+					throw new IOException("http header lines exceed " + mMaxLines);
+				int[] lines = new int[Math.min(mLines.length * 2, mMaxLines * 2)];
+				System.arraycopy(mLines, 0, lines, 0, mLines.length);
+				mLines = lines;
+			}
+			mLines[mLineCount * 2] = mLineStart;
+			mLines[mLineCount * 2 + 1] = lineEnd;
+			mLineCount++;
+			mLineStart = mLength;
+		}
+		return length;
+	}
+
+	private void grow() throws IOException {
+		if (mLength >= mMaxSize)
+			throw new IOException("http header exceeds " + mMaxSize + " bytes");
+		ByteBuffer pooled = mPooled;
+		byte[] buffer = mBuffer;
+		setBuffer(SizeClassPool.HEAP.acquire(Math.min(mBuffer.length * 2, mMaxSize)));
+		System.arraycopy(buffer, 0, mBuffer, 0, mLength);
+		SizeClassPool.HEAP.release(pooled);
+	}
+
+	private void setBuffer(ByteBuffer pooled) {
+		mPooled = pooled;
+		mBuffer = pooled.array();
+	}
+
+	/**
+	 * 报文头是否已完整
+	 */
+	public boolean isComplete() {
+		return mComplete;
+	}
+
+	/**
+	 * 报文头的字节数，含最后的空行
+	 */
+	public int getLength() {
+		return mLength;
+	}
+
+	public String getStartLine() {
+		return mLineCount == 0 ? null : decode(mLines[0], mLines[1] - mLines[0]);
+	}
+
+	/**
+	 * 起始行是否为Response的状态行
+	 */
+	public boolean isResponse() {
+		return startsWith(0, "HTTP/");
+	}
+
+	/**
+	 * 起始行的第index个部分，"GET /a.mp4 HTTP/1.1"的第1个为"/a.mp4"
+	 * @return 没有则返回null
+	 */
+	public String getStartLineToken(int index) {
+		if (mLineCount == 0)
+			return null;
+		int end = mLines[1];
+		int start = mLines[0];
+		for (int i = 0; i < index; i++) {
+			while (start < end && mBuffer[start] != ' ')
+				start++;
+			if (start == end)
+				return null;
+			start++;
+		}
+		int tokenEnd = start;
+		// 最后一部分(如状态行的原因短语)可以含空格
+		if (index == 2)
+			tokenEnd = end;
+		else
+			while (tokenEnd < end && mBuffer[tokenEnd] != ' ')
+				tokenEnd++;
+		return decode(start, tokenEnd - start);
+	}
+
+	/**
+	 * Request的方法，如"GET"
+	 */
+	public String getMethod() {
+		return getStartLineToken(0);
+	}
+
+	/**
+	 * Request的URI，如"/a.mp4?id=1"
+	 */
+	public String getUri() {
+		return getStartLineToken(1);
+	}
+
+	/**
+	 * Response的状态码，直接从字节解析
+	 * @return 无效的状态行返回-1
+	 */
+	public int getStatusCode() {
+		if (!isResponse())
+			return -1;
+		int start = mLines[0];
+		int end = mLines[1];
+		while (start < end && mBuffer[start] != ' ')
+			start++;
+		start++;
+		if (start + 3 > end)
+			return -1;
+		int code = 0;
+		for (int i = start; i < start + 3; i++) {
+			int digit = mBuffer[i] - '0';
+			if (digit < 0 || digit > 9)
+				return -1;
+			code = code * 10 + digit;
+		}
+		return code;
+	}
+
+	/**
+	 * 字段数，不含起始行
+	 */
+	public int getHeaderCount() {
+		return Math.max(0, mLineCount - 1);
+	}
+
+	public String getHeaderName(int index) {
+		int start = mLines[(index + 1) * 2];
+		int colon = indexOfColon(index + 1);
+		return decode(start, (colon == -1 ? mLines[(index + 1) * 2 + 1] : colon) - start).trim();
+	}
+
+	public String getHeaderValue(int index) {
+		int colon = indexOfColon(index + 1);
+		if (colon == -1)
+			return "";
+		int end = mLines[(index + 1) * 2 + 1];
+		return decode(colon + 1, end - colon - 1).trim();
+	}
+
+	/**
+	 * 字段名不区分大小写
+	 * @return 没有则返回-1
+	 */
+	public int indexOfHeader(String name) {
+		for (int line = 1; line < mLineCount; line++) {
+			int start = mLines[line * 2];
+			int end = mLines[line * 2 + 1];
+			if (end - start > name.length() && mBuffer[start + name.length()] == ':'
+					&& regionMatches(start, name))
+				return line - 1;
+		}
+		return -1;
+	}
+
+	/**
+	 * 获取字段的值，字段名不区分大小写
+	 * @return 没有则返回null
+	 */
+	public String getHeader(String name) {
+		int index = indexOfHeader(name);
+		return index == -1 ? null : getHeaderValue(index);
+	}
+
+	/**
+	 * 获取数字字段的值，直接从字节解析
+	 * @return 没有或无效时返回defaultValue
+	 */
+	public long getLongHeader(String name, long defaultValue) {
+		int index = indexOfHeader(name);
+		if (index == -1)
+			return defaultValue;
+		int i = mLines[(index + 1) * 2] + name.length() + 1;
+		int end = mLines[(index + 1) * 2 + 1];
+		while (i < end && (mBuffer[i] == ' ' || mBuffer[i] == '\t'))
+			i++;
+		while (end > i && (mBuffer[end - 1] == ' ' || mBuffer[end - 1] == '\t'))
+			end--;
+		if (i == end || end - i > 18)// 超过18位可能溢出
+			return defaultValue;
+		long value = 0;
+		for (; i < end; i++) {
+			int digit = mBuffer[i] - '0';
+			if (digit < 0 || digit > 9)
+				return defaultValue;
+			value = value * 10 + digit;
+		}
+		return value;
+	}
+
+	/**
+	 * 把所有字段加入headers
+	 */
+	public void getHeaders(HttpHeaders headers) {
+		for (int i = 0; i < getHeaderCount(); i++) {
+			if (indexOfColon(i + 1) != -1)// 没有冒号的行忽略
+				headers.add(getHeaderName(i), getHeaderValue(i));
+		}
+	}
+
+	/**
+	 * 按ISO-8859-1解码，每个字节对应一个字符，写回时原样还原
+	 */
+	private String decode(int offset, int length) {
+		char[] chars = new char[length];
+		for (int i = 0; i < length; i++)
+			chars[i] = (char) (mBuffer[offset + i] & 0xff);
+		return new String(chars);
+	}
+
+	private int indexOfColon(int line) {
+		for (int i = mLines[line * 2]; i < mLines[line * 2 + 1]; i++) {
+			if (mBuffer[i] == ':')
+				return i;
+		}
+		return -1;
+	}
+
+	private boolean startsWith(int line, String prefix) {
+		if (mLineCount <= line || mLines[line * 2 + 1] - mLines[line * 2] < prefix.length())
+			return false;
+		int start = mLines[line * 2];
+		for (int i = 0; i < prefix.length(); i++) {
+			if (mBuffer[start + i] != prefix.charAt(i))
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * 从start开始的字节与name是否相同，不区分大小写(只比较ASCII)
+	 */
+	private boolean regionMatches(int start, String name) {
+		for (int i = 0; i < name.length(); i++) {
+			int a = mBuffer[start + i];
+			int b = name.charAt(i);
+			if (a == b)
+				continue;
+			if (a >= 'A' && a <= 'Z')
+				a += 'a' - 'A';
+			if (b >= 'A' && b <= 'Z')
+				b += 'a' - 'A';
+			if (a != b)
+				return false;
+		}
+		return true;
+	}
+}
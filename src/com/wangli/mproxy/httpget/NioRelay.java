@@ -0,0 +1,341 @@
+package com.wangli.mproxy.httpget;
+
+import com.wangli.mproxy.utils.BufferPool;
+import com.wangli.mproxy.utils.CommonUtil;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 基于Selector的中转引擎：少量固定的I/O线程服务所有MediaPlayer连接，
+ * 缓冲区从池中取，目标端写不完时停止读取源端(写就绪后再恢复)，避免内存随连接数增长。
+ * I/O循环运行在调用者提供的线程池中，close后结束
+ */
+public class NioRelay {
+	private static final String TAG = "NioRelay";
+	/**每个方向的缓冲区大小*/
+	private static final int BUFFER_SIZE = 16 * 1024;
+
+	/**
+	 * 中转过程的回调，在I/O线程中调用，不能阻塞
+	 */
+	public interface Callback {
+		/**
+		 * 服务器->MediaPlayer方向读到的数据，position到limit之间为新数据，不能修改buffer的状态
+		 */
+		void onServerData(ByteBuffer data);
+
+		/**
+		 * 中转结束，两端的连接都已关闭
+		 */
+		void onClosed();
+	}
+
+	private final IoLoop[] mLoops;
+	private final AtomicInteger mNext = new AtomicInteger();
+	private final BufferPool mBufferPool;
+
+	/**
+	 * @param threadCount I/O线程数
+	 * @param executor 运行I/O循环，每个循环一直占用一个线程，直到close
+	 */
+	public NioRelay(int threadCount, Executor executor) throws IOException {
+		mBufferPool = new BufferPool(BUFFER_SIZE, threadCount * 64, true);
+		mLoops = new IoLoop[threadCount];
+		for (int i = 0; i < threadCount; i++)
+			mLoops[i] = new IoLoop();
+		for (int i = 0; i < threadCount; i++)
+			executor.execute(mLoops[i]);
+	}
+
+	/**
+	 * 断开所有中转中的连接，每对连接都回调onClosed，之后仍可以中转新的连接
+	 */
+	public void closeAll() {
+		for (int i = 0; i < mLoops.length; i++)
+			mLoops[i].requestClose(false);
+	}
+
+	/**
+	 * 断开所有中转中的连接并结束I/O循环，之后不能再使用
+	 */
+	public void close() {
+		for (int i = 0; i < mLoops.length; i++)
+			mLoops[i].requestClose(true);
+	}
+
+	/**
+	 * 把一对已连接的Channel交给I/O线程中转，调用后调用者不能再读写这两个连接
+	 * @param player MediaPlayer的连接
+	 * @param server 服务器的连接
+	 * @param callback 可以为null
+	 */
+	public void relay(SocketChannel player, SocketChannel server, Callback callback) throws IOException {
+		relay(player, server, -1, callback);
+	}
+
+	/**
+	 * 同relay(player, server, callback)，服务器发送serverLength字节后即结束，
+	 * 用于keep-alive的连接，服务器发送完Response后不会关闭连接
+	 * @param serverLength 服务器剩余的数据长度，-1为读到关闭
+	 */
+	public void relay(SocketChannel player, SocketChannel server, long serverLength, Callback callback)
+			throws IOException {
+		IoLoop loop = mLoops[(mNext.getAndIncrement() & Integer.MAX_VALUE) % mLoops.length];
+		if (loop.mStopped)
+			throw new IOException("relay closed");
+		player.configureBlocking(false);
+		server.configureBlocking(false);
+		loop.register(new Pair(player, server, serverLength, callback));
+	}
+
+	/**
+	 * 一对中转的连接，包含两个方向
+	 */
+	private class Pair {
+		final SocketChannel player;
+		final SocketChannel server;
+		final Callback callback;
+		/**所在的I/O循环，注册后设置*/
+		IoLoop loop;
+		/**服务器->MediaPlayer*/
+		ByteBuffer down;
+		/**MediaPlayer->服务器*/
+		ByteBuffer up;
+		SelectionKey playerKey;
+		SelectionKey serverKey;
+		/**服务器剩余的数据长度，-1为读到关闭*/
+		long serverRemaining;
+		/**服务器已发送完毕，写完剩余数据后关闭*/
+		boolean serverEof;
+		boolean closed;
+
+		Pair(SocketChannel player, SocketChannel server, long serverLength, Callback callback) {
+			this.player = player;
+			this.server = server;
+			this.callback = callback;
+			serverRemaining = serverLength;
+			serverEof = serverLength == 0;
+		}
+
+		void updateInterest() {
+			int playerOps = 0;
+			int serverOps = 0;
+			// 缓冲区还有数据没写出去时，先不读源端
+			if (down.position() == 0 && !serverEof)
+				serverOps |= SelectionKey.OP_READ;
+			else if (down.position() > 0)
+				playerOps |= SelectionKey.OP_WRITE;
+			if (up.position() == 0)
+				playerOps |= SelectionKey.OP_READ;
+			else
+				serverOps |= SelectionKey.OP_WRITE;
+			playerKey.interestOps(playerOps);
+			serverKey.interestOps(serverOps);
+		}
+
+		void close() {
+			if (closed)
+				return;
+			closed = true;
+			if (loop != null)
+				loop.mPairs.remove(this);
+			if (playerKey != null)
+				playerKey.cancel();
+			if (serverKey != null)
+				serverKey.cancel();
+			try {
+				player.close();
+			} catch (IOException e) {
+			}
+			try {
+				server.close();
+			} catch (IOException e) {
+			}
+			mBufferPool.release(down);
+			mBufferPool.release(up);
+			down = null;
+			up = null;
+			if (callback != null) {
+				try {
+					callback.onClosed();
+				} catch (RuntimeException e) {
+					Log.e(TAG, CommonUtil.getExceptionMessage(e));
+				}
+			}
+		}
+	}
+
+	/**
+	 * 一个Selector和它的I/O循环，Pair只在循环所在的线程中读写
+	 */
+	private class IoLoop implements Runnable {
+		private final Selector mSelector;
+		private final ConcurrentLinkedQueue<Pair> mPending = new ConcurrentLinkedQueue<Pair>();
+		/**已注册的连接，只在本循环的线程中使用*/
+		private final Set<Pair> mPairs = new HashSet<Pair>();
+		private volatile boolean mCloseRequested = false;
+		private volatile boolean mStopped = false;
+
+		IoLoop() throws IOException {
+			mSelector = Selector.open();
+		}
+
+		void register(Pair pair) {
+			mPending.offer(pair);
+			mSelector.wakeup();
+		}
+
+		/**
+		 * @param stop 是否结束循环
+		 */
+		void requestClose(boolean stop) {
+			if (stop)
+				mStopped = true;
+			mCloseRequested = true;
+			mSelector.wakeup();
+		}
+
+		public void run() {
+			while (true) {
+				try {
+					mSelector.select();
+					registerPending();
+					if (mCloseRequested) {
+						mCloseRequested = false;
+						closePairs();
+					}
+					if (mStopped) {
+						mSelector.close();
+						return;
+					}
+					Iterator<SelectionKey> it = mSelector.selectedKeys().iterator();
+					while (it.hasNext()) {
+						SelectionKey key = it.next();
+						it.remove();
+						Pair pair = (Pair) key.attachment();
+						if (pair.closed || !key.isValid())
+							continue;
+						try {
+							handle(pair, key);
+						} catch (IOException e) {// 拖动进度条时MediaPlayer会直接断开
+							pair.close();
+						}
+					}
+				} catch (IOException e) {
+					Log.e(TAG, e.toString());
+					Log.e(TAG, CommonUtil.getExceptionMessage(e));
+				}
+			}
+		}
+
+		private void closePairs() {
+			for (Pair pair : new ArrayList<Pair>(mPairs))
+				pair.close();
+		}
+
+		private void registerPending() {
+			Pair pair;
+			while ((pair = mPending.poll()) != null) {
+				pair.loop = this;
+				mPairs.add(pair);
+				try {
+					pair.down = mBufferPool.acquire();
+					pair.up = mBufferPool.acquire();
+					pair.playerKey = pair.player.register(mSelector, 0, pair);
+					pair.serverKey = pair.server.register(mSelector, 0, pair);
+					pair.updateInterest();
+				} catch (ClosedChannelException e) {
+					pair.close();
+				}
+			}
+		}
+
+		private void handle(Pair pair, SelectionKey key) throws IOException {
+			if (key == pair.serverKey) {
+				if (key.isReadable())
+					readServer(pair);
+				if (!pair.closed && key.isValid() && key.isWritable())
+					flush(pair.up, pair.server);
+			} else {
+				if (key.isReadable()) {
+					if (pair.player.read(pair.up) == -1) {// MediaPlayer断开
+						pair.close();
+						return;
+					}
+				}
+				if (key.isValid() && key.isWritable())
+					flush(pair.down, pair.player);
+				if (pair.serverEof && pair.down.position() == 0) {// 全部发送完毕
+					pair.close();
+					return;
+				}
+			}
+			if (!pair.closed) {
+				// 读到的数据尽量立即写出去，写不完再等写就绪
+				if (pair.down.position() > 0)
+					flush(pair.down, pair.player);
+				if (pair.up.position() > 0)
+					flush(pair.up, pair.server);
+				if (pair.serverEof && pair.down.position() == 0) {
+					pair.close();
+					return;
+				}
+				pair.updateInterest();
+			}
+		}
+
+		private void readServer(Pair pair) throws IOException {
+			int start = pair.down.position();
+			int limit = pair.down.limit();
+			if (pair.serverRemaining >= 0 && pair.down.remaining() > pair.serverRemaining)
+				pair.down.limit(start + (int) pair.serverRemaining);// 不读下一个Response的数据
+			int read;
+			try {
+				read = pair.server.read(pair.down);
+			} finally {
+				pair.down.limit(limit);
+			}
+			if (read == -1) {
+				pair.serverEof = true;
+				return;
+			}
+			if (pair.serverRemaining >= 0) {
+				pair.serverRemaining -= read;
+				if (pair.serverRemaining == 0)
+					pair.serverEof = true;
+			}
+			if (read > 0 && pair.callback != null) {
+				ByteBuffer data = pair.down.duplicate();
+				data.flip();
+				data.position(start);
+				pair.callback.onServerData(data);
+			}
+		}
+
+		/**
+		 * 把buffer中的数据写到channel，buffer处于写入状态(position为数据长度)
+		 */
+		private void flush(ByteBuffer buffer, SocketChannel channel) throws IOException {
+			buffer.flip();
+			try {
+				channel.write(buffer);
+			} finally {
+				buffer.compact();
+			}
+		}
+	}
+}
@@ -0,0 +1,108 @@
+package com.wangli.mproxy.httpget;
+
+import com.wangli.mproxy.utils.Config;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * 预加载大小的策略：码率由资源总长度和媒体时长算出，预加载起播需要的若干秒数据，
+ * 带宽充足时秒数减少，带宽低于码率时补足边下边播赶不上的部分，都不超过设定的上限
+ */
+public class PrebufferPolicy {
+	/**最多记录的媒体时长数*/
+	private static final int MAX_DURATIONS = 64;
+
+	private final BandwidthMeter mMeter;
+	private final long mMaxSize;
+	/**缓存名称 -> 媒体时长(毫秒)，按访问顺序淘汰*/
+	private final LinkedHashMap<String, Long> mDurations = new LinkedHashMap<String, Long>(16, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, Long> eldest) {
+			return size() > MAX_DURATIONS;
+		}
+	};
+
+	/**
+	 * @param meter 带宽估计
+	 * @param maxSize 预加载的上限
+	 */
+	public PrebufferPolicy(BandwidthMeter meter, long maxSize) {
+		mMeter = meter;
+		mMaxSize = maxSize;
+	}
+
+	public BandwidthMeter getBandwidthMeter() {
+		return mMeter;
+	}
+
+	/**
+	 * 设置媒体时长，用于计算码率
+	 * @param key 缓存名称
+	 * @param durationMs 时长，毫秒
+	 */
+	public synchronized void setDuration(String key, long durationMs) {
+		if (durationMs > 0)
+			mDurations.put(key, durationMs);
+		else
+			mDurations.remove(key);
+	}
+
+	/**
+	 * 码率，字节/秒
+	 * @param contentLength 资源总长度，未知为-1
+	 * @return 时长或总长度未知时返回Config.PREBUFFER_DEFAULT_BITRATE
+	 */
+	public synchronized long getBitrate(String key, long contentLength) {
+		Long duration = mDurations.get(key);
+		if (duration == null || contentLength <= 0)
+			return Config.PREBUFFER_DEFAULT_BITRATE;
+		return Math.max(1, contentLength * 1000 / duration);
+	}
+
+	/**
+	 * 起播需要的数据量：带宽与码率相当时为PREBUFFER_START_SECONDS秒，
+	 * 带宽越充足秒数越少，最少PREBUFFER_MIN_SECONDS秒
+	 */
+	public long getStartupSize(String key, long contentLength) {
+		long bitrate = getBitrate(key, contentLength);
+		long bandwidth = mMeter.getEstimate();
+		double seconds = Config.PREBUFFER_START_SECONDS;
+		if (bandwidth > 0) {
+			seconds = seconds * bitrate / bandwidth;
+			seconds = Math.max(Config.PREBUFFER_MIN_SECONDS, Math.min(Config.PREBUFFER_START_SECONDS, seconds));
+		}
+		return (long) (bitrate * seconds);
+	}
+
+	/**
+	 * 预加载的大小。带宽低于码率时，预加载的部分要让剩余的数据在播放结束前下载完：
+	 * 总长度 * (1 - 带宽 / 码率)
+	 * @param contentLength 资源总长度，未知为-1
+	 */
+	public long getTargetSize(String key, long contentLength) {
+		long size = getStartupSize(key, contentLength);
+		long bitrate = getBitrate(key, contentLength);
+		long bandwidth = mMeter.getEstimate();
+		if (bandwidth > 0 && bandwidth < bitrate && contentLength > 0)
+			size = Math.max(size, (long) (contentLength * (1 - (double) bandwidth / bitrate)));
+		size = Math.min(size, mMaxSize);
+		if (contentLength > 0)
+			size = Math.min(size, contentLength);
+		return size;
+	}
+
+	/**
+	 * 值得作为预加载发送的最小数据量：网络在PREBUFFER_WORTH_TIME内就能下载完的，
+	 * 不值得为它多发一次请求
+	 */
+	public long getMinPrebufferSize() {
+		long bandwidth = mMeter.getEstimate();
+		if (bandwidth <= 0)
+			return Config.PREBUFFER_MIN_SIZE_DEFAULT;
+		long size = bandwidth * Config.PREBUFFER_WORTH_TIME / 1000;
+		return Math.max(Config.PREBUFFER_MIN_SIZE_LOWER, Math.min(Config.PREBUFFER_MIN_SIZE_UPPER, size));
+	}
+}
@@ -0,0 +1,269 @@
+package com.wangli.mproxy.httpget;
+
+import com.wangli.mproxy.cache.CacheEntry;
+import com.wangli.mproxy.cache.CacheStore;
+import com.wangli.mproxy.utils.Config;
+import com.wangli.mproxy.utils.Metrics;
+
+import android.util.Log;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * 预加载调度：多个url按优先级排队，同时下载的数量有上限。
+ * 有MediaPlayer在播放时暂停预加载，正在下载的停下并重新排队，播放结束后再继续；
+ * 播放中马上要用的(如HLS之后的分段)不暂停
+ */
+public class PrefetchScheduler {
+	private static final String TAG = "PrefetchScheduler";
+	/**即将播放的url使用的优先级*/
+	public static final int PRIORITY_HIGH = 100;
+	/**默认优先级*/
+	public static final int PRIORITY_NORMAL = 0;
+	/**播放中马上要用的数据，不小于此优先级的在暂停时也继续下载*/
+	public static final int PRIORITY_PLAYBACK = 200;
+
+	/**
+	 * 一个预加载任务
+	 */
+	private static class Item implements Comparable<Item> {
+		final String url;
+		final String cacheKey;
+		final long sequence;
+		int priority;
+		long targetSize;
+		/**正在下载，未运行为null*/
+		DownloadThread download;
+
+		Item(String url, String cacheKey, long sequence) {
+			this.url = url;
+			this.cacheKey = cacheKey;
+			this.sequence = sequence;
+		}
+
+		/**优先级高的在前，相同则先加入的在前*/
+		public int compareTo(Item another) {
+			if (priority != another.priority)
+				return priority > another.priority ? -1 : 1;
+			return Long.valueOf(sequence).compareTo(another.sequence);
+		}
+	}
+
+	private final CacheStore mCacheStore;
+	private final UpstreamClient mClient;
+	private final UrlResolver mResolver;
+	private final PrebufferPolicy mPolicy;
+	private final Metrics mMetrics;
+	private final int mMaxConcurrent;
+	/**运行下载，同时下载的数量由mMaxConcurrent限制*/
+	private final ExecutorService mExecutor;
+	/**所有未完成的任务，url -> Item*/
+	private final Map<String, Item> mItems = new HashMap<String, Item>();
+	/**排队中的任务*/
+	private final PriorityQueue<Item> mPending = new PriorityQueue<Item>();
+	private int mRunningCount = 0;
+	private boolean mPaused = false;
+	private long mSequence = 0;
+
+	/**
+	 * @param store 缓存
+	 * @param client 下载使用的连接
+	 * @param resolver 下载前找出重定向后的链接
+	 * @param policy 按码率和带宽决定每个url预加载的大小
+	 * @param metrics 统计下载的字节数
+	 * @param executor 运行下载的线程池
+	 * @param maxConcurrent 同时下载的最大数量
+	 */
+	public PrefetchScheduler(CacheStore store, UpstreamClient client, UrlResolver resolver,
+			PrebufferPolicy policy, Metrics metrics, ExecutorService executor, int maxConcurrent) {
+		mCacheStore = store;
+		mClient = client;
+		mResolver = resolver;
+		mPolicy = policy;
+		mMetrics = metrics;
+		mMaxConcurrent = maxConcurrent;
+		mExecutor = executor;
+	}
+
+	/**
+	 * 加入预加载队列，已在队列中的更新优先级和大小
+	 * @param url media链接
+	 * @param priority 优先级，数值大的先下载
+	 * @param targetSize 预加载大小的上限，实际大小由PrebufferPolicy决定；
+	 *            DownloadThread.SIZE_WHOLE为下载整个资源
+	 */
+	public void enqueue(String url, int priority, long targetSize) {
+		synchronized (this) {
+			Item item = mItems.get(url);
+			if (item != null) {
+				item.targetSize = targetSize;
+				reprioritize(item, priority);
+				dispatch();
+				return;
+			}
+		}
+		// 读缓存的元数据要打开索引，在锁外进行，不阻塞其他线程入队和下载结束的回调
+		String cacheKey = CacheStore.getCacheKey(url);
+		CacheEntry entry = mCacheStore.open(cacheKey);
+		try {
+			long contentLength = entry.getContentLength();
+			long size;
+			if (targetSize == DownloadThread.SIZE_WHOLE)
+				size = contentLength > 0 ? contentLength : Long.MAX_VALUE;
+			else
+				size = Math.min(targetSize, mPolicy.getTargetSize(cacheKey, contentLength));
+			if (entry.getAvailableLength(0) >= size && entry.isFresh())
+				return;// 已经缓冲过，过期的由DownloadThread向服务器核对
+		} finally {
+			mCacheStore.release(entry);
+		}
+		synchronized (this) {
+			Item item = mItems.get(url);
+			if (item == null) {
+				item = new Item(url, cacheKey, mSequence++);
+				item.priority = priority;
+				item.targetSize = targetSize;
+				mItems.put(url, item);
+				mPending.add(item);
+			} else {// 读元数据时已被别的线程加入
+				item.targetSize = targetSize;
+				reprioritize(item, priority);
+			}
+			dispatch();
+		}
+	}
+
+	/**
+	 * 正在下载的数量
+	 */
+	public synchronized int getRunningCount() {
+		return mRunningCount;
+	}
+
+	/**
+	 * 排队中的数量，不含正在下载的
+	 */
+	public synchronized int getPendingCount() {
+		return mPending.size();
+	}
+
+	/**
+	 * 修改优先级
+	 */
+	public synchronized void reprioritize(String url, int priority) {
+		Item item = mItems.get(url);
+		if (item == null)
+			return;
+		reprioritize(item, priority);
+		dispatch();
+	}
+
+	private void reprioritize(Item item, int priority) {
+		if (item.download == null && mPending.remove(item)) {
+			item.priority = priority;
+			mPending.add(item);
+		} else {
+			item.priority = priority;
+		}
+	}
+
+	/**
+	 * 取消预加载，正在下载的会停止，已下载的数据保留
+	 */
+	public synchronized void cancel(String url) {
+		Item item = mItems.remove(url);
+		if (item == null)
+			return;
+		mPending.remove(item);
+		if (item.download != null)
+			item.download.stopThread();
+	}
+
+	/**
+	 * 取消所有预加载
+	 */
+	public synchronized void cancelAll() {
+		Iterator<Item> it = mItems.values().iterator();
+		while (it.hasNext()) {
+			Item item = it.next();
+			if (item.download != null)
+				item.download.stopThread();
+			it.remove();
+		}
+		mPending.clear();
+	}
+
+	/**
+	 * 暂停或继续。暂停时正在下载的任务停下并重新排队，PRIORITY_PLAYBACK及以上的除外
+	 */
+	public synchronized void setPaused(boolean paused) {
+		if (mPaused == paused)
+			return;
+		mPaused = paused;
+		if (Config.DEBUG)
+			Log.i(TAG, paused ? "pause" : "resume");
+		if (paused) {
+			for (Item item : mItems.values()) {
+				if (item.download != null && item.priority < PRIORITY_PLAYBACK)
+					item.download.stopThread();
+			}
+		} else {
+			dispatch();
+		}
+	}
+
+	/**
+	 * url是否在队列中或正在下载
+	 */
+	public synchronized boolean isQueued(String url) {
+		return mItems.containsKey(url);
+	}
+
+	/**
+	 * 启动排在前面的任务，直到达到同时下载的上限
+	 */
+	private void dispatch() {
+		while (mRunningCount < mMaxConcurrent && !mPending.isEmpty()) {
+			if (mPaused && mPending.peek().priority < PRIORITY_PLAYBACK)
+				break;// 排在最前的也不是播放中要用的
+			final Item item = mPending.poll();
+			final DownloadThread download = new DownloadThread(mClient, mResolver, mPolicy, mMetrics, mExecutor,
+					item.url, mCacheStore, item.cacheKey, item.targetSize);
+			try {
+				mExecutor.execute(new Runnable() {
+					public void run() {
+						try {
+							download.run();
+						} finally {// 出错也要让出名额，否则调度会停住
+							onFinished(item);
+						}
+					}
+				});
+			} catch (RejectedExecutionException e) {// 线程池已关闭，不再下载
+				mItems.remove(item.url);
+				continue;
+			}
+			item.download = download;
+			mRunningCount++;
+		}
+	}
+
+	private synchronized void onFinished(Item item) {
+		mRunningCount--;
+		DownloadThread download = item.download;
+		item.download = null;
+		if (mItems.get(item.url) == item) {
+			if (mPaused && !download.isDownloadSuccessed()) {// 因暂停而停止，重新排队
+				mPending.add(item);
+			} else {
+				mItems.remove(item.url);
+			}
+		}
+		dispatch();
+	}
+}
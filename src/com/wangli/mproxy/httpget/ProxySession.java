@@ -0,0 +1,605 @@
+package com.wangli.mproxy.httpget;
+
+import com.wangli.mproxy.bean.ProxyRequest;
+import com.wangli.mproxy.bean.ProxyResponse;
+import com.wangli.mproxy.bean.ProxyTarget;
+import com.wangli.mproxy.cache.CacheEntry;
+import com.wangli.mproxy.httpget.ConnectionPool.Connection;
+import com.wangli.mproxy.utils.CommonUtil;
+import com.wangli.mproxy.utils.Config;
+import com.wangli.mproxy.utils.HttpGetProxyUtils;
+import com.wangli.mproxy.utils.Metrics;
+import com.wangli.mproxy.utils.SizeClassPool;
+
+import android.util.Log;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.Socket;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * 一个MediaPlayer连接对应的会话，远程目标、Response等状态都只属于本会话
+ */
+class ProxySession implements Runnable {
+	private static final String TAG = HttpGetProxy.TAG;
+	/**开启统计时返回统计数据的本地路径*/
+	private static final String STATS_PATH = "/stats";
+	/**读取MediaPlayer的Request用的缓冲区大小*/
+	private static final int REQUEST_BUFFER_SIZE = 1024;
+	/**读取服务器的Response用的缓冲区大小*/
+	private static final int REPLY_BUFFER_SIZE = 1024 * 50;
+	/**少于此字节数的会话不计入速度统计*/
+	private static final long THROUGHPUT_MIN_BYTES = 64 * 1024;
+
+	private final HttpGetProxy mProxy;
+	/** 收发Media Player请求的Socket */
+	private Socket sckPlayer = null;
+	/** 收发Media Server请求的连接，从连接池中取 */
+	private Connection mServer = null;
+	/**当前Response消息体的分帧，消息体读完后连接归还连接池*/
+	private BodyFraming mFraming;
+	/**本会话的远程目标*/
+	private ProxyTarget mTarget;
+	/**Response对象*/
+	private ProxyResponse proxyResponse = null;
+	/**本会话使用的缓存，没有则为null*/
+	private CacheEntry mCacheEntry;
+	/**中转的数据在资源中的位置，用于写入缓存，-1为不写缓存*/
+	private long mCachePosition = -1;
+	/**收到Response时缓存的getGeneration()，之后缓存被丢弃则不再写入*/
+	private int mCacheGeneration;
+
+	/**接受MediaPlayer连接的时间*/
+	private final long mStartTime = System.currentTimeMillis();
+	/**Response头已发送*/
+	private boolean mResponseSent = false;
+	/**发送给MediaPlayer的消息体字节数，NIO中转时由I/O线程更新*/
+	private volatile long mBytesSent = 0;
+
+	ProxySession(HttpGetProxy proxy, Socket sckPlayer) {
+		mProxy = proxy;
+		this.sckPlayer = sckPlayer;
+	}
+
+	public void run() {
+		mProxy.onSessionStart(this);
+		boolean handedOff = false;
+		try {
+			handedOff = relay();
+		} finally {
+			if (!handedOff) {// 已交给NIO中转的，由中转结束时回调
+				closeSockets();
+				finish();
+			}
+			mProxy.onWorkerDone();
+		}
+	}
+
+	/**
+	 * @return 剩余的数据是否已交给NIO中转
+	 */
+	private boolean relay() {
+		HttpGetParser httpParser = null;
+		HttpGetProxyUtils utils = null;
+		int bytes_read;
+
+		// 缓冲区从共享的池中取出，会话结束时归还
+		ByteBuffer requestBuffer = SizeClassPool.HEAP.acquire(REQUEST_BUFFER_SIZE);
+		ByteBuffer replyBuffer = SizeClassPool.HEAP.acquire(REPLY_BUFFER_SIZE);
+		byte[] local_request = requestBuffer.array();
+		byte[] remote_reply = replyBuffer.array();
+
+		boolean sentResponseHeader = false;
+
+		try {
+			if (Config.DEBUG)
+				Log.i(TAG, "<----------------------------------->");
+
+			httpParser = new HttpGetParser();
+			sckPlayer.setSoTimeout(Config.PLAYER_READ_TIMEOUT);// 连接后不发Request的不一直占用会话线程
+
+			ProxyRequest request = null;
+			while ((bytes_read = sckPlayer.getInputStream().read(
+					local_request)) != -1) {
+				ProxyRequest playerRequest = httpParser.getRequest(local_request, bytes_read);
+				if (playerRequest != null) {
+					if (STATS_PATH.equals(playerRequest.target) && mProxy.isStatsEnabled()) {
+						sendStats();
+						break;
+					}
+					mProxy.getMetrics().requests.incrementAndGet();
+					mTarget = mProxy.findTarget(playerRequest.target);
+					if (mTarget == null)// 还没有可代理的链接
+						break;
+					mProxy.onRelayStart(this);
+					httpParser.setRemoteServer(mTarget.remoteHost, mTarget.remotePort);
+					httpParser.getProxyRequest(playerRequest);
+					if (mTarget.requestUri != null)// 本地链接换回服务器上的路径
+						playerRequest.target = mTarget.requestUri;
+					request = playerRequest;
+					break;
+				}
+			}
+
+			if (request == null) {// MediaPlayer的request无效
+				return false;
+			}
+			utils = new HttpGetProxyUtils(sckPlayer, mTarget.serverAddress, mTarget.secure,
+					mProxy.getUpstreamClient());
+			boolean playlist = !request.rangeRequested
+					&& (mTarget.playlist || HlsPlaylist.isPlaylist(request.target, null));
+			if (playlist) {// 播放列表整个读取后改写，不分段、不压缩、不缓存
+				request.headers.remove("Range");
+				request.headers.remove("Accept-Encoding");
+				request.rangePassthrough = true;
+			}
+			if (mTarget.playlistUrl != null)
+				mProxy.onSegmentRequested(mTarget);
+			if (mTarget.cacheKey != null && !playlist)
+				mCacheEntry = mProxy.getCacheStore().open(mTarget.cacheKey);
+			if (request.rangeSuffixLength != -1 && mCacheEntry != null
+					&& mCacheEntry.getContentLength() > 0) {// 已知总长度，后缀Range换成起始位置，可以使用缓存
+				long contentLength = mCacheEntry.getContentLength();
+				request.setRange(Math.max(0, contentLength - request.rangeSuffixLength), -1);
+			}
+			if (serveFromCache(utils, request))
+				return false;// 请求的数据都在缓存中，不需要连接服务器
+			boolean isExists = mCacheEntry != null && request.hasSimpleRange()
+					&& mCacheEntry.getAvailableLength(request.rangePosition) > 0;
+			mServer = utils.sentToServer(request);// 发送MediaPlayer的request
+			// ------------------------------------------------------
+			// 把网络服务器的反馈发到MediaPlayer，网络服务器->代理服务器->MediaPlayer
+			// ------------------------------------------------------
+			while (mServer != null && ((bytes_read = readServer(remote_reply)) != -1)) {
+				if (sentResponseHeader) {
+					bytes_read = mFraming.consume(remote_reply, 0, bytes_read);
+					try {// 拖动进度条时，容易在此异常，断开重连
+						sendBodyToMP(utils, remote_reply, bytes_read);
+					} catch (Exception e) {
+						Log.e(TAG, e.toString());
+						Log.e(TAG, CommonUtil.getExceptionMessage(e));
+						break;// 发送异常直接退出while
+					}
+					if (mFraming.isComplete())
+						break;// 消息体已读完，连接归还连接池
+					continue;
+				}
+				proxyResponse = httpParser.getProxyResponse(remote_reply,
+						bytes_read);
+				if (proxyResponse == null)
+					continue;// 没Response Header则退出本次循环
+
+				sentResponseHeader = true;
+				if (proxyResponse.statusCode == 200 && (playlist || (!request.rangeRequested
+						&& HlsPlaylist.isPlaylist(null, proxyResponse.headers.get("Content-Type"))))) {
+					sendPlaylist(utils, proxyResponse);
+					break;
+				}
+				if (proxyResponse.statusCode >= 300 && proxyResponse.statusCode < 400)
+					rewriteLocation(proxyResponse);
+				// send http header to mediaplayer，每个会话只处理一个请求，发送完就关闭
+				proxyResponse.headers.set("Connection", "close");
+				utils.sendToMP(proxyResponse);
+				onResponseSent();
+				startCaching(proxyResponse);
+
+				// 服务器返回了请求的位置，才能接着发送缓存的数据
+				if (isExists && proxyResponse.statusCode == 206
+						&& proxyResponse.currentPosition == request.rangePosition) {// 需要发送预加载到MediaPlayer
+					isExists = false;
+					long limit = request.getRangeLimit(mCacheEntry.getContentLength());
+					long prebufferSize = utils.getPrebufferLength(mCacheEntry, request.rangePosition,
+							limit - request.rangePosition, mProxy.getPrebufferPolicy().getMinPrebufferSize());
+					if (prebufferSize > 0) {
+						long prebufferPosition = request.rangePosition;
+						long newRange = prebufferSize + prebufferPosition;
+						ContinuationFetch continuation = null;
+						if (newRange < limit) {// 缓存之后的数据，在发送预加载之前就请求
+							request.setRange(newRange, request.rangeEnd);
+							if (Config.DEBUG)
+								Log.i(TAG, request.toString());
+							continuation = mProxy.startContinuation(utils, request);
+						}
+						long sentBufferSize;
+						try {
+							sentBufferSize = utils.sendCacheToMP(mCacheEntry, prebufferPosition, prebufferSize);
+						} catch (IOException e) {// MediaPlayer已断开，提前发出的请求也不再需要
+							if (continuation != null)
+								continuation.cancel();
+							throw e;
+						}
+						onCacheSent(sentBufferSize);
+						if (sentBufferSize < prebufferSize || newRange >= limit) {// 分段校验不一致，或缓存已包含Range剩余的全部数据
+							if (continuation != null)
+								continuation.cancel();
+							break;
+						}
+						releaseServer();// 第一个Response没有读完，不能复用
+						if (continuation != null && continuation.takeOver()) {
+							mServer = continuation.getServer();
+							proxyResponse = continuation.getResponse();
+							if (!isContinuation(proxyResponse, newRange) || !startCaching(proxyResponse)) {
+								continuation.releaseBuffered();
+								break;// 资源已改变时已发送的预加载和之后的数据对不上
+							}
+							mFraming = continuation.getFraming();
+							try {
+								for (ByteBuffer data : continuation.getBuffered())
+									sendBodyToMP(utils, data.array(), data.remaining());
+							} finally {
+								continuation.releaseBuffered();
+							}
+							if (mFraming.isComplete())
+								break;
+						} else {// 没能提前请求，按顺序重新发送
+							mServer = utils.sentToServer(request);
+							// 把服务器的Response的Header去掉
+							proxyResponse = utils.removeResponseHeader(
+									mServer.getSocket(), httpParser);
+							if (!isContinuation(proxyResponse, newRange) || !startCaching(proxyResponse))
+								break;
+							if (!sendBody(utils, proxyResponse))
+								break;
+						}
+						if (handOffToNio())
+							return true;
+						continue;
+					}
+				}
+
+				// 如果没有预加载数据，或者预加载数据为空，则发送剩余数据
+				if (!sendBody(utils, proxyResponse))
+					break;
+				if (handOffToNio())
+					return true;
+			}
+		} catch (Exception e) {
+			Log.e(TAG, e.toString());
+			Log.e(TAG, CommonUtil.getExceptionMessage(e));
+		} finally {
+			SizeClassPool.HEAP.release(requestBuffer);
+			SizeClassPool.HEAP.release(replyBuffer);
+			if (httpParser != null)
+				httpParser.release();
+		}
+		return false;
+	}
+
+	/**
+	 * 请求的Range已全部缓存且资源总长度已知时，由缓存的元数据生成Response，直接发送缓存的数据。
+	 * 缓存过期时先向服务器核对
+	 * @return 是否已由缓存处理
+	 */
+	private boolean serveFromCache(HttpGetProxyUtils utils, ProxyRequest request) throws IOException {
+		if (mCacheEntry == null || !request.hasSimpleRange())
+			return false;
+		long contentLength = mCacheEntry.getContentLength();
+		if (contentLength <= 0 || request.rangePosition >= contentLength)
+			return false;// 超出长度的由服务器返回416
+		long limit = request.getRangeLimit(contentLength);
+		if (!mCacheEntry.isCached(request.rangePosition, limit))
+			return false;
+		if (!mCacheEntry.isFresh()) {// 太久没和服务器核对，先确认资源没有改变
+			try {
+				if (!CacheValidator.revalidate(mProxy.getUpstreamClient(), mTarget.mediaUrl, mCacheEntry))
+					return false;
+			} catch (IOException e) {// 连不上服务器时仍使用缓存，可以离线播放
+				Log.e(TAG, e.toString());
+			}
+		}
+		if (!mCacheEntry.verify(request.rangePosition, request.rangePosition + 1))
+			return false;// 第一段校验不一致，之后的分段在发送时校验
+
+		ProxyResponse response = new ProxyResponse();
+		response.version = "HTTP/1.1";
+		if (request.rangeRequested) {
+			response.statusCode = 206;
+			response.reason = "Partial Content";
+			response.headers.add("Content-Range", "bytes " + request.rangePosition + "-" + (limit - 1) + "/" + contentLength);
+		} else {
+			response.statusCode = 200;
+			response.reason = "OK";
+		}
+		String contentType = mCacheEntry.getContentType();
+		if (contentType != null)
+			response.headers.add("Content-Type", contentType);
+		response.headers.add("Content-Length", String.valueOf(limit - request.rangePosition));
+		response.headers.add("Accept-Ranges", "bytes");
+		String etag = mCacheEntry.getETag();
+		if (etag != null)
+			response.headers.add("ETag", etag);
+		String lastModified = mCacheEntry.getLastModified();
+		if (lastModified != null)
+			response.headers.add("Last-Modified", lastModified);
+		response.headers.add("Connection", "close");
+		if (Config.DEBUG)
+			Log.i(TAG, ">>>本地生成Response:" + response.statusCode + " " + request.rangePosition + "-" + (limit - 1));
+		utils.sendToMP(response);
+		onResponseSent();
+		mProxy.getMetrics().cacheHitRequests.incrementAndGet();
+		onCacheSent(utils.sendCacheToMP(mCacheEntry, request.rangePosition, limit - request.rangePosition));
+		return true;
+	}
+
+	/**
+	 * 重定向到的链接(可能在其他服务器)也登记为本地链接，播放器跟随重定向时仍经过代理
+	 */
+	private void rewriteLocation(ProxyResponse response) {
+		String location = response.headers.get("Location");
+		if (location == null)
+			return;
+		String local;
+		try {
+			local = mProxy.mapRedirect(mTarget, URI.create(mTarget.mediaUrl).resolve(location.trim()).toString());
+		} catch (IllegalArgumentException e) {
+			return;
+		}
+		if (local != null)
+			response.headers.set("Location", local);
+	}
+
+	/**
+	 * 读完整个m3u8播放列表，把其中的链接改为本地链接后发送到MediaPlayer
+	 */
+	private void sendPlaylist(HttpGetProxyUtils utils, ProxyResponse response) throws IOException {
+		mFraming = new BodyFraming(response, false);
+		ByteArrayOutputStream body = new ByteArrayOutputStream();
+		if (response.body != null)
+			body.write(response.body, 0, mFraming.decode(response.body, 0, response.body.length));
+		byte[] buffer = new byte[8 * 1024];
+		while (!mFraming.isComplete()) {
+			int length = readServer(buffer);
+			if (length == -1) {
+				mFraming.onEof();
+				break;
+			}
+			body.write(buffer, 0, mFraming.decode(buffer, 0, length));
+			if (body.size() > Config.HLS_PLAYLIST_MAX_SIZE)
+				throw new IOException("playlist too large");
+		}
+		byte[] data = body.toByteArray();
+		String encoding = response.headers.get("Content-Encoding");
+		if (encoding != null && encoding.toLowerCase().contains("gzip"))// 没有Accept-Encoding也压缩的服务器
+			data = gunzip(data);
+
+		final String playlistUrl = mTarget.mediaUrl;
+		HlsPlaylist playlist = new HlsPlaylist(playlistUrl);
+		String text = playlist.rewrite(new String(data, "UTF-8"), new HlsPlaylist.UriMapper() {
+			public String map(String url, boolean isPlaylist) {
+				return mProxy.mapPlaylistUri(url, isPlaylist, playlistUrl);
+			}
+		});
+		mProxy.onPlaylistRewritten(playlist);
+		data = text.getBytes("UTF-8");
+
+		response.headers.remove("Transfer-Encoding");
+		response.headers.remove("Content-Encoding");
+		response.headers.remove("Content-Range");
+		response.headers.remove("Accept-Ranges");
+		response.headers.set("Content-Length", String.valueOf(data.length));
+		response.headers.set("Connection", "close");
+		utils.sendToMP(response);
+		onResponseSent();
+		utils.sendToMP(data);
+		onUpstreamSent(data.length);
+	}
+
+	/**
+	 * 返回统计数据，不经过服务器
+	 */
+	private void sendStats() throws IOException {
+		byte[] body = Metrics.toJson(mProxy.getStats()).getBytes("UTF-8");
+		ProxyResponse response = new ProxyResponse();
+		response.version = "HTTP/1.1";
+		response.statusCode = 200;
+		response.reason = "OK";
+		response.headers.add("Content-Type", "application/json");
+		response.headers.add("Content-Length", String.valueOf(body.length));
+		response.headers.add("Cache-Control", "no-cache");
+		response.headers.add("Connection", "close");
+		HttpGetProxyUtils utils = new HttpGetProxyUtils(sckPlayer, null, false, null);
+		utils.sendToMP(response);
+		utils.sendToMP(body);
+	}
+
+	/**
+	 * 第一个Response头发出时记录首字节时间
+	 */
+	private void onResponseSent() {
+		if (mResponseSent)
+			return;
+		mResponseSent = true;
+		mProxy.getMetrics().ttfb.record(System.currentTimeMillis() - mStartTime);
+	}
+
+	private void onCacheSent(long bytes) {
+		if (bytes <= 0)
+			return;
+		mProxy.getMetrics().cacheHitBytes.addAndGet(bytes);
+		mBytesSent += bytes;
+	}
+
+	private void onUpstreamSent(long bytes) {
+		if (bytes <= 0)
+			return;
+		mProxy.getMetrics().cacheMissBytes.addAndGet(bytes);
+		mBytesSent += bytes;
+	}
+
+	private static byte[] gunzip(byte[] data) throws IOException {
+		GZIPInputStream in = new GZIPInputStream(new ByteArrayInputStream(data));
+		ByteArrayOutputStream out = new ByteArrayOutputStream(data.length * 4);
+		try {
+			byte[] buffer = new byte[8 * 1024];
+			int length;
+			while ((length = in.read(buffer)) != -1) {
+				out.write(buffer, 0, length);
+				if (out.size() > Config.HLS_PLAYLIST_MAX_SIZE)
+					throw new IOException("playlist too large");
+			}
+		} finally {
+			in.close();
+		}
+		return out.toByteArray();
+	}
+
+	/**
+	 * 从服务器读取，读取的耗时计入带宽估计
+	 */
+	private int readServer(byte[] buffer) throws IOException {
+		long start = System.nanoTime();
+		int length = mServer.getSocket().getInputStream().read(buffer);
+		mProxy.getBandwidthMeter().onTransfer(length, System.nanoTime() - start);
+		return length;
+	}
+
+	/**
+	 * 后续请求的Response是否从预加载之后的位置开始
+	 */
+	private boolean isContinuation(ProxyResponse response, long position) {
+		if (response == null)
+			return false;
+		if (response.statusCode != 206 || response.currentPosition != position) {
+			Log.e(TAG, "unexpected continuation:" + response.statusCode + " " + response.currentPosition);
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * 发送和Response头一起收到的消息体
+	 * @return 消息体是否还没读完
+	 */
+	private boolean sendBody(HttpGetProxyUtils utils, ProxyResponse response) throws IOException {
+		mFraming = new BodyFraming(response, false);
+		if (response.body != null)
+			sendBodyToMP(utils, response.body, mFraming.consume(response.body, 0, response.body.length));
+		return !mFraming.isComplete();
+	}
+
+	/**
+	 * 开启了NIO中转时，把剩余数据的中转交给I/O线程，本会话线程直接返回。
+	 * chunked编码的消息体要逐字节找结尾，不交给NIO
+	 * @return 是否已交出
+	 */
+	private boolean handOffToNio() {
+		NioRelay nioRelay = mProxy.getNioRelay();
+		if (nioRelay == null || mServer == null || mFraming.isChunked()
+				|| sckPlayer.getChannel() == null || mServer.getSocket().getChannel() == null)
+			return false;
+		final Connection server = mServer;
+		try {
+			nioRelay.relay(sckPlayer.getChannel(), server.getSocket().getChannel(),
+					mFraming.getRemainingLength(), new NioRelay.Callback() {
+				public void onServerData(ByteBuffer data) {
+					onUpstreamSent(data.remaining());
+					writeCache(data);
+				}
+
+				public void onClosed() {
+					mProxy.getConnectionPool().close(server);// 连接已由NIO关闭
+					finish();
+				}
+			});
+			mServer = null;
+			return true;
+		} catch (IOException e) {
+			Log.e(TAG, CommonUtil.getExceptionMessage(e));
+			return false;
+		}
+	}
+
+	/**
+	 * 根据Response决定中转的数据是否写入缓存，以及写入的位置
+	 * @return Response的校验值和缓存的一致，不一致时缓存的数据已被丢弃
+	 */
+	private boolean startCaching(ProxyResponse response) {
+		mCachePosition = -1;
+		if (mCacheEntry == null || response == null
+				|| (response.statusCode != 200 && response.statusCode != 206))
+			return true;
+		// 记录元数据，以后可以不连接服务器直接由缓存生成Response
+		boolean valid = mCacheEntry.setMetadata(response.headers.get("Content-Type"),
+				response.headers.get("ETag"), response.headers.get("Last-Modified"));
+		mCacheGeneration = mCacheEntry.getGeneration();
+		if (response.chunked) {// 缓存中只保存解码后的数据
+			return valid;
+		} else if (response.statusCode == 206) {
+			if (!response.headers.contains("Content-Range"))
+				return valid;// 多段Range的multipart消息体不能直接写入缓存
+			mCachePosition = response.currentPosition;
+			if (response.totalLength > 0)
+				mCacheEntry.setContentLength(response.totalLength);
+		} else {
+			mCachePosition = 0;
+			if (response.contentLength > 0)
+				mCacheEntry.setContentLength(response.contentLength);
+		}
+		return valid;
+	}
+
+	/**
+	 * 发送Response的数据到MediaPlayer，同时写入缓存
+	 */
+	private void sendBodyToMP(HttpGetProxyUtils utils, byte[] data, int length) throws IOException {
+		utils.sendToMP(data, length);
+		onUpstreamSent(length);
+		writeCache(ByteBuffer.wrap(data, 0, length));
+	}
+
+	/**
+	 * 交给CacheWriter在后台写入，写不过来的数据丢弃，缓存中留下空缺
+	 */
+	private void writeCache(ByteBuffer data) {
+		if (mCachePosition < 0)
+			return;
+		int length = data.remaining();
+		mProxy.getCacheWriter().write(mCacheEntry, mCachePosition, data, mCacheGeneration);
+		mCachePosition += length;
+	}
+
+	/**
+	 * 会话结束，排队的数据写完后释放缓存
+	 */
+	private void finish() {
+		long elapsed = System.currentTimeMillis() - mStartTime;
+		if (mBytesSent >= THROUGHPUT_MIN_BYTES && elapsed > 0)
+			mProxy.getMetrics().sessionThroughput.record(mBytesSent * 1000 / 1024 / elapsed);
+		if (mCacheEntry != null) {
+			mProxy.getCacheWriter().release(mCacheEntry);
+			mCacheEntry = null;
+		}
+		mProxy.onSessionEnd(this);
+	}
+
+	/**
+	 * 关闭本会话的链接
+	 */
+	public synchronized void closeSockets(){
+		try {
+			if (sckPlayer != null){
+				sckPlayer.close();
+				sckPlayer=null;
+			}
+		} catch (IOException e1) {}
+		releaseServer();
+	}
+
+	/**
+	 * 消息体已完整读完的连接归还连接池，否则关闭
+	 */
+	private synchronized void releaseServer() {
+		if (mServer == null)
+			return;
+		if (mFraming != null && mFraming.isReusable())
+			mProxy.getConnectionPool().recycle(mServer);
+		else
+			mProxy.getConnectionPool().close(mServer);
+		mServer = null;
+		mFraming = null;
+	}
+}
@@ -0,0 +1,149 @@
+package com.wangli.mproxy.httpget;
+
+import com.wangli.mproxy.bean.ProxyTarget;
+import com.wangli.mproxy.cache.CacheStore;
+import com.wangli.mproxy.utils.CommonUtil;
+import com.wangli.mproxy.utils.Config;
+
+import java.net.URI;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * 本地路径和远程目标的对应表。本地路径为"/r/编号/文件名"，编号对应一个远程目标，
+ * 保留文件名方便播放器识别格式。同一链接总是得到同一编号，超出上限时最久未用的先淘汰。
+ * 编号之后不是登记的文件名时，按远程链接解析为相对链接，播放器由本地链接拼出的相对链接也能找回远程目标。
+ * 解析到其他服务器的不代理，否则任意链接都能借用已登记的编号写入缓存
+ */
+class RouteTable {
+	private static final String PREFIX = "/r/";
+
+	/**
+	 * 一个登记的远程目标
+	 */
+	private static class Route {
+		final String path;
+		final ProxyTarget target;
+
+		Route(String path, ProxyTarget target) {
+			this.path = path;
+			this.target = target;
+		}
+	}
+
+	private final int mMaxSize;
+	private int mNextId = 0;
+	/**编号 -> 远程目标，按访问顺序*/
+	private final LinkedHashMap<String, Route> mRoutes = new LinkedHashMap<String, Route>(16, 0.75f, true);
+	/**远程链接 -> 编号*/
+	private final HashMap<String, String> mIds = new HashMap<String, String>();
+
+	RouteTable(int maxSize) {
+		mMaxSize = maxSize;
+	}
+
+	/**
+	 * 登记远程目标，已登记过的链接返回原来的路径
+	 * @return 本地路径
+	 */
+	synchronized String register(ProxyTarget target) {
+		String id = mIds.get(target.mediaUrl);
+		Route route = id == null ? null : mRoutes.get(id);
+		if (route != null)
+			return route.path;
+		id = Integer.toString(mNextId++, 36);
+		String path = PREFIX + id + "/" + getFileName(target.mediaUrl);
+		mRoutes.put(id, new Route(path, target));
+		mIds.put(target.mediaUrl, id);
+		trim();
+		return path;
+	}
+
+	/**
+	 * @param requestUri Request报文中的URI
+	 * @return 没有登记过返回null
+	 */
+	synchronized ProxyTarget find(String requestUri) {
+		if (requestUri == null || !requestUri.startsWith(PREFIX))
+			return null;
+		int slash = requestUri.indexOf('/', PREFIX.length());
+		if (slash == -1)
+			return null;
+		Route route = mRoutes.get(requestUri.substring(PREFIX.length(), slash));
+		if (route == null)
+			return null;
+		if (route.path.equals(requestUri))
+			return route.target;
+		return resolve(route.target, requestUri.substring(slash + 1));
+	}
+
+	/**
+	 * 按登记的远程链接解析相对链接，和登记的目标在同一服务器
+	 * @return 解析失败或不在同一服务器时返回null
+	 */
+	private static ProxyTarget resolve(ProxyTarget base, String relative) {
+		URI baseUri;
+		URI uri;
+		try {
+			baseUri = URI.create(base.mediaUrl);
+			uri = baseUri.resolve(relative);
+		} catch (IllegalArgumentException e) {
+			return null;
+		}
+		if (!isSameOrigin(baseUri, uri))
+			return null;
+		ProxyTarget target = new ProxyTarget();
+		target.mediaUrl = uri.toString();
+		target.remoteHost = base.remoteHost;
+		target.remotePort = base.remotePort;
+		target.serverAddress = base.serverAddress;
+		target.secure = base.secure;
+		target.requestUri = CommonUtil.getRequestUri(uri);
+		target.playlist = HlsPlaylist.isPlaylist(uri.getPath(), null);
+		if (!target.playlist)
+			target.cacheKey = CacheStore.getCacheKey(target.mediaUrl);
+		return target;
+	}
+
+	/**
+	 * 协议、主机、端口是否都相同，不带端口的按协议的默认端口比较
+	 */
+	private static boolean isSameOrigin(URI base, URI uri) {
+		if (uri.getScheme() == null || !uri.getScheme().equalsIgnoreCase(base.getScheme()))
+			return false;
+		if (uri.getHost() == null || !uri.getHost().equalsIgnoreCase(base.getHost()))
+			return false;
+		return getPort(uri) == getPort(base);
+	}
+
+	private static int getPort(URI uri) {
+		if (uri.getPort() != -1)
+			return uri.getPort();
+		return "https".equalsIgnoreCase(uri.getScheme()) ? Config.HTTPS_PORT_DEFAULT : Config.HTTP_PORT_DEFAULT;
+	}
+
+	private void trim() {
+		Iterator<Map.Entry<String, Route>> it = mRoutes.entrySet().iterator();
+		while (mRoutes.size() > mMaxSize && it.hasNext()) {
+			Map.Entry<String, Route> eldest = it.next();
+			mIds.remove(eldest.getValue().target.mediaUrl);
+			it.remove();
+		}
+	}
+
+	/**
+	 * 链接路径的最后一部分，不含参数
+	 */
+	private static String getFileName(String url) {
+		int end = url.indexOf('?');
+		if (end == -1)
+			end = url.indexOf('#');
+		if (end == -1)
+			end = url.length();
+		int start = url.lastIndexOf('/', end - 1) + 1;
+		String name = url.substring(start, end);
+		return name.length() == 0 ? "index" : name;
+	}
+}
@@ -0,0 +1,266 @@
+package com.wangli.mproxy.httpget;
+
+import com.wangli.mproxy.bean.HttpHeaders;
+import com.wangli.mproxy.bean.ProxyRequest;
+import com.wangli.mproxy.bean.ProxyResponse;
+import com.wangli.mproxy.httpget.ConnectionPool.Connection;
+import com.wangli.mproxy.utils.CommonUtil;
+import com.wangli.mproxy.utils.Config;
+import com.wangli.mproxy.utils.SizeClassPool;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+
+/**
+ * 通过连接池向服务器发送请求。复用的空闲连接可能刚被服务器关闭，发送失败或收不到Response头时换新连接重试，
+ * Response的消息体读完后连接归还连接池
+ */
+public class UpstreamClient {
+	private static final String TAG = "UpstreamClient";
+	/**关闭Exchange时，剩余不超过此大小的消息体读完，以便连接可以复用*/
+	private static final int DRAIN_MAX = 8 * 1024;
+	/**读取Response头用的缓冲区大小*/
+	private static final int READ_BUFFER_SIZE = 1024;
+
+	/**
+	 * 一次请求和Response，用完必须close
+	 */
+	public class Exchange {
+		private final Connection mConnection;
+		private final ProxyResponse mResponse;
+		private final BodyFraming mFraming;
+		private final String mUrl;
+		/**读Response头时一起收到的消息体*/
+		private byte[] mPending;
+		private int mPendingOffset;
+		private boolean mClosed;
+
+		Exchange(Connection connection, ProxyResponse response, boolean head, String url) {
+			mConnection = connection;
+			mResponse = response;
+			mFraming = new BodyFraming(response, head);
+			mPending = response.body;
+			mUrl = url;
+		}
+
+		public ProxyResponse getResponse() {
+			return mResponse;
+		}
+
+		/**
+		 * 跟随重定向之后的url
+		 */
+		public String getUrl() {
+			return mUrl;
+		}
+
+		/**
+		 * 获取Response头中字段的值，没有则返回null
+		 */
+		public String getHeader(String name) {
+			return mResponse.headers.get(name);
+		}
+
+		/**
+		 * 读取消息体，chunked编码已解码
+		 * @return 读到的字节数，消息体结束返回-1
+		 */
+		public int read(byte[] buffer, int offset, int length) throws IOException {
+			while (!mFraming.isComplete()) {
+				int count;
+				if (mPending != null) {
+					count = Math.min(length, mPending.length - mPendingOffset);
+					System.arraycopy(mPending, mPendingOffset, buffer, offset, count);
+					mPendingOffset += count;
+					if (mPendingOffset == mPending.length)
+						mPending = null;
+				} else {
+					count = mConnection.socket.getInputStream().read(buffer, offset, length);
+					if (count == -1) {
+						mFraming.onEof();
+						return -1;
+					}
+				}
+				count = mFraming.decode(buffer, offset, count);
+				if (count > 0)
+					return count;
+			}
+			return -1;
+		}
+
+		/**
+		 * 消息体读完的连接归还连接池，否则关闭
+		 */
+		public void close() {
+			if (mClosed)
+				return;
+			mClosed = true;
+			long remaining = mFraming.getRemainingLength();
+			if (remaining > 0 && remaining <= DRAIN_MAX) {
+				ByteBuffer buffer = SizeClassPool.HEAP.acquire((int) remaining);
+				try {
+					while (read(buffer.array(), 0, buffer.capacity()) != -1)
+						;
+				} catch (IOException e) {
+					mPool.close(mConnection);
+					return;
+				} finally {
+					SizeClassPool.HEAP.release(buffer);
+				}
+			}
+			if (mFraming.isReusable())
+				mPool.recycle(mConnection);
+			else
+				mPool.close(mConnection);
+		}
+	}
+
+	private final ConnectionPool mPool;
+
+	public UpstreamClient(ConnectionPool pool) {
+		mPool = pool;
+	}
+
+	public ConnectionPool getPool() {
+		return mPool;
+	}
+
+	/**
+	 * 从连接池取连接并发送请求，复用的连接发送失败时换一个重试。报文直接生成到池中的缓冲区
+	 * @param secure 是否使用https
+	 */
+	public Connection send(InetSocketAddress address, boolean secure, ProxyRequest request) throws IOException {
+		ByteBuffer buffer = SizeClassPool.HEAP.acquire(Config.HTTP_HEADER_MAX_SIZE);
+		try {
+			try {
+				request.writeTo(buffer);
+			} catch (BufferOverflowException e) {
+				throw new IOException("request header too large");
+			}
+			for (int i = 0;; i++) {
+				Connection connection = mPool.get(address, secure);
+				try {
+					OutputStream out = connection.socket.getOutputStream();
+					out.write(buffer.array(), 0, buffer.position());
+					out.flush();
+					return connection;
+				} catch (IOException e) {
+					mPool.close(connection);
+					if (!connection.isReused() || i >= 2)
+						throw e;
+				}
+			}
+		} finally {
+			SizeClassPool.HEAP.release(buffer);
+		}
+	}
+
+	/**
+	 * 发送GET请求并读取Response头，跟随重定向
+	 * @param url
+	 * @param range Range的值，如"bytes=0-1023"，为null则不带Range
+	 */
+	public Exchange get(String url, String range) throws IOException {
+		return get(url, range, null);
+	}
+
+	/**
+	 * 发送GET请求并读取Response头，跟随重定向
+	 * @param headers 附加的字段，如If-None-Match，可以为null
+	 */
+	public Exchange get(String url, String range, HttpHeaders headers) throws IOException {
+		for (int i = 0; i <= Config.MAX_REDIRECTS; i++) {
+			URI uri = URI.create(url);
+			Exchange exchange = execute(uri, "GET", range, headers);
+			int code = exchange.getResponse().statusCode;
+			String location = exchange.getHeader("Location");
+			if (code < 300 || code >= 400 || code == 304 || location == null)
+				return exchange;
+			exchange.close();
+			url = uri.resolve(location).toString();
+			if (Config.DEBUG)
+				Log.i(TAG, "redirect:" + url);
+		}
+		throw new IOException("too many redirects:" + url);
+	}
+
+	/**
+	 * 发送请求并读取Response头，不跟随重定向
+	 */
+	public Exchange execute(URI uri, String method, String range) throws IOException {
+		return execute(uri, method, range, null);
+	}
+
+	/**
+	 * 发送请求并读取Response头，不跟随重定向
+	 * @param headers 附加的字段，可以为null
+	 */
+	public Exchange execute(URI uri, String method, String range, HttpHeaders headers) throws IOException {
+		boolean secure = "https".equalsIgnoreCase(uri.getScheme());
+		if (!secure && !"http".equalsIgnoreCase(uri.getScheme()))
+			throw new IOException("unsupported url:" + uri);
+		int port = uri.getPort() != -1 ? uri.getPort()
+				: (secure ? Config.HTTPS_PORT_DEFAULT : Config.HTTP_PORT_DEFAULT);
+		InetSocketAddress address = InetSocketAddress.createUnresolved(uri.getHost(), port);// 由连接池解析
+		ProxyRequest request = new ProxyRequest();
+		request.method = method;
+		request.target = CommonUtil.getRequestUri(uri);
+		request.version = "HTTP/1.1";
+		request.headers.add("Host", uri.getPort() == -1 ? uri.getHost() : uri.getHost() + ":" + uri.getPort());
+		request.headers.add("Accept", "*/*");
+		if (range != null)
+			request.headers.add("Range", range);
+		if (headers != null) {
+			for (int i = 0; i < headers.size(); i++)
+				request.headers.add(headers.getName(i), headers.getValue(i));
+		}
+		request.headers.add("Connection", "keep-alive");
+
+		for (int i = 0;; i++) {
+			Connection connection = send(address, secure, request);
+			ProxyResponse response;
+			try {
+				response = readResponseHeader(connection);
+			} catch (IOException e) {
+				mPool.close(connection);
+				if (!connection.isReused() || i >= 1)
+					throw e;
+				continue;
+			}
+			if (response != null)
+				return new Exchange(connection, response, "HEAD".equals(method), uri.toString());
+			mPool.close(connection);// 没收到Response头就被关闭
+			if (!connection.isReused() || i >= 1)
+				throw new IOException("no response:" + uri);
+		}
+	}
+
+	/**
+	 * 读取Response头，头之后已收到的数据在body中
+	 * @return 连接关闭时返回null
+	 */
+	private ProxyResponse readResponseHeader(Connection connection) throws IOException {
+		HttpGetParser parser = new HttpGetParser();
+		InputStream in = connection.socket.getInputStream();
+		ByteBuffer buffer = SizeClassPool.HEAP.acquire(READ_BUFFER_SIZE);
+		try {
+			int bytes_read;
+			while ((bytes_read = in.read(buffer.array())) != -1) {
+				ProxyResponse response = parser.getProxyResponse(buffer.array(), bytes_read);
+				if (response != null)
+					return response;
+			}
+			return null;
+		} finally {
+			SizeClassPool.HEAP.release(buffer);
+			parser.release();
+		}
+	}
+}
@@ -0,0 +1,165 @@
+package com.wangli.mproxy.httpget;
+
+import com.wangli.mproxy.utils.CommonUtil;
+import com.wangli.mproxy.utils.Config;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.net.URI;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TimeZone;
+
+/**
+ * 找出重定向之后真正有效的链接，结果按原链接缓存，有效期取自3xx Response的Cache-Control/Expires。
+ * 用HEAD探测，服务器不支持HEAD时改用"Range: bytes=0-0"，不会下载消息体；重定向次数有上限
+ */
+public class UrlResolver {
+	private static final String TAG = "UrlResolver";
+
+	private static class Record {
+		final String url;
+		final long expires;
+
+		Record(String url, long expires) {
+			this.url = url;
+			this.expires = expires;
+		}
+	}
+
+	private final UpstreamClient mClient;
+	private final Map<String, Record> mEntries;
+
+	/**
+	 * @param client 经过连接池探测
+	 * @param maxSize 最多缓存的链接数，超过时去掉最久没用的
+	 */
+	public UrlResolver(UpstreamClient client, final int maxSize) {
+		mClient = client;
+		mEntries = new LinkedHashMap<String, Record>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, Record> eldest) {
+				return size() > maxSize;
+			}
+		};
+	}
+
+	/**
+	 * 获取重定向后的URL，有效期内直接返回缓存的结果，否则有网络请求，需要进行异步处理。
+	 * @param url 原链接
+	 * @return 探测失败时返回原链接
+	 */
+	public String resolve(String url) {
+		synchronized (this) {
+			Record entry = mEntries.get(url);
+			if (entry != null && entry.expires > System.currentTimeMillis())
+				return entry.url;
+		}
+		String current = url;
+		long ttl = Long.MAX_VALUE;// 整个重定向链中最短的有效期
+		try {
+			for (int i = 0; i <= Config.MAX_REDIRECTS; i++) {
+				URI uri = URI.create(current);
+				UpstreamClient.Exchange exchange = probe(uri);
+				String location;
+				try {
+					int code = exchange.getResponse().statusCode;
+					location = exchange.getHeader("Location");
+					if (code < 300 || code >= 400 || code == 304 || location == null) {
+						if (ttl > 0)
+							put(url, current, ttl == Long.MAX_VALUE ? Config.URL_RESOLVE_TTL : ttl);
+						return current;
+					}
+					ttl = Math.min(ttl, getTtl(exchange));
+				} finally {
+					exchange.close();
+				}
+				current = uri.resolve(location).toString();
+				if (Config.DEBUG)
+					Log.i(TAG, "redirect:" + current);
+			}
+			Log.e(TAG, "too many redirects:" + url);
+		} catch (Exception e) {
+			Log.e(TAG, e.toString());
+			Log.e(TAG, CommonUtil.getExceptionMessage(e));
+		}
+		return url;
+	}
+
+	/**
+	 * 清除链接的缓存，下次重新探测
+	 */
+	public synchronized void invalidate(String url) {
+		mEntries.remove(url);
+	}
+
+	private synchronized void put(String url, String resolved, long ttl) {
+		mEntries.put(url, new Record(resolved, System.currentTimeMillis() + ttl));
+	}
+
+	/**
+	 * 先用HEAD，服务器不支持时改用只取一个字节的GET
+	 */
+	private UpstreamClient.Exchange probe(URI uri) throws IOException {
+		UpstreamClient.Exchange exchange = mClient.execute(uri, "HEAD", null);
+		if (exchange.getResponse().statusCode < 400)
+			return exchange;
+		exchange.close();
+		return mClient.execute(uri, "GET", "bytes=0-0");
+	}
+
+	/**
+	 * 重定向的有效期，毫秒。no-store、no-cache为0，没有缓存字段的使用默认值
+	 */
+	private long getTtl(UpstreamClient.Exchange exchange) {
+		String cacheControl = exchange.getHeader("Cache-Control");
+		if (cacheControl != null) {
+			String[] directives = cacheControl.toLowerCase(Locale.US).split(",");
+			for (int i = 0; i < directives.length; i++) {
+				String directive = directives[i].trim();
+				if (directive.equals("no-store") || directive.equals("no-cache") || directive.equals("private"))
+					return 0;
+				if (directive.startsWith("max-age=")) {
+					try {
+						return Math.max(0, Long.parseLong(directive.substring(8).trim()) * 1000);
+					} catch (NumberFormatException e) {
+						return 0;
+					}
+				}
+			}
+		}
+		String expires = exchange.getHeader("Expires");
+		if (expires != null) {
+			long expiresTime = parseDate(expires);
+			if (expiresTime <= 0)
+				return 0;// 无效的日期视为已过期
+			String date = exchange.getHeader("Date");
+			long now = date != null ? parseDate(date) : 0;
+			if (now <= 0)
+				now = System.currentTimeMillis();
+			return Math.max(0, expiresTime - now);
+		}
+		return Config.URL_RESOLVE_TTL;
+	}
+
+	/**
+	 * 解析HTTP日期，如"Sun, 06 Nov 1994 08:49:37 GMT"
+	 * @return 无效的日期返回0
+	 */
+	private static long parseDate(String value) {
+		SimpleDateFormat format = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss zzz", Locale.US);
+		format.setTimeZone(TimeZone.getTimeZone("GMT"));
+		try {
+			Date date = format.parse(value);
+			return date.getTime();
+		} catch (Exception e) {
+			return 0;
+		}
+	}
+}
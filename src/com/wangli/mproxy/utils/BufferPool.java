@@ -0,0 +1,55 @@
+package com.wangli.mproxy.utils;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 固定大小的ByteBuffer池，避免每个连接都分配新的缓冲区
+ */
+public class BufferPool {
+	/**缓冲区大小*/
+	private final int mBufferSize;
+	/**池中最多保留的缓冲区数量，多出的归还直接丢弃*/
+	private final int mMaxPooled;
+	/**是否使用direct buffer*/
+	private final boolean mDirect;
+	private final ConcurrentLinkedQueue<ByteBuffer> mPool = new ConcurrentLinkedQueue<ByteBuffer>();
+	private final AtomicInteger mPooledCount = new AtomicInteger();
+
+	public BufferPool(int bufferSize, int maxPooled, boolean direct) {
+		mBufferSize = bufferSize;
+		mMaxPooled = maxPooled;
+		mDirect = direct;
+	}
+
+	/**
+	 * 取出一个已clear的缓冲区，池为空则新分配
+	 */
+	public ByteBuffer acquire() {
+		ByteBuffer buffer = mPool.poll();
+		if (buffer == null) {
+			return mDirect ? ByteBuffer.allocateDirect(mBufferSize) : ByteBuffer.allocate(mBufferSize);
+		}
+		mPooledCount.decrementAndGet();
+		buffer.clear();
+		return buffer;
+	}
+
+	/**
+	 * 归还缓冲区，归还后调用者不能再使用
+	 */
+	public void release(ByteBuffer buffer) {
+		if (buffer == null || buffer.capacity() != mBufferSize)
+			return;
+		if (mPooledCount.incrementAndGet() > mMaxPooled) {
+			mPooledCount.decrementAndGet();
+			return;
+		}
+		mPool.offer(buffer);
+	}
+
+	public int getBufferSize() {
+		return mBufferSize;
+	}
+}
@@ -6,9 +6,83 @@ package com.wangli.mproxy.utils;
  */
 public class Config {
 
+    /**输出调试日志，关闭时每个请求的Log.i都不执行，也不拼接字符串*/
+    final static public boolean DEBUG = false;
     final static public String LOCAL_IP_ADDRESS = "127.0.0.1";
     final static public int HTTP_PORT_DEFAULT = 80;
+    final static public int HTTPS_PORT_DEFAULT = 443;
+    /**TLS会话缓存的数量，同一服务器的新连接恢复会话，不再完整握手*/
+    final static public int TLS_SESSION_CACHE_SIZE = 32;
+    /**TLS会话的有效期(秒)*/
+    final static public int TLS_SESSION_TIMEOUT = 10 * 60;
     final static public String HTTP_BODY_END = "\r\n\r\n";
-    final static public String HTTP_RESPONSE_BEGIN = "HTTP/";
-    final static public String HTTP_REQUEST_BEGIN = "GET ";
+    /**HTTP报文头的最大字节数，超过则断开*/
+    final static public int HTTP_HEADER_MAX_SIZE = 16 * 1024;
+    /**HTTP报文头的最大行数*/
+    final static public int HTTP_HEADER_MAX_LINES = 100;
+    /**NIO中转的I/O线程数*/
+    final static public int NIO_RELAY_THREADS = 2;
+    /**缓存分段文件的大小*/
+    final static public int CACHE_SEGMENT_SIZE = 2 * 1024 * 1024;
+    /**中转数据写入缓存时，最多等待写入的数据量*/
+    final static public int CACHE_WRITE_QUEUE_SIZE = 4 * 1024 * 1024;
+    /**默认的缓存总字节数上限*/
+    final static public long CACHE_MAX_BYTES_DEFAULT = 512L * 1024 * 1024;
+    /**缓存超过此时间(毫秒)没和服务器核对，使用前先用ETag/Last-Modified向服务器确认*/
+    final static public long CACHE_REVALIDATE_INTERVAL = 30 * 60 * 1000;
+    /**生成缓存名称时忽略的查询参数，如CDN的签名和过期时间，同一资源的不同签名链接共用缓存*/
+    final static public String[] CACHE_IGNORED_QUERY_PARAMS = {};
+    /**发送预加载时，提前请求的后续数据最多在内存中保存的字节数*/
+    final static public int CONTINUATION_BUFFER_SIZE = 1024 * 1024;
+    /**带宽与码率相当时，起播需要预加载的媒体时长(秒)*/
+    final static public int PREBUFFER_START_SECONDS = 10;
+    /**带宽充足时，起播至少预加载的媒体时长(秒)*/
+    final static public int PREBUFFER_MIN_SECONDS = 3;
+    /**不知道媒体时长时假定的码率，字节/秒(1.5Mbps)*/
+    final static public long PREBUFFER_DEFAULT_BITRATE = 1500 * 1000 / 8;
+    /**网络在这段时间(毫秒)内能下载完的预加载，不值得为它多发一次请求*/
+    final static public long PREBUFFER_WORTH_TIME = 300;
+    /**发送预加载的最小数据量，还没测出带宽时使用*/
+    final static public long PREBUFFER_MIN_SIZE_DEFAULT = 100 * 1024;
+    /**发送预加载的最小数据量的范围*/
+    final static public long PREBUFFER_MIN_SIZE_LOWER = 32 * 1024;
+    final static public long PREBUFFER_MIN_SIZE_UPPER = 512 * 1024;
+    /**HLS播放时，在播放位置之后预加载的分段数*/
+    final static public int HLS_PREFETCH_SEGMENTS = 3;
+    /**播放列表中改写的链接最多保留的数量*/
+    final static public int HLS_MAX_ROUTES = 2048;
+    /**最多记录的媒体播放列表数*/
+    final static public int HLS_MAX_PLAYLISTS = 8;
+    /**播放列表的最大字节数，要整个读到内存中改写*/
+    final static public int HLS_PLAYLIST_MAX_SIZE = 2 * 1024 * 1024;
+    /**预加载时同时使用的连接数*/
+    final static public int DOWNLOAD_CONNECTIONS = 3;
+    /**预加载时每个连接至少下载的数据量，太小的区间不再拆分*/
+    final static public int DOWNLOAD_MIN_RANGE_SIZE = 256 * 1024;
+    /**同时预加载的url数量*/
+    final static public int PREFETCH_CONCURRENCY = 2;
+    /**连接池中每个服务器的最大连接数，包括使用中和空闲的*/
+    final static public int POOL_MAX_PER_ROUTE = 16;
+    /**空闲连接保留的时间*/
+    final static public long POOL_KEEP_ALIVE_TIME = 30 * 1000;
+    /**连接数达到上限时等待的最长时间*/
+    final static public long POOL_WAIT_TIMEOUT = 10 * 1000;
+    /**连接服务器的超时*/
+    final static public int UPSTREAM_CONNECT_TIMEOUT = 10 * 1000;
+    /**从服务器读取的超时，超时的连接断开，预加载从已下载的位置重试*/
+    final static public int UPSTREAM_READ_TIMEOUT = 30 * 1000;
+    /**等待MediaPlayer发来Request的超时*/
+    final static public int PLAYER_READ_TIMEOUT = 30 * 1000;
+    /**停止代理时等待进行中的会话结束的最长时间，超过后直接断开*/
+    final static public long SHUTDOWN_DRAIN_TIMEOUT = 3 * 1000;
+    /**最多跟随的重定向次数*/
+    final static public int MAX_REDIRECTS = 5;
+    /**重定向结果的默认有效期，3xx Response没有Cache-Control/Expires时使用*/
+    final static public long URL_RESOLVE_TTL = 5 * 60 * 1000;
+    /**最多缓存的重定向结果数*/
+    final static public int URL_RESOLVE_CACHE_SIZE = 64;
+    /**域名解析结果的有效期*/
+    final static public long DNS_CACHE_TTL = 60 * 1000;
+    /**最多缓存的域名数*/
+    final static public int DNS_CACHE_SIZE = 32;
 }
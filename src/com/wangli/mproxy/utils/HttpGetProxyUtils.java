@@ -1,15 +1,22 @@
 package com.wangli.mproxy.utils;
 
+import com.wangli.mproxy.bean.ProxyRequest;
 import com.wangli.mproxy.bean.ProxyResponse;
+import com.wangli.mproxy.cache.CacheEntry;
+import com.wangli.mproxy.httpget.ConnectionPool.Connection;
 import com.wangli.mproxy.httpget.HttpGetParser;
+import com.wangli.mproxy.httpget.UpstreamClient;
 
 import android.util.Log;
 
-import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
+import java.net.InetSocketAddress;
 import java.net.Socket;
-import java.net.SocketAddress;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.WritableByteChannel;
 /**
  * 代理服务器工具类
  * @author hellogv
@@ -22,89 +29,113 @@ public class HttpGetProxyUtils {
 	private Socket mSckPlayer = null;
 
 	/**服务器的Address*/
-	private SocketAddress mServerAddress;
+	private InetSocketAddress mServerAddress;
 	
-	public HttpGetProxyUtils(Socket sckPlayer,SocketAddress address){
+	/**到服务器是否使用https*/
+	private boolean mSecure;
+	
+	/**经过连接池发送请求*/
+	private UpstreamClient mClient;
+	
+	/**没法transferTo时发送预加载用的缓冲区大小*/
+	private static final int FILE_BUFFER_SIZE = 64 * 1024;
+	
+	/**读取Response头用的缓冲区大小*/
+	private static final int READ_BUFFER_SIZE = 1024;
+	
+	public HttpGetProxyUtils(Socket sckPlayer,InetSocketAddress address,boolean secure,UpstreamClient client){
 		mSckPlayer=sckPlayer;
 		mServerAddress=address;
+		mSecure=secure;
+		mClient=client;
 	}
 	
 	/**
-	 * 发送预加载至服务器
-	 * @param fileName 预加载文件
+	 * 可以作为预加载发送的大小：从range开始连续缓存的数据，太少则不使用。
+	 * 分段在发送时才校验，校验不一致时发送在该分段之前停止
+	 * @param entry 预加载缓存
 	 * @param range skip的大小
-	 * @return 已发送的大小，不含skip的大小
-	 * @throws Exception
+	 * @param maxLength 最多发送的大小，Range有结束位置时不能超出
+	 * @param minSize 少于这个大小则不值得多发一次请求
+	 * @return 可发送的大小，不使用预加载时为0
 	 */
-	public int sendPrebufferToMP(String fileName,long range){
-		final int MIN_SIZE= 100*1024;
-		int fileBufferSize=0;
-
-		byte[] file_buffer = new byte[1024];
-		int bytes_read = 0;
-		long startTimeMills = System.currentTimeMillis();
-
-		File file = new File(fileName);
-		if (file.exists() == false) {
-			Log.i(TAG, ">>>不存在预加载文件");
-			return 0;
-		}
-		if (range > (file.length())) {// Range大小超过预缓存的太小
-			Log.i(TAG,">>>不读取预加载文件 range:" + range + ",buffer:" + file.length());
+	public long getPrebufferLength(CacheEntry entry,long range,long maxLength,long minSize){
+		long available = Math.min(entry.getAvailableLength(range), maxLength);
+		if (available == 0) {// Range的位置没有缓存
+			if (Config.DEBUG)
+				Log.i(TAG,">>>不读取预加载 range:" + range);
 			return 0;
 		}
 
-		if (file.length() < MIN_SIZE) {// 可用的预缓存太小，没必要读取以及重发Request
-			Log.i(TAG, ">>>预加载文件太小，不读取预加载");
+		if (available < minSize) {// 可用的预缓存太小，没必要读取以及重发Request
+			if (Config.DEBUG)
+				Log.i(TAG, ">>>预加载太小，不读取预加载");
 			return 0;
 		}
-		
-		FileInputStream fInputStream = null;
-		try {
-			fInputStream = new FileInputStream(file);
-			if (range > 0) {//如果进度大于0，那么先把流读到相应的位置。
-				byte[] tmp = new byte[(int) range];
-				long skipByteCount = fInputStream.read(tmp);
-				Log.i(TAG, ">>>skip:" + skipByteCount);
-			}
+		return available;
+	}
 
-			while ((bytes_read = fInputStream.read(file_buffer)) != -1) {
-				mSckPlayer.getOutputStream().write(file_buffer, 0, bytes_read);
-				fileBufferSize += bytes_read;//成功发送才计算
-			}
-			mSckPlayer.getOutputStream().flush();
-			
-			long costTime = (System.currentTimeMillis() - startTimeMills);
-			Log.i(TAG, ">>>读取预加载耗时:" + costTime);
-			Log.i(TAG, ">>>读取完毕...下载:" + file.length() + ",读取:"+ fileBufferSize);
-		} catch (Exception ex) {
-		} finally {
+	/**
+	 * 发送缓存的数据至MediaPlayer。MediaPlayer的连接由Channel创建时直接用transferTo从文件发送到Socket，
+	 * 否则经过池中的direct buffer发送，不管Range在哪里都不需要读取前面的数据
+	 * @param entry 缓存
+	 * @param range 起始位置
+	 * @param maxLength 最多发送的大小
+	 * @return 已发送的大小，分段校验不一致时小于可用的大小
+	 * @throws IOException MediaPlayer已断开或读取缓存失败，由调用者结束会话
+	 */
+	public long sendCacheToMP(CacheEntry entry,long range,long maxLength) throws IOException {
+		long fileBufferSize=0;
+
+		long available = Math.min(entry.getAvailableLength(range), maxLength);
+		SocketChannel playerChannel = mSckPlayer.getChannel();
+		if (playerChannel != null && playerChannel.isBlocking()) {
+			fileBufferSize = entry.transferTo(range, available, playerChannel);//成功发送才计算
+		} else {
+			WritableByteChannel out = Channels.newChannel(mSckPlayer.getOutputStream());
+			ByteBuffer buffer = SizeClassPool.DIRECT.acquire(FILE_BUFFER_SIZE);
 			try {
-				if (fInputStream != null)
-					fInputStream.close();
-			} catch (IOException e) {}
+				int bytes_read;
+				while (fileBufferSize < available
+						&& (bytes_read = entry.read(range + fileBufferSize, buffer)) > 0) {
+					buffer.flip();
+					while (buffer.hasRemaining())
+						out.write(buffer);
+					fileBufferSize += bytes_read;//成功发送才计算
+					buffer.clear();
+				}
+			} finally {
+				SizeClassPool.DIRECT.release(buffer);
+			}
 		}
+		
+		if (fileBufferSize > 0)
+			entry.onHit();
+		if (Config.DEBUG)
+			Log.i(TAG, ">>>读取完毕...可用:" + available + ",读取:"+ fileBufferSize);
 		return fileBufferSize;
 	}
 
 	/**
-	 * 把服务器的Response的Header去掉
+	 * 把服务器的Response的Header去掉，Header之后已收到的数据在返回值的body中，由调用者发送
 	 * @throws IOException 
 	 */
 	public ProxyResponse removeResponseHeader(Socket sckServer,HttpGetParser httpParser)throws IOException {
 		ProxyResponse result = null;
 		int bytes_read;
-		byte[] tmp_buffer = new byte[1024];
-		while ((bytes_read = sckServer.getInputStream().read(tmp_buffer)) != -1) {
-			result = httpParser.getProxyResponse(tmp_buffer, bytes_read);
-			if (result == null)
-				continue;
+		ByteBuffer buffer = SizeClassPool.HEAP.acquire(READ_BUFFER_SIZE);
+		try {
+			byte[] tmp_buffer = buffer.array();
+			while ((bytes_read = sckServer.getInputStream().read(tmp_buffer)) != -1) {
+				result = httpParser.getProxyResponse(tmp_buffer, bytes_read);
+				if (result == null)
+					continue;
 
-			// 接收到Response的Header
-			if (result.body != null) {// 发送剩余数据
-				sendToMP(result.body);
+				// 接收到Response的Header
+				break;
 			}
-			break;
+		} finally {
+			SizeClassPool.HEAP.release(buffer);
 		}
 		return result;
 	}
@@ -114,6 +145,21 @@ public class HttpGetProxyUtils {
 		mSckPlayer.getOutputStream().flush();
 	}
 
+	/**
+	 * 按Response当前的字段生成报文头，发送到MediaPlayer
+	 */
+	public void sendToMP(ProxyResponse response) throws IOException {
+		ByteBuffer buffer = SizeClassPool.HEAP.acquire(Config.HTTP_HEADER_MAX_SIZE);
+		try {
+			response.writeTo(buffer);
+			sendToMP(buffer.array(), buffer.position());
+		} catch (BufferOverflowException e) {
+			throw new IOException("response header too large");
+		} finally {
+			SizeClassPool.HEAP.release(buffer);
+		}
+	}
+
 	public void sendToMP(byte[] bytes) throws IOException{
 		if(bytes.length==0)
 			return;
@@ -121,11 +167,10 @@ public class HttpGetProxyUtils {
 		mSckPlayer.getOutputStream().flush();	
 	}
 	
-	public Socket sentToServer(String requestStr) throws IOException{
-		Socket sckServer = new Socket();
-		sckServer.connect(mServerAddress);
-		sckServer.getOutputStream().write(requestStr.getBytes());// 发送MediaPlayer的请求
-		sckServer.getOutputStream().flush();
-		return sckServer;
+	/**
+	 * 发送MediaPlayer的请求，连接从连接池中取，用完由调用者归还或关闭
+	 */
+	public Connection sentToServer(ProxyRequest request) throws IOException{
+		return mClient.send(mServerAddress, mSecure, request);
 	}
 }
@@ -0,0 +1,128 @@
+package com.wangli.mproxy.utils;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * 代理和缓存的统计：计数器和直方图都是原子变量，记录时不加锁、不分配内存，
+ * 由snapshot()按名称取出当前的值
+ */
+public class Metrics {
+	/**
+	 * 按2的幂分桶的直方图，第i个桶记录[2^(i-1), 2^i)的值，百分位取桶的上界，误差在2倍以内
+	 */
+	public static class Histogram {
+		private static final int BUCKETS = 64;
+		private final AtomicLongArray mBuckets = new AtomicLongArray(BUCKETS);
+		private final AtomicLong mCount = new AtomicLong();
+		private final AtomicLong mSum = new AtomicLong();
+		private final AtomicLong mMax = new AtomicLong();
+
+		public void record(long value) {
+			if (value < 0)
+				value = 0;
+			mBuckets.incrementAndGet(BUCKETS - Long.numberOfLeadingZeros(value));// 非负数最高位为0，不超过63
+			mCount.incrementAndGet();
+			mSum.addAndGet(value);
+			long max;
+			while (value > (max = mMax.get()) && !mMax.compareAndSet(max, value))
+				;
+		}
+
+		public long getCount() {
+			return mCount.get();
+		}
+
+		public long getSum() {
+			return mSum.get();
+		}
+
+		public long getMax() {
+			return mMax.get();
+		}
+
+		/**
+		 * @param percent 0到100
+		 * @return 没有记录时返回0
+		 */
+		public long getPercentile(double percent) {
+			long count = mCount.get();
+			if (count == 0)
+				return 0;
+			long rank = (long) Math.ceil(count * percent / 100);
+			long seen = 0;
+			for (int i = 0; i < BUCKETS; i++) {
+				seen += mBuckets.get(i);
+				if (seen >= rank && seen > 0)
+					return Math.min(i == 0 ? 0 : (1L << i) - 1, getMax());
+			}
+			return getMax();
+		}
+
+		void writeTo(Map<String, Long> map, String name) {
+			map.put(name + ".count", getCount());
+			map.put(name + ".sum", getSum());
+			map.put(name + ".p50", getPercentile(50));
+			map.put(name + ".p90", getPercentile(90));
+			map.put(name + ".p99", getPercentile(99));
+			map.put(name + ".max", getMax());
+		}
+	}
+
+	/**收到的请求数*/
+	public final AtomicLong requests = new AtomicLong();
+	/**完全由缓存处理、没有连接服务器的请求数*/
+	public final AtomicLong cacheHitRequests = new AtomicLong();
+	/**由缓存发送给MediaPlayer的字节数*/
+	public final AtomicLong cacheHitBytes = new AtomicLong();
+	/**由服务器中转给MediaPlayer的字节数*/
+	public final AtomicLong cacheMissBytes = new AtomicLong();
+	/**预加载下载的字节数*/
+	public final AtomicLong downloadBytes = new AtomicLong();
+	/**新建的到服务器的连接数*/
+	public final AtomicLong upstreamConnects = new AtomicLong();
+	/**复用连接池中空闲连接的次数*/
+	public final AtomicLong upstreamReuses = new AtomicLong();
+	/**从接受MediaPlayer的连接到发出Response头的时间(毫秒)*/
+	public final Histogram ttfb = new Histogram();
+	/**建立到服务器的连接的时间(毫秒)，含DNS和TLS握手*/
+	public final Histogram upstreamConnectTime = new Histogram();
+	/**每个会话发送给MediaPlayer的速度(KB/s)，数据太少的会话不计*/
+	public final Histogram sessionThroughput = new Histogram();
+
+	/**
+	 * 按名称取出所有统计的当前值，直方图展开为count、sum、p50、p90、p99、max
+	 */
+	public Map<String, Long> snapshot() {
+		Map<String, Long> map = new LinkedHashMap<String, Long>();
+		map.put("requests", requests.get());
+		map.put("cache.hit.requests", cacheHitRequests.get());
+		map.put("cache.hit.bytes", cacheHitBytes.get());
+		map.put("cache.miss.bytes", cacheMissBytes.get());
+		map.put("download.bytes", downloadBytes.get());
+		map.put("upstream.connects", upstreamConnects.get());
+		map.put("upstream.reuses", upstreamReuses.get());
+		ttfb.writeTo(map, "ttfb.ms");
+		upstreamConnectTime.writeTo(map, "upstream.connect.ms");
+		sessionThroughput.writeTo(map, "session.throughput.kbps");
+		return map;
+	}
+
+	/**
+	 * 把snapshot()的结果生成为JSON对象
+	 */
+	public static String toJson(Map<String, Long> values) {
+		StringBuilder sb = new StringBuilder(values.size() * 32);
+		sb.append('{');
+		boolean first = true;
+		for (Map.Entry<String, Long> value : values.entrySet()) {
+			if (!first)
+				sb.append(',');
+			first = false;
+			sb.append("\n  \"").append(value.getKey()).append("\": ").append(value.getValue());
+		}
+		return sb.append("\n}\n").toString();
+	}
+}
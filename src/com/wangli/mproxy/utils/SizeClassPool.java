@@ -0,0 +1,152 @@
+package com.wangli.mproxy.utils;
+
+import android.util.Log;
+
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 按大小分级的共享缓冲区池：1KB到64KB每级大小翻倍，取出时给能放下所需大小的最小一级，
+ * 超过最大一级的直接分配不入池。中转、解析和下载都从这里取，稳定播放时不再分配内存。
+ * Config.DEBUG时跟踪取出的缓冲区，没有归还就被回收的打印取出时的调用栈
+ */
+public class SizeClassPool {
+	private static final String TAG = "SizeClassPool";
+	private static final int MIN_SIZE = 1024;
+	private static final int MAX_SIZE = 64 * 1024;
+	/**每级最多保留的总字节数，小的缓冲区可以多留几个*/
+	private static final int MAX_POOLED_BYTES_PER_CLASS = 512 * 1024;
+
+	/**共享的heap缓冲区池，可以用array()当作byte[]使用*/
+	public static final SizeClassPool HEAP = new SizeClassPool(false);
+	/**共享的direct缓冲区池，用于直接和Channel交换数据*/
+	public static final SizeClassPool DIRECT = new SizeClassPool(true);
+
+	/**
+	 * 一个取出的缓冲区，只弱引用缓冲区，被回收时进入队列
+	 */
+	private static class LeakRecord extends WeakReference<ByteBuffer> {
+		final Throwable acquiredAt;
+
+		LeakRecord(ByteBuffer buffer, ReferenceQueue<ByteBuffer> queue) {
+			super(buffer, queue);
+			acquiredAt = new Throwable("buffer acquired here, capacity:" + buffer.capacity());
+		}
+	}
+
+	private final boolean mDirect;
+	private final BufferPool[] mClasses;
+	/**取出未归还的数量*/
+	private final AtomicInteger mOutstanding = new AtomicInteger();
+	/**以下只在Config.DEBUG时使用：identityHashCode -> 取出的记录*/
+	private final Map<Integer, List<LeakRecord>> mRecords = new HashMap<Integer, List<LeakRecord>>();
+	private final ReferenceQueue<ByteBuffer> mLeaked = new ReferenceQueue<ByteBuffer>();
+
+	private SizeClassPool(boolean direct) {
+		mDirect = direct;
+		int count = 0;
+		for (int size = MIN_SIZE; size <= MAX_SIZE; size *= 2)
+			count++;
+		mClasses = new BufferPool[count];
+		for (int i = 0, size = MIN_SIZE; i < count; i++, size *= 2)
+			mClasses[i] = new BufferPool(size, Math.max(4, MAX_POOLED_BYTES_PER_CLASS / size), direct);
+	}
+
+	/**
+	 * 取出一个已clear、容量不小于size的缓冲区，用完必须release
+	 */
+	public ByteBuffer acquire(int size) {
+		int index = getClassIndex(size);
+		ByteBuffer buffer;
+		if (index == -1)
+			buffer = mDirect ? ByteBuffer.allocateDirect(size) : ByteBuffer.allocate(size);
+		else
+			buffer = mClasses[index].acquire();
+		mOutstanding.incrementAndGet();
+		if (Config.DEBUG)
+			track(buffer);
+		return buffer;
+	}
+
+	/**
+	 * 归还缓冲区，归还后调用者不能再使用，null忽略
+	 */
+	public void release(ByteBuffer buffer) {
+		if (buffer == null)
+			return;
+		mOutstanding.decrementAndGet();
+		if (Config.DEBUG)
+			untrack(buffer);
+		int index = getClassIndex(buffer.capacity());
+		if (index != -1 && mClasses[index].getBufferSize() == buffer.capacity())
+			mClasses[index].release(buffer);
+	}
+
+	/**
+	 * 取出后还没归还的缓冲区数量
+	 */
+	public int getOutstandingCount() {
+		return mOutstanding.get();
+	}
+
+	private static int getClassIndex(int size) {
+		if (size > MAX_SIZE)
+			return -1;
+		int index = 0;
+		for (int classSize = MIN_SIZE; classSize < size; classSize *= 2)
+			index++;
+		return index;
+	}
+
+	private synchronized void track(ByteBuffer buffer) {
+		reportLeaks();
+		Integer hash = System.identityHashCode(buffer);
+		List<LeakRecord> records = mRecords.get(hash);
+		if (records == null) {
+			records = new ArrayList<LeakRecord>(1);
+			mRecords.put(hash, records);
+		}
+		records.add(new LeakRecord(buffer, mLeaked));
+	}
+
+	private synchronized void untrack(ByteBuffer buffer) {
+		Integer hash = System.identityHashCode(buffer);
+		List<LeakRecord> records = mRecords.get(hash);
+		if (records == null) {
+			Log.e(TAG, "release of untracked buffer", new Throwable());
+			return;
+		}
+		for (int i = 0; i < records.size(); i++) {
+			if (records.get(i).get() == buffer) {
+				records.get(i).clear();// 已归还，不再进入队列
+				records.remove(i);
+				break;
+			}
+		}
+		if (records.isEmpty())
+			mRecords.remove(hash);
+	}
+
+	/**
+	 * 没有归还就被回收的缓冲区，打印取出时的调用栈
+	 */
+	private void reportLeaks() {
+		Reference<? extends ByteBuffer> reference;
+		while ((reference = mLeaked.poll()) != null) {
+			LeakRecord record = (LeakRecord) reference;
+			mOutstanding.decrementAndGet();
+			for (List<LeakRecord> records : mRecords.values()) {
+				if (records.remove(record))
+					break;
+			}
+			Log.e(TAG, "buffer leaked", record.acquiredAt);
+		}
+	}
+}
@@ -0,0 +1,52 @@
+package com.wangli.mproxy.benchmark;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.Socket;
+import java.net.URI;
+
+/**
+ * 模拟播放器的一次请求：发出带Range的GET，读完整个消息体
+ */
+public class HttpFetch {
+	private HttpFetch() {
+	}
+
+	/**
+	 * @param url 本地链接
+	 * @param start Range的起始位置
+	 * @param end Range的结束位置(含)，-1为到结尾
+	 * @param buffer 读取用的缓冲区
+	 * @return 消息体的字节数
+	 */
+	public static long get(String url, long start, long end, byte[] buffer) throws IOException {
+		URI uri = URI.create(url);
+		Socket socket = new Socket(uri.getHost(), uri.getPort());
+		try {
+			socket.setTcpNoDelay(true);
+			String target = uri.getRawPath() + (uri.getRawQuery() == null ? "" : "?" + uri.getRawQuery());
+			String request = "GET " + target + " HTTP/1.1\r\nHost: " + uri.getHost() + ":" + uri.getPort()
+					+ "\r\nRange: bytes=" + start + "-" + (end == -1 ? "" : String.valueOf(end))
+					+ "\r\nConnection: close\r\n\r\n";
+			socket.getOutputStream().write(request.getBytes("US-ASCII"));
+			InputStream in = new BufferedInputStream(socket.getInputStream(), buffer.length);
+			String status = LocalOrigin.readLine(in);
+			if (status == null || !status.startsWith("HTTP/1.1 2"))
+				throw new IOException("bad response:" + status);
+			long contentLength = -1;
+			String line;
+			while ((line = LocalOrigin.readLine(in)) != null && line.length() > 0) {
+				if (line.toLowerCase().startsWith("content-length:"))
+					contentLength = Long.parseLong(line.substring("content-length:".length()).trim());
+			}
+			long total = 0;
+			int read;
+			while ((contentLength == -1 || total < contentLength) && (read = in.read(buffer)) != -1)
+				total += read;
+			return total;
+		} finally {
+			socket.close();
+		}
+	}
+}
@@ -0,0 +1,100 @@
+package com.wangli.mproxy.benchmark;
+
+import com.wangli.mproxy.bean.ProxyRequest;
+import com.wangli.mproxy.bean.ProxyResponse;
+import com.wangli.mproxy.httpget.HttpGetParser;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 报文头的解析和改写：MediaPlayer的Request解析为ProxyRequest、改写Host和Range后生成发给服务器的报文，
+ * 服务器的Response解析为ProxyResponse。报文头的字段数和Range的位置可调
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HttpParseBenchmark {
+	/**Host、Range之外附加的字段数*/
+	@Param({ "4", "16", "48" })
+	public int extraHeaders;
+
+	/**Range的起始位置，3GB用于覆盖超过int的位置*/
+	@Param({ "0", "1048576", "3221225472" })
+	public long rangeOffset;
+
+	private final HttpGetParser mParser = new HttpGetParser();
+	private final ByteBuffer mOut = ByteBuffer.allocate(64 * 1024);
+	private byte[] mRequest;
+	private byte[] mResponse;
+
+	@Setup
+	public void setup() throws IOException {
+		StringBuilder request = new StringBuilder();
+		request.append("GET /r/1/video.mp4?token=0123456789abcdef HTTP/1.1\r\n");
+		request.append("Host: 127.0.0.1:9090\r\n");
+		request.append("Range: bytes=").append(rangeOffset).append("-\r\n");
+		appendHeaders(request, "X-Request-");
+		request.append("\r\n");
+		mRequest = request.toString().getBytes("US-ASCII");
+
+		long total = rangeOffset + 64L * 1024 * 1024;
+		StringBuilder response = new StringBuilder();
+		response.append("HTTP/1.1 206 Partial Content\r\n");
+		response.append("Content-Type: video/mp4\r\n");
+		response.append("Content-Length: ").append(total - rangeOffset).append("\r\n");
+		response.append("Content-Range: bytes ").append(rangeOffset).append('-').append(total - 1).append('/')
+				.append(total).append("\r\n");
+		appendHeaders(response, "X-Response-");
+		response.append("\r\n");
+		mResponse = response.toString().getBytes("US-ASCII");
+		mParser.setRemoteServer("media.example.com", -1);
+	}
+
+	private void appendHeaders(StringBuilder message, String prefix) {
+		for (int i = 0; i < extraHeaders; i++)
+			message.append(prefix).append(i).append(": value-").append(i).append("-abcdefghijklmnopqrstuvwxyz\r\n");
+	}
+
+	@Benchmark
+	public ProxyRequest parseRequest() throws IOException {
+		mParser.clearHttpHeader();
+		return mParser.getRequest(mRequest, mRequest.length);
+	}
+
+	/**
+	 * 解析后改写为发给服务器的Request并生成报文，相当于原来的getProxyRequest加modifyRequestRange
+	 */
+	@Benchmark
+	public int rewriteRequest() throws IOException {
+		mParser.clearHttpHeader();
+		ProxyRequest request = mParser.getRequest(mRequest, mRequest.length);
+		mParser.getProxyRequest(request);
+		request.setRange(request.rangePosition + 4096, -1);
+		mOut.clear();
+		request.writeTo(mOut);
+		return mOut.position();
+	}
+
+	@Benchmark
+	public ProxyResponse parseResponse() throws IOException {
+		mParser.clearHttpHeader();
+		return mParser.getProxyResponse(mResponse, mResponse.length);
+	}
+}
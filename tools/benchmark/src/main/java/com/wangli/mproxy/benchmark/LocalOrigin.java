@@ -0,0 +1,158 @@
+package com.wangli.mproxy.benchmark;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+
+/**
+ * 基准测试用的本地源服务器：支持单段Range和keep-alive，内容按位置生成，每次写chunkSize字节
+ */
+public class LocalOrigin implements Closeable {
+	private final ServerSocket mServer;
+	private final long mSize;
+	private final int mChunkSize;
+	/**位置p的内容为pattern[p % 251]，发送时从中截取*/
+	private final byte[] mPattern;
+	private volatile boolean mClosed = false;
+
+	/**
+	 * @param size 资源的总长度
+	 * @param chunkSize 每次写入Socket的大小
+	 */
+	public LocalOrigin(long size, int chunkSize) throws IOException {
+		mSize = size;
+		mChunkSize = chunkSize;
+		mPattern = new byte[chunkSize + 251];
+		for (int i = 0; i < mPattern.length; i++)
+			mPattern[i] = (byte) (i % 251);
+		mServer = new ServerSocket(0, 64, InetAddress.getByName("127.0.0.1"));
+		Thread accept = new Thread("LocalOrigin-accept") {
+			public void run() {
+				acceptLoop();
+			}
+		};
+		accept.setDaemon(true);
+		accept.start();
+	}
+
+	public String getUrl(String path) {
+		return "http://127.0.0.1:" + mServer.getLocalPort() + path;
+	}
+
+	public long getSize() {
+		return mSize;
+	}
+
+	/**
+	 * 位置position的内容，用于校验
+	 */
+	public static byte at(long position) {
+		return (byte) (position % 251);
+	}
+
+	public void close() throws IOException {
+		mClosed = true;
+		mServer.close();
+	}
+
+	private void acceptLoop() {
+		while (!mClosed) {
+			final Socket socket;
+			try {
+				socket = mServer.accept();
+			} catch (IOException e) {
+				return;
+			}
+			Thread worker = new Thread("LocalOrigin-" + socket.getPort()) {
+				public void run() {
+					serve(socket);
+				}
+			};
+			worker.setDaemon(true);
+			worker.start();
+		}
+	}
+
+	private void serve(Socket socket) {
+		try {
+			socket.setTcpNoDelay(true);
+			InputStream in = new BufferedInputStream(socket.getInputStream());
+			OutputStream out = socket.getOutputStream();
+			String line;
+			while ((line = readLine(in)) != null) {
+				boolean head = line.startsWith("HEAD ");
+				long start = 0;
+				long end = mSize - 1;
+				boolean partial = false;
+				boolean close = false;
+				while ((line = readLine(in)) != null && line.length() > 0) {
+					String lower = line.toLowerCase();
+					if (lower.startsWith("range: bytes=")) {
+						String spec = line.substring("range: bytes=".length()).trim();
+						int dash = spec.indexOf('-');
+						if (dash > 0 && spec.indexOf(',') == -1) {
+							start = Long.parseLong(spec.substring(0, dash));
+							if (dash < spec.length() - 1)
+								end = Math.min(end, Long.parseLong(spec.substring(dash + 1)));
+							partial = true;
+						}
+					} else if (lower.startsWith("connection:") && lower.contains("close")) {
+						close = true;
+					}
+				}
+				if (line == null)
+					return;
+				if (start >= mSize) {
+					out.write("HTTP/1.1 416 Range Not Satisfiable\r\nContent-Length: 0\r\n\r\n".getBytes("US-ASCII"));
+					out.flush();
+					continue;
+				}
+				StringBuilder header = new StringBuilder();
+				header.append(partial ? "HTTP/1.1 206 Partial Content\r\n" : "HTTP/1.1 200 OK\r\n");
+				header.append("Content-Type: video/mp4\r\nAccept-Ranges: bytes\r\nETag: \"bench\"\r\n");
+				header.append("Content-Length: ").append(end - start + 1).append("\r\n");
+				if (partial)
+					header.append("Content-Range: bytes ").append(start).append('-').append(end).append('/')
+							.append(mSize).append("\r\n");
+				header.append("\r\n");
+				out.write(header.toString().getBytes("US-ASCII"));
+				if (!head) {
+					for (long position = start; position <= end;) {
+						int length = (int) Math.min(mChunkSize, end - position + 1);
+						out.write(mPattern, (int) (position % 251), length);
+						position += length;
+					}
+				}
+				out.flush();
+				if (close)
+					return;
+			}
+		} catch (IOException e) {// 代理断开
+		} finally {
+			try {
+				socket.close();
+			} catch (IOException e) {
+			}
+		}
+	}
+
+	static String readLine(InputStream in) throws IOException {
+		StringBuilder line = new StringBuilder();
+		int c;
+		while ((c = in.read()) != -1) {
+			if (c == '\n') {
+				int length = line.length();
+				if (length > 0 && line.charAt(length - 1) == '\r')
+					line.setLength(length - 1);
+				return line.toString();
+			}
+			line.append((char) c);
+		}
+		return line.length() == 0 ? null : line.toString();
+	}
+}
@@ -0,0 +1,128 @@
+package com.wangli.mproxy.benchmark;
+
+import com.wangli.mproxy.cache.CacheEntry;
+import com.wangli.mproxy.cache.CacheStore;
+import com.wangli.mproxy.utils.HttpGetProxyUtils;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.channels.ServerSocketChannel;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 从缓存发送预加载给MediaPlayer(HttpGetProxyUtils.sendCacheToMP)，即原来的sendPrebufferToMP。
+ * channel为MediaPlayer的连接由Channel创建，走transferTo；stream为普通Socket，走池中的缓冲区
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PrebufferBenchmark {
+	private static final String KEY = "prebuffer-benchmark";
+
+	/**每次发送的大小*/
+	@Param({ "65536", "1048576" })
+	public long length;
+
+	/**缓存中的起始位置*/
+	@Param({ "0", "3221225472" })
+	public long rangeOffset;
+
+	@Param({ "channel", "stream" })
+	public String socket;
+
+	private File mDir;
+	private CacheStore mStore;
+	private CacheEntry mEntry;
+	private Socket mProxySide;
+	private Socket mPlayerSide;
+	private HttpGetProxyUtils mUtils;
+
+	@Setup(Level.Trial)
+	public void setup() throws IOException {
+		mDir = TempDir.create();
+		mStore = new CacheStore(mDir.getPath(), 8L * 1024 * 1024 * 1024, 4);
+		mEntry = mStore.open(KEY);
+		byte[] chunk = new byte[64 * 1024];
+		for (long position = 0; position < length; position += chunk.length) {
+			int count = (int) Math.min(chunk.length, length - position);
+			for (int i = 0; i < count; i++)
+				chunk[i] = LocalOrigin.at(rangeOffset + position + i);
+			mEntry.write(rangeOffset + position, chunk, 0, count);
+		}
+
+		InetSocketAddress address = new InetSocketAddress(InetAddress.getByName("127.0.0.1"), 0);
+		if ("channel".equals(socket)) {
+			ServerSocketChannel server = ServerSocketChannel.open();
+			server.socket().bind(address);
+			mPlayerSide = new Socket("127.0.0.1", server.socket().getLocalPort());
+			mProxySide = server.accept().socket();
+			server.close();
+		} else {
+			ServerSocket server = new ServerSocket();
+			server.bind(address);
+			mPlayerSide = new Socket("127.0.0.1", server.getLocalPort());
+			mProxySide = server.accept();
+			server.close();
+		}
+		startSink(mPlayerSide);
+		mUtils = new HttpGetProxyUtils(mProxySide, null, false, null);
+	}
+
+	/**
+	 * MediaPlayer一端读取并丢弃
+	 */
+	private static void startSink(final Socket player) {
+		Thread sink = new Thread("PrebufferBenchmark-sink") {
+			public void run() {
+				byte[] buffer = new byte[256 * 1024];
+				try {
+					InputStream in = player.getInputStream();
+					while (in.read(buffer) != -1)
+						;
+				} catch (IOException e) {
+				}
+			}
+		};
+		sink.setDaemon(true);
+		sink.start();
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() throws IOException {
+		mProxySide.close();
+		mPlayerSide.close();
+		mStore.release(mEntry);
+		mStore.delete(KEY);
+		TempDir.delete(mDir);
+	}
+
+	@Benchmark
+	public long sendCacheToMP() throws IOException {
+		long sent = mUtils.sendCacheToMP(mEntry, rangeOffset, length);
+		if (sent != length)
+			throw new IOException("sent " + sent + " of " + length);
+		return sent;
+	}
+}
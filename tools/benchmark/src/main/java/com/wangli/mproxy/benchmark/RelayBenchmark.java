@@ -0,0 +1,81 @@
+package com.wangli.mproxy.benchmark;
+
+import com.wangli.mproxy.httpget.HttpGetProxy;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 经过代理中转一次没有缓存的请求(原来的Proxy.run()循环，现在的ProxySession.relay/NioRelay)，
+ * 包括解析、转发、写缓存。每次请求的链接参数不同，不会命中缓存
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RelayBenchmark {
+	/**源服务器每次写入的大小*/
+	@Param({ "4096", "65536" })
+	public int chunkSize;
+
+	/**每次请求的大小*/
+	@Param({ "1048576" })
+	public long length;
+
+	@Param({ "0", "3221225472" })
+	public long rangeOffset;
+
+	/**是否使用Selector中转*/
+	@Param({ "false", "true" })
+	public boolean nio;
+
+	private File mDir;
+	private LocalOrigin mOrigin;
+	private HttpGetProxy mProxy;
+	private String mLocalUrl;
+	private long mSequence = 0;
+	private final byte[] mBuffer = new byte[64 * 1024];
+
+	@Setup(Level.Trial)
+	public void setup() throws IOException {
+		mDir = TempDir.create();
+		mOrigin = new LocalOrigin(4L * 1024 * 1024 * 1024, chunkSize);
+		mProxy = new HttpGetProxy(mDir.getPath(), 512L * 1024, 4);
+		mProxy.setNioRelayEnabled(nio);
+		mLocalUrl = mProxy.getLocalURL(mOrigin.getUrl("/video.mp4"));
+		if (mLocalUrl.startsWith(mOrigin.getUrl("")))
+			throw new IOException("proxy not enabled");
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() throws IOException {
+		mOrigin.close();
+		TempDir.delete(mDir);
+	}
+
+	@Benchmark
+	public long relay() throws IOException {
+		String url = mLocalUrl + "?n=" + (mSequence++);
+		long read = HttpFetch.get(url, rangeOffset, rangeOffset + length - 1, mBuffer);
+		if (read != length)
+			throw new IOException("read " + read + " of " + length);
+		return read;
+	}
+}
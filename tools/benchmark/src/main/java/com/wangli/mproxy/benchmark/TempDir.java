@@ -0,0 +1,28 @@
+package com.wangli.mproxy.benchmark;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * 缓存用的临时目录
+ */
+public class TempDir {
+	private TempDir() {
+	}
+
+	public static File create() throws IOException {
+		File dir = File.createTempFile("mproxy-bench", "");
+		if (!dir.delete() || !dir.mkdirs())
+			throw new IOException("cannot create " + dir);
+		return dir;
+	}
+
+	public static void delete(File file) {
+		File[] children = file.listFiles();
+		if (children != null) {
+			for (File child : children)
+				delete(child);
+		}
+		file.delete();
+	}
+}
@@ -0,0 +1,243 @@
+package com.wangli.mproxy.loadtest;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 压力测试用的源服务器：支持单段Range和keep-alive，内容按位置生成，任何路径都是同样大小的资源。
+ * 可以注入响应延迟、每个连接的限速，以及按概率返回503或在消息体中途断开
+ */
+public class FaultyOrigin implements Closeable {
+	private static final int CHUNK_SIZE = 16 * 1024;
+
+	private final ServerSocket mServer;
+	private final long mSize;
+	private final long mLatencyMs;
+	private final long mBytesPerSecond;
+	private final double mErrorRate;
+	private final double mDropRate;
+	private final Random mRandom = new Random();
+	/**位置p的内容为pattern[p % 251]，发送时从中截取*/
+	private final byte[] mPattern;
+	private volatile boolean mClosed = false;
+
+	private final AtomicLong mRequests = new AtomicLong();
+	private final AtomicLong mErrors = new AtomicLong();
+	private final AtomicLong mDrops = new AtomicLong();
+	private final AtomicLong mBytesSent = new AtomicLong();
+
+	/**
+	 * @param size 资源的总长度
+	 * @param latencyMs 收到请求后过多久发送响应头
+	 * @param bytesPerSecond 每个连接的发送速度上限，0为不限
+	 * @param errorRate 返回503的概率
+	 * @param dropRate 在消息体中途断开连接的概率
+	 */
+	public FaultyOrigin(long size, long latencyMs, long bytesPerSecond, double errorRate, double dropRate)
+			throws IOException {
+		mSize = size;
+		mLatencyMs = latencyMs;
+		mBytesPerSecond = bytesPerSecond;
+		mErrorRate = errorRate;
+		mDropRate = dropRate;
+		mPattern = new byte[CHUNK_SIZE + 251];
+		for (int i = 0; i < mPattern.length; i++)
+			mPattern[i] = (byte) (i % 251);
+		mServer = new ServerSocket(0, 256, InetAddress.getByName("127.0.0.1"));
+		Thread accept = new Thread("FaultyOrigin-accept") {
+			public void run() {
+				acceptLoop();
+			}
+		};
+		accept.setDaemon(true);
+		accept.start();
+	}
+
+	public String getUrl(String path) {
+		return "http://127.0.0.1:" + mServer.getLocalPort() + path;
+	}
+
+	public long getSize() {
+		return mSize;
+	}
+
+	/**
+	 * 位置position的内容，用于校验
+	 */
+	public static byte at(long position) {
+		return (byte) (position % 251);
+	}
+
+	public long getRequestCount() {
+		return mRequests.get();
+	}
+
+	public long getErrorCount() {
+		return mErrors.get();
+	}
+
+	public long getDropCount() {
+		return mDrops.get();
+	}
+
+	public long getBytesSent() {
+		return mBytesSent.get();
+	}
+
+	public void close() throws IOException {
+		mClosed = true;
+		mServer.close();
+	}
+
+	private void acceptLoop() {
+		while (!mClosed) {
+			final Socket socket;
+			try {
+				socket = mServer.accept();
+			} catch (IOException e) {
+				return;
+			}
+			Thread worker = new Thread("FaultyOrigin-" + socket.getPort()) {
+				public void run() {
+					serve(socket);
+				}
+			};
+			worker.setDaemon(true);
+			worker.start();
+		}
+	}
+
+	private synchronized double nextRandom() {
+		return mRandom.nextDouble();
+	}
+
+	private void serve(Socket socket) {
+		try {
+			socket.setTcpNoDelay(true);
+			InputStream in = new BufferedInputStream(socket.getInputStream());
+			OutputStream out = socket.getOutputStream();
+			String line;
+			while ((line = readLine(in)) != null) {
+				boolean head = line.startsWith("HEAD ");
+				long start = 0;
+				long end = mSize - 1;
+				boolean partial = false;
+				boolean close = false;
+				while ((line = readLine(in)) != null && line.length() > 0) {
+					String lower = line.toLowerCase();
+					if (lower.startsWith("range: bytes=")) {
+						String spec = line.substring("range: bytes=".length()).trim();
+						int dash = spec.indexOf('-');
+						if (dash > 0 && spec.indexOf(',') == -1) {
+							start = Long.parseLong(spec.substring(0, dash));
+							if (dash < spec.length() - 1)
+								end = Math.min(end, Long.parseLong(spec.substring(dash + 1)));
+							partial = true;
+						}
+					} else if (lower.startsWith("connection:") && lower.contains("close")) {
+						close = true;
+					}
+				}
+				if (line == null)
+					return;
+				mRequests.incrementAndGet();
+				if (mLatencyMs > 0)
+					Thread.sleep(mLatencyMs);
+				if (mErrorRate > 0 && nextRandom() < mErrorRate) {
+					mErrors.incrementAndGet();
+					out.write("HTTP/1.1 503 Service Unavailable\r\nContent-Length: 0\r\n\r\n".getBytes("US-ASCII"));
+					out.flush();
+					continue;
+				}
+				if (start >= mSize) {
+					out.write("HTTP/1.1 416 Range Not Satisfiable\r\nContent-Length: 0\r\n\r\n".getBytes("US-ASCII"));
+					out.flush();
+					continue;
+				}
+				StringBuilder header = new StringBuilder();
+				header.append(partial ? "HTTP/1.1 206 Partial Content\r\n" : "HTTP/1.1 200 OK\r\n");
+				header.append("Content-Type: video/mp4\r\nAccept-Ranges: bytes\r\nETag: \"loadtest\"\r\n");
+				header.append("Content-Length: ").append(end - start + 1).append("\r\n");
+				if (partial)
+					header.append("Content-Range: bytes ").append(start).append('-').append(end).append('/')
+							.append(mSize).append("\r\n");
+				header.append("\r\n");
+				out.write(header.toString().getBytes("US-ASCII"));
+				if (head) {
+					out.flush();
+				} else {
+					// 断开的位置在消息体中均匀分布
+					long cut = -1;
+					if (mDropRate > 0 && nextRandom() < mDropRate)
+						cut = start + (long) (nextRandom() * (end - start + 1));
+					if (!sendBody(out, start, end, cut)) {
+						mDrops.incrementAndGet();
+						return;
+					}
+				}
+				if (close)
+					return;
+			}
+		} catch (IOException e) {// 代理断开
+		} catch (InterruptedException e) {
+		} finally {
+			try {
+				socket.close();
+			} catch (IOException e) {
+			}
+		}
+	}
+
+	/**
+	 * 按限速发送[start,end]，到cut时停止
+	 * @return 到cut中断时返回false
+	 */
+	private boolean sendBody(OutputStream out, long start, long end, long cut)
+			throws IOException, InterruptedException {
+		long begin = System.nanoTime();
+		long sent = 0;
+		for (long position = start; position <= end;) {
+			int length = (int) Math.min(CHUNK_SIZE, end - position + 1);
+			if (cut != -1 && position + length > cut) {
+				out.write(mPattern, (int) (position % 251), (int) (cut - position));
+				out.flush();
+				mBytesSent.addAndGet(cut - position);
+				return false;
+			}
+			out.write(mPattern, (int) (position % 251), length);
+			position += length;
+			sent += length;
+			mBytesSent.addAndGet(length);
+			if (mBytesPerSecond > 0) {
+				long due = sent * 1000 / mBytesPerSecond - (System.nanoTime() - begin) / 1000000;
+				if (due > 0)
+					Thread.sleep(due);
+			}
+		}
+		out.flush();
+		return true;
+	}
+
+	static String readLine(InputStream in) throws IOException {
+		StringBuilder line = new StringBuilder();
+		int c;
+		while ((c = in.read()) != -1) {
+			if (c == '\n') {
+				int length = line.length();
+				if (length > 0 && line.charAt(length - 1) == '\r')
+					line.setLength(length - 1);
+				return line.toString();
+			}
+			line.append((char) c);
+		}
+		return line.length() == 0 ? null : line.toString();
+	}
+}
@@ -0,0 +1,206 @@
+package com.wangli.mproxy.loadtest;
+
+import com.wangli.mproxy.httpget.HttpGetProxy;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 压力测试入口：启动源服务器和代理，多个模拟播放器同时起播、拖动、中断，
+ * 输出每个会话的首字节时间、拖动延迟、吞吐量、线程数和堆，以及汇总
+ */
+public class LoadTest {
+	private static final String USAGE = "java -jar loadtest.jar [options]\n"
+			+ "  -players N      同时播放的播放器数 (8)\n"
+			+ "  -videos N       不同的视频数，播放器轮流分配 (4)\n"
+			+ "  -size MB        每个视频的大小 (64)\n"
+			+ "  -seeks N        每个播放器的拖动次数 (4)\n"
+			+ "  -startKB N      起播时读的大小 (1024)\n"
+			+ "  -seekKB N       拖动后读的大小 (512)\n"
+			+ "  -thinkMs N      两次操作之间的间隔 (200)\n"
+			+ "  -abortRate R    拖动前先发一个立刻关闭的请求的概率 (0.2)\n"
+			+ "  -overlap B      新请求收到数据后才关闭旧请求 (true)\n"
+			+ "  -latencyMs N    源服务器的响应延迟 (20)\n"
+			+ "  -bandwidthKB N  源服务器每个连接的限速，0为不限 (0)\n"
+			+ "  -errorRate R    源服务器返回503的概率 (0)\n"
+			+ "  -dropRate R     源服务器中途断开的概率 (0)\n"
+			+ "  -bufferKB N     代理的预加载上限 (512)\n"
+			+ "  -sessions N     代理的最大会话线程数 (players*2)\n"
+			+ "  -nio B          使用Selector中转 (false)\n"
+			+ "  -seed N         随机数种子 (1)";
+
+	public static void main(String[] args) throws Exception {
+		Map<String, String> options = parse(args);
+		if (options == null) {
+			System.out.println(USAGE);
+			return;
+		}
+		int players = getInt(options, "players", 8);
+		int videos = getInt(options, "videos", 4);
+		long size = getLong(options, "size", 64) * 1024 * 1024;
+		SimulatedPlayer.Scenario scenario = new SimulatedPlayer.Scenario();
+		scenario.seeks = getInt(options, "seeks", scenario.seeks);
+		scenario.startBytes = getLong(options, "startKB", scenario.startBytes / 1024) * 1024;
+		scenario.seekBytes = getLong(options, "seekKB", scenario.seekBytes / 1024) * 1024;
+		scenario.thinkMs = getLong(options, "thinkMs", scenario.thinkMs);
+		scenario.abortRate = getDouble(options, "abortRate", scenario.abortRate);
+		scenario.overlap = getBoolean(options, "overlap", scenario.overlap);
+		long seed = getLong(options, "seed", 1);
+
+		File dir = File.createTempFile("mproxy-loadtest", "");
+		dir.delete();
+		dir.mkdirs();
+		FaultyOrigin origin = new FaultyOrigin(size, getLong(options, "latencyMs", 20),
+				getLong(options, "bandwidthKB", 0) * 1024, getDouble(options, "errorRate", 0),
+				getDouble(options, "dropRate", 0));
+		ResourceSampler sampler = new ResourceSampler(50);
+		try {
+			HttpGetProxy proxy = new HttpGetProxy(dir.getPath(), getLong(options, "bufferKB", 512) * 1024, 16,
+					HttpGetProxy.DEFAULT_BACKLOG, getInt(options, "sessions", players * 2));
+			if (!proxy.getEnable())
+				throw new IOException("proxy not enabled");
+			proxy.setNioRelayEnabled(getBoolean(options, "nio", false));
+			String[] urls = new String[videos];
+			for (int i = 0; i < videos; i++) {
+				urls[i] = proxy.getLocalURL(origin.getUrl("/video" + i + ".mp4"));
+				if (urls[i].startsWith(origin.getUrl("")))
+					throw new IOException("not proxied:" + urls[i]);
+			}
+
+			// 代理启动后的线程数和堆作为基准，会话的开销是峰值减去基准
+			System.gc();
+			int baseThreads = ManagementFactory.getThreadMXBean().getThreadCount();
+			long baseHeap = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+
+			List<SimulatedPlayer> list = new ArrayList<SimulatedPlayer>();
+			List<Thread> threads = new ArrayList<Thread>();
+			for (int i = 0; i < players; i++) {
+				SimulatedPlayer player = new SimulatedPlayer(i, urls[i % videos], size, scenario, seed + i);
+				list.add(player);
+				threads.add(new Thread(player, "Player-" + i));
+			}
+			sampler.start();
+			long begin = System.nanoTime();
+			for (Thread thread : threads)
+				thread.start();
+			for (Thread thread : threads)
+				thread.join();
+			long elapsed = (System.nanoTime() - begin) / 1000000;
+			sampler.shutdown();
+			sampler.sample();
+
+			List<SessionStats> stats = new ArrayList<SessionStats>();
+			for (SimulatedPlayer player : list)
+				stats.add(player.getStats());
+			report(stats, elapsed, baseThreads, baseHeap, sampler, origin);
+		} finally {
+			sampler.shutdown();
+			origin.close();
+			delete(dir);
+		}
+		// 代理的线程不是守护线程，也没有关闭的方法
+		System.exit(0);
+	}
+
+	private static void report(List<SessionStats> stats, long elapsed, int baseThreads, long baseHeap,
+			ResourceSampler sampler, FaultyOrigin origin) {
+		System.out.println(String.format("%4s %8s %6s %8s %8s %10s %9s %7s %7s %7s %8s %8s", "id", "ttfb", "seeks",
+				"seekP50", "seekMax", "bytes", "KB/s", "aborts", "errors", "corrupt", "threads", "heapMB"));
+		List<Long> ttfbs = new ArrayList<Long>();
+		List<Long> seeks = new ArrayList<Long>();
+		long bytes = 0;
+		int errors = 0;
+		int corrupt = 0;
+		int aborts = 0;
+		for (SessionStats s : stats) {
+			List<Long> latencies = new ArrayList<Long>(s.seekLatencies);
+			Collections.sort(latencies);
+			System.out.println(String.format("%4d %8d %6d %8d %8d %10d %9d %7d %7d %7d %8d %8.1f", s.id, s.ttfb,
+					latencies.size(), percentile(latencies, 50), percentile(latencies, 100), s.bytes,
+					s.getThroughput(), s.aborts, s.errors, s.corrupt, s.threads, s.heapUsed / 1048576.0));
+			if (s.ttfb != -1)
+				ttfbs.add(s.ttfb);
+			seeks.addAll(latencies);
+			bytes += s.bytes;
+			errors += s.errors;
+			corrupt += s.corrupt;
+			aborts += s.aborts;
+		}
+		Collections.sort(ttfbs);
+		Collections.sort(seeks);
+		int players = stats.size();
+		System.out.println();
+		System.out.println(String.format("players %d, elapsed %d ms, %d KB/s in total", players, elapsed,
+				elapsed == 0 ? 0 : bytes * 1000 / elapsed / 1024));
+		System.out.println(String.format("ttfb ms        p50 %d  p95 %d  max %d", percentile(ttfbs, 50),
+				percentile(ttfbs, 95), percentile(ttfbs, 100)));
+		System.out.println(String.format("seek ms        p50 %d  p95 %d  max %d  (%d seeks)", percentile(seeks, 50),
+				percentile(seeks, 95), percentile(seeks, 100), seeks.size()));
+		// 播放器自己的线程不算在会话里
+		System.out.println(String.format("threads        base %d  peak %d  per session %.1f", baseThreads,
+				sampler.getPeakThreads(), (sampler.getPeakThreads() - baseThreads - players) / (double) players));
+		System.out.println(String.format("heap MB        base %.1f  peak %.1f  per session %.2f",
+				baseHeap / 1048576.0, sampler.getPeakHeap() / 1048576.0,
+				(sampler.getPeakHeap() - baseHeap) / 1048576.0 / players));
+		System.out.println(String.format("player         aborts %d  errors %d  corrupt %d", aborts, errors,
+				corrupt));
+		System.out.println(String.format("origin         requests %d  503 %d  drops %d  sent %d KB",
+				origin.getRequestCount(), origin.getErrorCount(), origin.getDropCount(),
+				origin.getBytesSent() / 1024));
+	}
+
+	/**
+	 * 已排序列表的百分位数，空列表为-1
+	 */
+	private static long percentile(List<Long> sorted, int percent) {
+		if (sorted.isEmpty())
+			return -1;
+		int index = (int) Math.ceil(sorted.size() * percent / 100.0) - 1;
+		return sorted.get(Math.max(0, Math.min(index, sorted.size() - 1)));
+	}
+
+	/**
+	 * 解析"-name value"形式的参数
+	 * @return 参数有误或需要帮助时返回null
+	 */
+	private static Map<String, String> parse(String[] args) {
+		Map<String, String> options = new HashMap<String, String>();
+		for (int i = 0; i < args.length; i++) {
+			if (!args[i].startsWith("-") || args[i].equals("-help") || i + 1 == args.length)
+				return null;
+			options.put(args[i].substring(1), args[++i]);
+		}
+		return options;
+	}
+
+	private static int getInt(Map<String, String> options, String name, int value) {
+		return options.containsKey(name) ? Integer.parseInt(options.get(name)) : value;
+	}
+
+	private static long getLong(Map<String, String> options, String name, long value) {
+		return options.containsKey(name) ? Long.parseLong(options.get(name)) : value;
+	}
+
+	private static double getDouble(Map<String, String> options, String name, double value) {
+		return options.containsKey(name) ? Double.parseDouble(options.get(name)) : value;
+	}
+
+	private static boolean getBoolean(Map<String, String> options, String name, boolean value) {
+		return options.containsKey(name) ? Boolean.parseBoolean(options.get(name)) : value;
+	}
+
+	private static void delete(File file) {
+		File[] children = file.listFiles();
+		if (children != null) {
+			for (File child : children)
+				delete(child);
+		}
+		file.delete();
+	}
+}
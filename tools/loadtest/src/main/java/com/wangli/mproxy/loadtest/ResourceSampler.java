@@ -0,0 +1,56 @@
+package com.wangli.mproxy.loadtest;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.lang.management.ThreadMXBean;
+
+/**
+ * 定时采样进程的线程数和已使用的堆，记录峰值
+ */
+public class ResourceSampler extends Thread {
+	private final long mIntervalMs;
+	private final ThreadMXBean mThreads = ManagementFactory.getThreadMXBean();
+	private final MemoryMXBean mMemory = ManagementFactory.getMemoryMXBean();
+	private volatile boolean mStop = false;
+	private volatile int mPeakThreads;
+	private volatile long mPeakHeap;
+
+	public ResourceSampler(long intervalMs) {
+		super("ResourceSampler");
+		mIntervalMs = intervalMs;
+		setDaemon(true);
+	}
+
+	public void run() {
+		while (!mStop) {
+			sample();
+			try {
+				Thread.sleep(mIntervalMs);
+			} catch (InterruptedException e) {
+				return;
+			}
+		}
+	}
+
+	public void sample() {
+		int threads = mThreads.getThreadCount();
+		long heap = mMemory.getHeapMemoryUsage().getUsed();
+		if (threads > mPeakThreads)
+			mPeakThreads = threads;
+		if (heap > mPeakHeap)
+			mPeakHeap = heap;
+	}
+
+	public void shutdown() {
+		mStop = true;
+		interrupt();
+	}
+
+	public int getPeakThreads() {
+		return mPeakThreads;
+	}
+
+	public long getPeakHeap() {
+		return mPeakHeap;
+	}
+}
@@ -0,0 +1,42 @@
+package com.wangli.mproxy.loadtest;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 一个模拟播放器的统计结果，时间单位为毫秒
+ */
+public class SessionStats {
+	public final int id;
+	/**起播请求发出到收到第一个字节，失败为-1*/
+	public long ttfb = -1;
+	/**每次拖动请求发出到收到第一个字节*/
+	public final List<Long> seekLatencies = new ArrayList<Long>();
+	/**读到并校验过的字节数*/
+	public long bytes;
+	/**读消息体的时间，用于计算吞吐量*/
+	public long readNanos;
+	/**起播到结束的时间*/
+	public long elapsed;
+	/**主动中断的请求数*/
+	public int aborts;
+	/**非2xx响应、连接异常、数据不足的请求数*/
+	public int errors;
+	/**内容和源服务器不一致的请求数*/
+	public int corrupt;
+	/**结束时进程的线程数*/
+	public int threads;
+	/**结束时已使用的堆*/
+	public long heapUsed;
+
+	public SessionStats(int id) {
+		this.id = id;
+	}
+
+	/**
+	 * 吞吐量，KB/s
+	 */
+	public long getThroughput() {
+		return readNanos == 0 ? 0 : bytes * 1000000000L / readNanos / 1024;
+	}
+}
@@ -0,0 +1,210 @@
+package com.wangli.mproxy.loadtest;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.net.Socket;
+import java.net.URI;
+import java.util.Random;
+
+/**
+ * 模拟播放器：从头起播，再多次拖动，最后中断。
+ * 和startProxy()注释里说的一样，拖动时可以先发新请求，收到数据后才关闭旧请求；
+ * 也会发出请求后立刻关闭，模拟连续拖动
+ */
+public class SimulatedPlayer implements Runnable {
+	private final String mUrl;
+	private final long mSize;
+	private final Scenario mScenario;
+	private final SessionStats mStats;
+	private final Random mRandom;
+	private final byte[] mBuffer = new byte[64 * 1024];
+
+	/**
+	 * 播放器的行为
+	 */
+	public static class Scenario {
+		/**起播时读的字节数*/
+		public long startBytes = 1024 * 1024;
+		/**拖动次数*/
+		public int seeks = 4;
+		/**每次拖动后读的字节数*/
+		public long seekBytes = 512 * 1024;
+		/**两次操作之间的间隔*/
+		public long thinkMs = 200;
+		/**拖动前先发一个立刻关闭的请求的概率*/
+		public double abortRate = 0.2;
+		/**新请求收到数据后才关闭旧请求*/
+		public boolean overlap = true;
+	}
+
+	public SimulatedPlayer(int id, String url, long size, Scenario scenario, long seed) {
+		mUrl = url;
+		mSize = size;
+		mScenario = scenario;
+		mStats = new SessionStats(id);
+		mRandom = new Random(seed);
+	}
+
+	public SessionStats getStats() {
+		return mStats;
+	}
+
+	public void run() {
+		long begin = System.nanoTime();
+		Request current = null;
+		try {
+			current = open(0);
+			if (current != null) {
+				mStats.ttfb = current.firstByteMs;
+				read(current, mScenario.startBytes);
+			}
+			for (int i = 0; i < mScenario.seeks; i++) {
+				Thread.sleep(mScenario.thinkMs);
+				long range = Math.max(1, mSize - mScenario.seekBytes);
+				long offset = (long) (mRandom.nextDouble() * range);
+				if (mRandom.nextDouble() < mScenario.abortRate)
+					abort(offset);
+				if (!mScenario.overlap) {
+					close(current);
+					current = null;
+				}
+				Request next = open(offset);
+				close(current);
+				current = next;
+				if (current != null) {
+					mStats.seekLatencies.add(current.firstByteMs);
+					read(current, mScenario.seekBytes);
+				}
+			}
+		} catch (InterruptedException e) {
+		} finally {
+			close(current);
+			mStats.elapsed = (System.nanoTime() - begin) / 1000000;
+			mStats.threads = ManagementFactory.getThreadMXBean().getThreadCount();
+			mStats.heapUsed = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+		}
+	}
+
+	/**
+	 * 从offset开始请求，读到第一个字节为止
+	 * @return 失败时返回null
+	 */
+	private Request open(long offset) {
+		Request request = new Request(offset);
+		try {
+			request.send();
+			if (request.receive())
+				return request;
+		} catch (IOException e) {
+		}
+		mStats.errors++;
+		close(request);
+		return null;
+	}
+
+	/**
+	 * 发出请求后立刻关闭
+	 */
+	private void abort(long offset) {
+		Request request = new Request(offset);
+		try {
+			request.send();
+			mStats.aborts++;
+		} catch (IOException e) {
+			mStats.errors++;
+		} finally {
+			close(request);
+		}
+	}
+
+	/**
+	 * 读length个字节并校验内容
+	 */
+	private void read(Request request, long length) {
+		long end = Math.min(request.position + length, mSize);
+		long begin = System.nanoTime();
+		try {
+			while (request.position < end) {
+				int count = request.in.read(mBuffer, 0, (int) Math.min(mBuffer.length, end - request.position));
+				if (count == -1) {
+					mStats.errors++;
+					break;
+				}
+				for (int i = 0; i < count; i++) {
+					if (mBuffer[i] != FaultyOrigin.at(request.position + i)) {
+						mStats.corrupt++;
+						request.position = end;
+						return;
+					}
+				}
+				request.position += count;
+				mStats.bytes += count;
+			}
+		} catch (IOException e) {
+			mStats.errors++;
+		} finally {
+			mStats.readNanos += System.nanoTime() - begin;
+		}
+	}
+
+	private static void close(Request request) {
+		if (request == null || request.socket == null)
+			return;
+		try {
+			request.socket.close();
+		} catch (IOException e) {
+		}
+	}
+
+	/**
+	 * 一个带Range的GET请求
+	 */
+	private class Request {
+		final long offset;
+		Socket socket;
+		InputStream in;
+		long position;
+		long sentAt;
+		long firstByteMs;
+
+		Request(long offset) {
+			this.offset = offset;
+			this.position = offset;
+		}
+
+		void send() throws IOException {
+			URI uri = URI.create(mUrl);
+			socket = new Socket(uri.getHost(), uri.getPort());
+			socket.setTcpNoDelay(true);
+			socket.setSoTimeout(30 * 1000);
+			String target = uri.getRawPath() + (uri.getRawQuery() == null ? "" : "?" + uri.getRawQuery());
+			String request = "GET " + target + " HTTP/1.1\r\nHost: " + uri.getHost() + ":" + uri.getPort()
+					+ "\r\nRange: bytes=" + offset + "-\r\nConnection: close\r\n\r\n";
+			sentAt = System.nanoTime();
+			socket.getOutputStream().write(request.getBytes("US-ASCII"));
+			in = new BufferedInputStream(socket.getInputStream(), mBuffer.length);
+		}
+
+		/**
+		 * 读响应头和第一个字节
+		 * @return 不是2xx或没有数据时返回false
+		 */
+		boolean receive() throws IOException {
+			String status = FaultyOrigin.readLine(in);
+			if (status == null || !status.startsWith("HTTP/1.1 2") && !status.startsWith("HTTP/1.0 2"))
+				return false;
+			String line;
+			while ((line = FaultyOrigin.readLine(in)) != null && line.length() > 0) {
+			}
+			in.mark(1);
+			int first = in.read();
+			firstByteMs = (System.nanoTime() - sentAt) / 1000000;
+			if (first == -1)
+				return false;
+			in.reset();
+			return true;
+		}
+	}
+}
@@ -0,0 +1,23 @@
+package android.os;
+
+import java.io.File;
+
+/**
+ * android.os.StatFs的替身，按java.io.File的可用空间计算
+ */
+public class StatFs {
+	private static final int BLOCK_SIZE = 4096;
+	private final File mPath;
+
+	public StatFs(String path) {
+		mPath = new File(path);
+	}
+
+	public int getBlockSize() {
+		return BLOCK_SIZE;
+	}
+
+	public int getAvailableBlocks() {
+		return (int) Math.min(Integer.MAX_VALUE, mPath.getUsableSpace() / BLOCK_SIZE);
+	}
+}
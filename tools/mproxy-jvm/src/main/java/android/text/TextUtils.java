@@ -0,0 +1,13 @@
+package android.text;
+
+/**
+ * android.text.TextUtils的替身，只有库用到的方法
+ */
+public class TextUtils {
+	private TextUtils() {
+	}
+
+	public static boolean isEmpty(CharSequence str) {
+		return str == null || str.length() == 0;
+	}
+}
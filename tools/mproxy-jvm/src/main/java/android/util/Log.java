@@ -0,0 +1,29 @@
+package android.util;
+
+/**
+ * android.util.Log的替身，设置系统属性mproxy.log=true时输出到标准错误，否则丢弃
+ */
+public final class Log {
+	private static final boolean ENABLED = Boolean.getBoolean("mproxy.log");
+
+	private Log() {
+	}
+
+	public static int i(String tag, String msg) {
+		return print("I", tag, msg);
+	}
+
+	public static int e(String tag, String msg) {
+		return print("E", tag, msg);
+	}
+
+	public static int e(String tag, String msg, Throwable tr) {
+		return print("E", tag, msg + " " + tr);
+	}
+
+	private static int print(String level, String tag, String msg) {
+		if (ENABLED)
+			System.err.println(level + "/" + tag + ": " + msg);
+		return 0;
+	}
+}